@@ -0,0 +1,66 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.BencodeCodec;
+import util.BencodeView;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding of torrent files and tracker responses with {@link BencodeCodec}, and the
+ * {@link BencodeView} lookups that avoid building the object tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BencodeBenchmark {
+
+    /**
+     * {@code torrent-N}: a multi-file torrent of N pieces; {@code tracker-N}: a compact response with N peers.
+     */
+    @Param({"torrent-16000", "torrent-160000", "tracker-50", "tracker-200"})
+    public String input;
+
+    private byte[] encoded;
+    private Object decoded;
+
+    @Setup
+    public void setUp() {
+        int size = Integer.parseInt(input.substring(input.indexOf('-') + 1));
+        encoded = input.startsWith("torrent") ? Fixtures.torrent(size, 100) : Fixtures.trackerResponse(size);
+        decoded = BencodeCodec.decodeBencode(encoded, new int[]{0});
+    }
+
+    @Benchmark
+    public Object decode() {
+        return BencodeCodec.decodeBencode(encoded, new int[]{0});
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return BencodeCodec.encodeBencode(decoded);
+    }
+
+    /**
+     * The lazy path the client uses for tracker responses and the info dictionary.
+     */
+    @Benchmark
+    public BencodeView view() {
+        BencodeView root = BencodeView.of(encoded);
+        return root.get(input.startsWith("torrent") ? "info" : "peers");
+    }
+}
@@ -0,0 +1,78 @@
+package benchmarks;
+
+import util.BencodeCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Synthetic inputs shaped like the real thing, generated from a fixed seed so runs are comparable.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * A multi-file torrent with {@code pieceCount} pieces spread over {@code fileCount} files, e.g. 16000 pieces
+     * for a 4 GiB torrent with 256 KiB pieces.
+     */
+    static byte[] torrent(int pieceCount, int fileCount) {
+        Random random = new Random(pieceCount);
+        int pieceLength = 256 * 1024;
+        byte[] pieces = new byte[pieceCount * 20];
+        random.nextBytes(pieces);
+
+        List<Object> files = new ArrayList<>();
+        long total = (long) pieceCount * pieceLength;
+        for (int i = 0; i < fileCount; i++) {
+            Map<String, Object> file = new TreeMap<>();
+            file.put("length", total / fileCount + (i == 0 ? total % fileCount : 0));
+            file.put("path", List.of("dir" + i % 16, "file-" + i + ".bin"));
+            files.add(file);
+        }
+        Map<String, Object> info = new TreeMap<>();
+        info.put("files", files);
+        info.put("name", "benchmark");
+        info.put("piece length", (long) pieceLength);
+        info.put("pieces", pieces);
+
+        Map<String, Object> torrent = new TreeMap<>();
+        torrent.put("announce", "http://tracker.example.org:6969/announce");
+        torrent.put("announce-list", List.of(List.of("http://tracker.example.org:6969/announce"),
+                List.of("udp://tracker.example.net:1337/announce", "udp://backup.example.net:1337/announce")));
+        torrent.put("created by", "benchmarks");
+        torrent.put("creation date", 1_700_000_000L);
+        torrent.put("info", info);
+        return encode(torrent);
+    }
+
+    /**
+     * A compact tracker response listing {@code peerCount} IPv4 peers.
+     */
+    static byte[] trackerResponse(int peerCount) {
+        Random random = new Random(peerCount);
+        byte[] peers = new byte[peerCount * 6];
+        random.nextBytes(peers);
+
+        Map<String, Object> response = new TreeMap<>();
+        response.put("complete", 1234L);
+        response.put("incomplete", 567L);
+        response.put("interval", 1800L);
+        response.put("min interval", 900L);
+        response.put("peers", peers);
+        return encode(response);
+    }
+
+    private static byte[] encode(Object value) {
+        try {
+            return BencodeCodec.encodeBencode(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
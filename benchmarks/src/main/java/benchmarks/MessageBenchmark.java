@@ -0,0 +1,90 @@
+package benchmarks;
+
+import client.Torrent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.FrameEncoder;
+import util.Message;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and parsing each message type with {@link Message}, next to {@link FrameEncoder}, which writes
+ * the same frames into a reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+    private static final int PIECE_COUNT = 16000;
+
+    @Param({"CHOKE", "INTERESTED", "HAVE", "BITFIELD", "REQUEST", "PIECE", "CANCEL"})
+    public Message.MessageType type;
+
+    private Message message;
+    private byte[] bytes;
+    private ByteBuffer frameBuffer;
+    private FrameEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        message = switch (type) {
+            case CHOKE -> Message.createChoke();
+            case INTERESTED -> Message.createInterested();
+            case HAVE -> Message.createHave(1234);
+            case BITFIELD -> {
+                boolean[] pieces = new boolean[PIECE_COUNT];
+                for (int i = 0; i < pieces.length; i++) {
+                    pieces[i] = random.nextBoolean();
+                }
+                yield Message.createBitfield(pieces);
+            }
+            case REQUEST -> Message.createRequest(1234, 5 * Torrent.BLOCK_SIZE, Torrent.BLOCK_SIZE);
+            case PIECE -> {
+                byte[] block = new byte[Torrent.BLOCK_SIZE];
+                random.nextBytes(block);
+                yield Message.createPiece(1234, 5 * Torrent.BLOCK_SIZE, block);
+            }
+            case CANCEL -> Message.createCancel(1234, 5 * Torrent.BLOCK_SIZE, Torrent.BLOCK_SIZE);
+            default -> throw new IllegalArgumentException("Not benchmarked: " + type);
+        };
+        bytes = message.toBytes();
+        frameBuffer = ByteBuffer.allocateDirect(bytes.length);
+        encoder = new FrameEncoder(frameBuffer);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public Message fromBytes() {
+        return Message.fromBytes(bytes);
+    }
+
+    /**
+     * The allocation-free path the connections use: encode into a buffer that is reused for every frame.
+     */
+    @Benchmark
+    public int encodeInto() {
+        frameBuffer.clear();
+        encoder.message(message);
+        return frameBuffer.position();
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-1 throughput over whole pieces, from a heap array as for downloaded pieces and from a direct buffer as when
+ * {@code PieceVerifier} reads pieces back from disk. Divide the piece length by the time per operation for MB/s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PieceHashBenchmark {
+
+    @Param({"262144", "1048576", "4194304"})
+    public int pieceLength;
+
+    private byte[] heapPiece;
+    private ByteBuffer directPiece;
+    private MessageDigest sha1;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        heapPiece = new byte[pieceLength];
+        new Random(pieceLength).nextBytes(heapPiece);
+        directPiece = ByteBuffer.allocateDirect(pieceLength).put(heapPiece).flip();
+        sha1 = MessageDigest.getInstance("SHA-1");
+    }
+
+    @Benchmark
+    public byte[] heap() {
+        sha1.reset();
+        return sha1.digest(heapPiece);
+    }
+
+    @Benchmark
+    public byte[] direct() {
+        sha1.reset();
+        sha1.update(directPiece.duplicate());
+        return sha1.digest();
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import client.PiecePicker;
+import client.Torrent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Bitfield;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rarest-first selection in {@link PiecePicker}: reserving a piece for a peer and handing it back, with 50 other
+ * peers registered so availability varies. A seed offers every piece; a partial peer about half of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PiecePickerBenchmark {
+    private static final int OTHER_PEERS = 50;
+
+    @Param({"1000", "16000", "160000"})
+    public int pieceCount;
+
+    @Param({"seed", "partial"})
+    public String peer;
+
+    private PiecePicker picker;
+    private long[] peerPieces;
+
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        picker = new PiecePicker(new Torrent(Fixtures.torrent(pieceCount, 1)));
+
+        Random random = new Random(pieceCount);
+        for (int i = 0; i < OTHER_PEERS; i++) {
+            long[] pieces = Bitfield.create(pieceCount);
+            for (int index = 0; index < pieceCount; index++) {
+                if (random.nextInt(4) != 0) {
+                    Bitfield.set(pieces, index);
+                }
+            }
+            picker.addPeer(pieces);
+        }
+
+        peerPieces = Bitfield.create(pieceCount);
+        for (int index = 0; index < pieceCount; index++) {
+            if (peer.equals("seed") || random.nextBoolean()) {
+                Bitfield.set(peerPieces, index);
+            }
+        }
+        picker.addPeer(peerPieces);
+    }
+
+    @Benchmark
+    public int pickAndRelease() {
+        int index = picker.pick(peerPieces);
+        picker.release(index);
+        return index;
+    }
+}
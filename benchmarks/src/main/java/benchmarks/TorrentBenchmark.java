@@ -0,0 +1,59 @@
+package benchmarks;
+
+import client.Torrent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.BencodeView;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a torrent file: the full {@link Torrent} constructor, and the info-hash computation on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TorrentBenchmark {
+
+    @Param({"1000", "16000", "160000"})
+    public int pieceCount;
+
+    private byte[] torrentFile;
+    private MessageDigest sha1;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        torrentFile = Fixtures.torrent(pieceCount, 100);
+        sha1 = MessageDigest.getInstance("SHA-1");
+    }
+
+    @Benchmark
+    public Torrent parseTorrent() throws IOException, NoSuchAlgorithmException {
+        return new Torrent(torrentFile);
+    }
+
+    /**
+     * Locate the raw info dictionary and hash it, as the constructor does.
+     */
+    @Benchmark
+    public byte[] infoHash() {
+        sha1.reset();
+        sha1.update(BencodeView.of(torrentFile).get("info").raw());
+        return sha1.digest();
+    }
+}
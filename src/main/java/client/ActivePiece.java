@@ -0,0 +1,98 @@
+package client;
+
+import util.Bitfield;
+
+/**
+ * Request state of one piece being fetched from a peer: which blocks were requested and received, and the
+ * stamps {@link PeerThroughput} needs for each request. A connection keeps several of these so its window of
+ * requests can run on into the next piece before the current one is complete.
+ */
+final class ActivePiece {
+    final int index;
+    final int length;
+    final boolean[] requested;
+    final boolean[] received;
+    final long[] sentAt;
+    final long[] deliveredAtSend;
+    int attempt;
+    int receivedCount;
+    int nextBlock;
+
+    /**
+     * @param attempt the picker's count of failed hash checks of the piece, see {@link PiecePicker#getAttempt}
+     */
+    ActivePiece(int index, int length, int attempt) {
+        int blockCount = (length + PeerConnection.BLOCK_SIZE - 1) / PeerConnection.BLOCK_SIZE;
+        this.index = index;
+        this.length = length;
+        this.attempt = attempt;
+        this.requested = new boolean[blockCount];
+        this.received = new boolean[blockCount];
+        this.sentAt = new long[blockCount];
+        this.deliveredAtSend = new long[blockCount];
+    }
+
+    /**
+     * Mark the blocks set in a packed bitset as already stored, or nothing for {@code null}.
+     */
+    void skipStored(long[] blocksOnDisk) {
+        if (blocksOnDisk == null) {
+            return;
+        }
+        for (int block = 0; block < received.length; block++) {
+            if (Bitfield.get(blocksOnDisk, block) && !received[block]) {
+                requested[block] = received[block] = true;
+                receivedCount++;
+            }
+        }
+    }
+
+    /**
+     * Forget every request still pending, e.g. after being choked, so the missing blocks are requested again.
+     */
+    void resetRequests() {
+        System.arraycopy(received, 0, requested, 0, requested.length);
+        nextBlock = 0;
+    }
+
+    /**
+     * Start over after a copy of the piece failed its hash check elsewhere and every block stored for it was
+     * thrown away: blocks received are requested again, while requests still pending stay pending.
+     */
+    void restart(int attempt) {
+        this.attempt = attempt;
+        for (int block = 0; block < received.length; block++) {
+            if (received[block]) {
+                received[block] = requested[block] = false;
+            }
+        }
+        receivedCount = 0;
+        nextBlock = 0;
+    }
+
+    /**
+     * Forget one pending request the peer turned down, so the block is requested again.
+     */
+    void onRejected(int block) {
+        requested[block] = false;
+        nextBlock = Math.min(nextBlock, block);
+    }
+
+    /**
+     * Stamp a block as requested now.
+     */
+    void onRequested(int block, PeerThroughput throughput) {
+        requested[block] = true;
+        sentAt[block] = PeerThroughput.now();
+        deliveredAtSend[block] = throughput.getDelivered();
+        throughput.onRequest();
+    }
+
+    int blockLength(int block) {
+        return Math.min(PeerConnection.BLOCK_SIZE, length - block * PeerConnection.BLOCK_SIZE);
+    }
+
+    boolean isComplete() {
+        return receivedCount == received.length;
+    }
+}
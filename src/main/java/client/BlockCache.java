@@ -0,0 +1,463 @@
+package client;
+
+import util.Bitfield;
+import util.PieceHasher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Write-back cache in front of {@link Storage}, holding whole pieces in a fixed memory budget.
+ * <p>
+ * Incoming blocks are copied into a buffer for their piece instead of going to disk one by one, and fed into the
+ * piece's SHA-1 by the thread that received them as soon as every block before them is there too, so the digest is
+ * ready when the last block lands and the piece is never read again just to hash it. A piece that passes is
+ * written out in one sequential write; a piece that fails is dropped without touching the disk. Verified pieces
+ * stay cached, so blocks that uploading peers ask for soon after are served from memory. When the budget is used
+ * up the least recently used piece is evicted: a verified one is simply forgotten, an unfinished one has its
+ * runs of adjacent blocks written out first. Blocks that find no room at all are written through.
+ * <p>
+ * Buffers are allocated off-heap by default and reused for the life of the cache. A budget smaller than one
+ * piece turns the cache off, so every block is written through.
+ */
+public class BlockCache implements Closeable {
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    /**
+     * Told about each block of an unfinished piece once it has actually reached the disk.
+     */
+    public interface FlushListener {
+        void onBlockFlushed(int pieceIndex, int begin);
+    }
+
+    private static final class Entry {
+        final int pieceIndex;
+        final ByteBuffer buffer;
+        final long[] present;
+        final int blockCount;
+        final PieceHasher hasher = new PieceHasher(PeerConnection.BLOCK_SIZE);
+        int presentCount;
+        boolean verified;
+        boolean pinned;  // Being verified or written out, so it must not be evicted
+        boolean hashing;  // A thread is feeding blocks into the hasher, outside the lock
+
+        Entry(int pieceIndex, ByteBuffer buffer, int blockCount, int pieceSize) {
+            this.pieceIndex = pieceIndex;
+            this.buffer = buffer;
+            this.present = Bitfield.create(blockCount);
+            this.blockCount = blockCount;
+            hasher.reset(pieceSize);
+        }
+
+        boolean isComplete() {
+            return presentCount == blockCount;
+        }
+    }
+
+    private final Torrent torrent;
+    private final Storage storage;
+    private final FlushListener listener;
+    private final IntPredicate complete;
+    private final int maxBuffers;
+    private final boolean direct;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // LRU first
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int allocated;
+    private final LongAdder readHits = new LongAdder();
+    private final LongAdder readMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writtenThrough = new LongAdder();
+    private final LongAdder hashedOnArrival = new LongAdder();
+
+    /**
+     * @param budget   bytes of piece buffers to hold at most
+     * @param direct   whether to allocate the buffers off-heap
+     * @param complete whether a piece is verified and on disk already, so blocks still arriving for it are dropped
+     */
+    public BlockCache(Torrent torrent, Storage storage, long budget, boolean direct, FlushListener listener,
+                      IntPredicate complete) {
+        this.torrent = torrent;
+        this.storage = storage;
+        this.listener = listener;
+        this.complete = complete;
+        this.maxBuffers = (int) Math.min(torrent.getPieceCount(), budget / torrent.getPieceLength());
+        this.direct = direct;
+    }
+
+    /**
+     * Take a received block. It is cached if there is room, or written straight to disk otherwise, unless its
+     * piece is complete already: a late duplicate must neither start a new entry, which would later be written over
+     * the verified data, nor be written through. The buffer is consumed from its position to its limit either way.
+     */
+    public void writeBlock(int pieceIndex, int begin, ByteBuffer block) throws IOException {
+        int length = block.remaining();
+        if (complete.test(pieceIndex)) {
+            block.position(block.limit());
+            return;
+        }
+        if (begin % PeerConnection.BLOCK_SIZE == 0) {
+            Entry toHash = null;
+            boolean cached = false;
+            lock.lock();
+            try {
+                Entry entry = entries.get(pieceIndex);
+                if (entry == null) {
+                    entry = allocate(pieceIndex);
+                }
+                if (entry != null) {
+                    // Pinned and verified pieces are complete, so anything arriving for them is a duplicate
+                    int blockIndex = begin / PeerConnection.BLOCK_SIZE;
+                    if (!entry.verified && !entry.pinned && !Bitfield.get(entry.present, blockIndex)) {
+                        entry.buffer.put(begin, block, block.position(), length);
+                        Bitfield.set(entry.present, blockIndex);
+                        entry.presentCount++;
+                        entry.hasher.onBlockReceived(begin);
+                        // If another thread is hashing the piece, it picks this block up before it stops
+                        if (!entry.hashing && entry.hasher.canAdvance()) {
+                            entry.hashing = true;
+                            toHash = entry;
+                        }
+                    }
+                    block.position(block.limit());
+                    cached = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (toHash != null) {
+                hashArrived(toHash);
+            }
+            if (cached) {
+                return;
+            }
+        }
+        storage.writeBlock(pieceIndex, begin, block);
+        writes.increment();
+        writtenThrough.increment();
+        listener.onBlockFlushed(pieceIndex, begin);
+    }
+
+    /**
+     * Feed the blocks following the piece's hashed prefix into its digest, and keep going while more arrive.
+     * Hashing happens outside the lock, so other connections can keep writing blocks, including into this piece;
+     * the entry's hashing flag makes sure only one thread hashes it at a time. If the piece is evicted or
+     * discarded meanwhile, its digest is dropped with it and hashing stops.
+     */
+    private void hashArrived(Entry entry) {
+        int end;
+        lock.lock();
+        try {
+            end = entry.hasher.getHashableEnd();
+        } finally {
+            lock.unlock();
+        }
+        while (true) {
+            entry.hasher.hash(entry.buffer, end);
+            lock.lock();
+            try {
+                if (!entry.hasher.canAdvance() || entries.get(entry.pieceIndex) != entry) {
+                    entry.hashing = false;
+                    return;
+                }
+                end = entry.hasher.getHashableEnd();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Find a buffer for a new piece: a free one, a newly allocated one while under budget, or one taken from the
+     * least recently used piece that can be evicted. Called with the lock held.
+     *
+     * @return the new entry, or {@code null} if every buffer is in use
+     */
+    private Entry allocate(int pieceIndex) throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null && allocated < maxBuffers) {
+            int pieceLength = torrent.getPieceLength();
+            buffer = direct ? ByteBuffer.allocateDirect(pieceLength) : ByteBuffer.allocate(pieceLength);
+            allocated++;
+        }
+        if (buffer == null) {
+            buffer = evict();
+        }
+        if (buffer == null) {
+            return null;
+        }
+        int pieceSize = torrent.getPieceSize(pieceIndex);
+        int blockCount = (pieceSize + PeerConnection.BLOCK_SIZE - 1) / PeerConnection.BLOCK_SIZE;
+        Entry entry = new Entry(pieceIndex, buffer.clear(), blockCount, pieceSize);
+        entries.put(pieceIndex, entry);
+        return entry;
+    }
+
+    /**
+     * Free the buffer of the least recently used verified piece or, failing that, of the least recently used
+     * unfinished one after writing out its blocks. Called with the lock held.
+     */
+    private ByteBuffer evict() throws IOException {
+        for (boolean verified : new boolean[]{true, false}) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.verified == verified && !entry.pinned) {
+                    if (!verified) {
+                        writeRuns(entry);
+                    }
+                    it.remove();
+                    evictions.increment();
+                    return entry.buffer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write an unfinished piece's blocks to disk, each run of adjacent blocks as a single write.
+     */
+    private void writeRuns(Entry entry) throws IOException {
+        int pieceSize = torrent.getPieceSize(entry.pieceIndex);
+        for (int block = 0; block < entry.blockCount; ) {
+            if (!Bitfield.get(entry.present, block)) {
+                block++;
+                continue;
+            }
+            int first = block;
+            while (block < entry.blockCount && Bitfield.get(entry.present, block)) {
+                block++;
+            }
+            int begin = first * PeerConnection.BLOCK_SIZE;
+            int end = Math.min(pieceSize, block * PeerConnection.BLOCK_SIZE);
+            storage.writeBlock(entry.pieceIndex, begin, entry.buffer.slice(begin, end - begin));
+            writes.increment();
+            for (int flushed = first; flushed < block; flushed++) {
+                listener.onBlockFlushed(entry.pieceIndex, flushed * PeerConnection.BLOCK_SIZE);
+            }
+        }
+    }
+
+    /**
+     * The SHA-1 of a complete piece that was hashed as its blocks arrived. Like {@link #getCompletePiece}, this
+     * keeps the piece in the cache until {@link #onVerified} or {@link #discard}.
+     *
+     * @return the digest, or {@code null} if the piece is not cached whole or its hashing has not caught up yet
+     */
+    public byte[] getPieceDigest(int pieceIndex) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(pieceIndex);
+            if (entry == null || entry.verified || entry.pinned || entry.hashing || !entry.isComplete()
+                    || !entry.hasher.isComplete()) {
+                return null;
+            }
+            entry.pinned = true;
+            hashedOnArrival.increment();
+            return entry.hasher.digest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A complete piece to hash from memory. The piece stays in the cache until {@link #onVerified} or
+     * {@link #discard}. If only part of it is cached, that part is written out so the whole piece can be read
+     * back from storage instead.
+     *
+     * @return a read-only view of the piece, or {@code null} to read it from storage
+     */
+    public ByteBuffer getCompletePiece(int pieceIndex) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = entries.get(pieceIndex);
+            if (entry == null || entry.verified || entry.pinned) {
+                return null;
+            }
+            if (!entry.isComplete()) {
+                writeRuns(entry);
+                entries.remove(pieceIndex);
+                free.push(entry.buffer);
+                return null;
+            }
+            entry.pinned = true;
+            return entry.buffer.asReadOnlyBuffer().position(0).limit(torrent.getPieceSize(pieceIndex));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A piece passed its hash check: write it out in one go if it is cached, and keep it for uploads. Returns
+     * once the piece is on disk.
+     */
+    public void onVerified(int pieceIndex) throws IOException {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(pieceIndex);
+            if (entry == null || entry.verified || !entry.isComplete()) {
+                return;
+            }
+            entry.pinned = true;
+        } finally {
+            lock.unlock();
+        }
+        // Pinned entries are left alone, so the write can go ahead without holding up other connections
+        boolean written = false;
+        try {
+            storage.writeBlock(pieceIndex, 0, entry.buffer.slice(0, torrent.getPieceSize(pieceIndex)));
+            writes.increment();
+            written = true;
+        } finally {
+            lock.lock();
+            try {
+                entry.pinned = false;
+                entry.verified = written;
+                if (!written) {
+                    entries.remove(pieceIndex);
+                    free.push(entry.buffer);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drop a piece that failed its hash check, so it is fetched again from scratch.
+     */
+    public void discard(int pieceIndex) {
+        lock.lock();
+        try {
+            Entry entry = entries.remove(pieceIndex);
+            if (entry != null) {
+                free.push(entry.buffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy part of a verified piece into {@code destination} if it is cached, counting the lookup as a hit or miss.
+     *
+     * @return false if the caller must read the data from storage instead
+     */
+    public boolean read(int pieceIndex, int begin, int length, ByteBuffer destination) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(pieceIndex);
+            if (entry == null || !entry.verified) {
+                readMisses.increment();
+                return false;
+            }
+            destination.put(entry.buffer.slice(begin, length));
+            readHits.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Storage#transferTo}; for blocks that are not cached.
+     */
+    public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        return storage.transferTo(offset, length, target);
+    }
+
+    /**
+     * Write out every unfinished piece, e.g. before saving resume state. Verified pieces are already on disk.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            List<Integer> flushed = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (!entry.verified && !entry.pinned) {
+                    writeRuns(entry);
+                    flushed.add(entry.pieceIndex);
+                }
+            }
+            for (int pieceIndex : flushed) {
+                free.push(entries.remove(pieceIndex).buffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCachedPieces() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return (long) maxBuffers * torrent.getPieceLength();
+    }
+
+    public long getReadHits() {
+        return readHits.sum();
+    }
+
+    public long getReadMisses() {
+        return readMisses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Writes issued to storage, each covering one or more adjacent blocks.
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Blocks written straight to disk because no buffer was free.
+     */
+    public long getWrittenThrough() {
+        return writtenThrough.sum();
+    }
+
+    /**
+     * Pieces whose digest was ready from hashing their blocks as they arrived, so verifying them took no second
+     * pass over the data.
+     */
+    public long getHashedOnArrival() {
+        return hashedOnArrival.sum();
+    }
+
+    /**
+     * Write out unfinished pieces and release every buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        lock.lock();
+        try {
+            entries.clear();
+            free.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
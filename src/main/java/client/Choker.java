@@ -0,0 +1,150 @@
+package client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which peers may download from us, the tit-for-tat algorithm of the original client.
+ * <p>
+ * Every {@value #ROUND_SECONDS} seconds the {@value #UPLOAD_SLOTS} interested peers that sent us the most data
+ * during the last round are unchoked; once the download is complete there is nothing left to reciprocate, so the
+ * peers we sent the most to are kept instead, which favours those that can take data fastest. One more interested
+ * peer, picked at random and rotated every {@value #OPTIMISTIC_ROUNDS} rounds, is unchoked optimistically so that
+ * new peers get a chance to prove themselves and we may discover faster ones than the current set.
+ */
+public class Choker implements Closeable {
+    private static final int UPLOAD_SLOTS = 3;
+    private static final int ROUND_SECONDS = 10;
+    private static final int OPTIMISTIC_ROUNDS = 3;
+
+    private final PiecePicker picker;
+    private final List<NioPeerSession> sessions = new ArrayList<>();
+    private final Map<NioPeerSession, Long> lastCounts = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private ScheduledFuture<?> rounds;
+    private NioPeerSession optimistic;
+    private int round;
+
+    public Choker(PiecePicker picker) {
+        this(picker, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "choker");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Run the rounds on a scheduler shared with other torrents, which is left running on {@link #close()}.
+     */
+    public Choker(PiecePicker picker, ScheduledExecutorService scheduler) {
+        this(picker, scheduler, false);
+    }
+
+    private Choker(PiecePicker picker, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.picker = picker;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    /**
+     * Start the rounds; the first runs {@value #ROUND_SECONDS} seconds from now.
+     */
+    public synchronized void start() {
+        if (rounds == null) {
+            rounds = scheduler.scheduleWithFixedDelay(this::rechoke, ROUND_SECONDS, ROUND_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void add(NioPeerSession session) {
+        sessions.add(session);
+        lastCounts.put(session, 0L);
+    }
+
+    public synchronized void remove(NioPeerSession session) {
+        sessions.remove(session);
+        lastCounts.remove(session);
+        if (session == optimistic) {
+            optimistic = null;
+        }
+        fillSlots();
+    }
+
+    /**
+     * A peer's interest changed. Slots that are free, or freed by a peer losing interest, are given to waiting
+     * peers straight away rather than at the next round.
+     */
+    public synchronized void onInterestChanged(NioPeerSession session) {
+        if (!session.isPeerInterested()) {
+            session.setUnchoked(false);
+            if (session == optimistic) {
+                optimistic = null;
+            }
+        }
+        fillSlots();
+    }
+
+    private void fillSlots() {
+        int unchoked = 0;
+        for (NioPeerSession session : sessions) {
+            if (session.isPeerInterested() && session.isUnchoked()) {
+                unchoked++;
+            }
+        }
+        for (NioPeerSession session : sessions) {
+            if (unchoked == UPLOAD_SLOTS + 1) {
+                return;
+            }
+            if (session.isPeerInterested() && !session.isUnchoked()) {
+                session.setUnchoked(true);
+                unchoked++;
+            }
+        }
+    }
+
+    /**
+     * Run one round: rank the interested peers by what they transferred since the last round and unchoke the best.
+     */
+    synchronized void rechoke() {
+        boolean seeding = picker.isComplete();
+        Map<NioPeerSession, Long> rates = new HashMap<>();
+        List<NioPeerSession> interested = new ArrayList<>();
+        for (NioPeerSession session : sessions) {
+            long count = seeding ? session.getBytesUploaded() : session.getBytesDownloaded();
+            rates.put(session, count - lastCounts.getOrDefault(session, count));
+            lastCounts.put(session, count);
+            if (session.isPeerInterested()) {
+                interested.add(session);
+            }
+        }
+        interested.sort(Comparator.comparingLong(rates::get).reversed());
+
+        List<NioPeerSession> regular = interested.subList(0, Math.min(UPLOAD_SLOTS, interested.size()));
+        if (round++ % OPTIMISTIC_ROUNDS == 0 || optimistic == null || !optimistic.isPeerInterested()) {
+            List<NioPeerSession> candidates = interested.subList(regular.size(), interested.size());
+            optimistic = candidates.isEmpty() ? null : candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        }
+        for (NioPeerSession session : sessions) {
+            session.setUnchoked(regular.contains(session) || session == optimistic);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (rounds != null) {
+            rounds.cancel(false);
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,721 @@
+package client;
+
+import util.BencodeCodec;
+import util.BencodeView;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A node of the Mainline DHT (BEP 5), which finds peers for torrents without a tracker and answers other nodes'
+ * queries in turn.
+ * <p>
+ * Queries are KRPC messages, bencoded dictionaries in single UDP datagrams, matched to their responses by a
+ * transaction ID. A lookup walks towards the target ID iteratively, with up to {@value #ALPHA} queries in flight at
+ * a time to the closest nodes not yet asked, until the {@value DhtRoutingTable#K} closest nodes it has heard of
+ * have all answered or failed. Nodes only enter the routing table by answering one of our queries; one that queries
+ * us first is pinged, as the ID in a query proves nothing. The node's ID and the nodes of its routing table can be
+ * saved to a file, so that the next start can skip bootstrapping from scratch and other nodes still find us where
+ * they left us. IPv4 only.
+ */
+public class DhtNode implements Closeable {
+    public static final int DEFAULT_PORT = 6881;
+    public static final List<String> DEFAULT_BOOTSTRAP = List.of("router.bittorrent.com:6881", "dht.transmissionbt.com:6881");
+    private static final int ALPHA = 3;
+    private static final long QUERY_TIMEOUT_MILLIS = 2000;
+    private static final long TOKEN_ROTATION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long PEER_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int MAX_PEERS_PER_TORRENT = 200;
+    private static final int MAX_TORRENTS = 2000;
+    private static final int MAX_VALUES = 50;
+    private static final int TOKEN_LENGTH = 8;
+    private static final int MAX_PACKET_SIZE = 2048;
+    private static final int ERROR_PROTOCOL = 203;
+    private static final int ERROR_METHOD_UNKNOWN = 204;
+
+    private final DatagramChannel channel;
+    private final DhtRoutingTable table;
+    private final byte[] ownId;
+    private final Path nodeCache;
+    private final List<InetSocketAddress> seeds = new ArrayList<>();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransaction = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+    // Touched only by the receiver thread, which answers all queries
+    private final Map<ByteBuffer, LinkedHashMap<InetSocketAddress, Long>> peerStore = new HashMap<>();
+    private byte[] secret = new byte[8];
+    private byte[] previousSecret = new byte[8];
+    private long secretRotatedAt;
+    private final Thread receiver;
+    private volatile boolean closed;
+
+    /**
+     * A query sent and not answered yet.
+     */
+    private record Pending(InetSocketAddress address, CompletableFuture<BencodeView> response) {
+    }
+
+    /**
+     * Bind to a UDP port and start answering queries.
+     *
+     * @param port      the port to listen on, 0 for any
+     * @param nodeCache where to load the node ID and known nodes from and save them to on close, or {@code null}
+     */
+    public DhtNode(int port, Path nodeCache) throws IOException {
+        this.nodeCache = nodeCache;
+        byte[] id = new byte[DhtRoutingTable.ID_LENGTH];
+        random.nextBytes(id);
+        byte[] cachedNodes = new byte[0];
+        if (nodeCache != null) {
+            try {
+                BencodeView cache = BencodeView.of(Files.readAllBytes(nodeCache));
+                byte[] cachedId = bytes(cache.get("id"));
+                if (cachedId.length == DhtRoutingTable.ID_LENGTH) {
+                    id = cachedId;
+                }
+                cachedNodes = bytes(cache.get("nodes"));
+            } catch (NoSuchFileException e) {
+                // First start
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable DHT node cache " + nodeCache + ": " + e.getMessage());
+            }
+        }
+        this.ownId = id;
+        this.table = new DhtRoutingTable(id);
+        // Cached nodes are only contacted, not trusted, until they answer
+        seeds.addAll(parseNodes(ByteBuffer.wrap(cachedNodes), null));
+        random.nextBytes(secret);
+        random.nextBytes(previousSecret);
+        secretRotatedAt = System.currentTimeMillis();
+
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        this.receiver = Thread.ofPlatform().name("dht-receiver").daemon().start(this::receive);
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public byte[] getOwnId() {
+        return ownId.clone();
+    }
+
+    public DhtRoutingTable getRoutingTable() {
+        return table;
+    }
+
+    /**
+     * Join the DHT by looking up our own ID, starting from the given routers and any nodes saved from the last run,
+     * which fills the routing table with the nodes around us. Routers given as {@code host:port} that cannot be
+     * resolved are skipped.
+     *
+     * @return the number of nodes in the routing table afterwards
+     */
+    public int bootstrap(List<String> routers) {
+        List<InetSocketAddress> resolved = new ArrayList<>();
+        for (String router : routers) {
+            int colon = router.lastIndexOf(':');
+            try {
+                resolved.add(new InetSocketAddress(InetAddress.getByName(router.substring(0, colon)),
+                        Integer.parseInt(router.substring(colon + 1))));
+            } catch (UnknownHostException | RuntimeException e) {
+                System.err.println("Skipping DHT bootstrap node " + router + ": " + e.getMessage());
+            }
+        }
+        synchronized (seeds) {
+            seeds.addAll(resolved);
+        }
+        new Lookup(ownId, false).run(null);
+        return table.size();
+    }
+
+    /**
+     * Find peers for a torrent, handing each one on as it arrives, then announce to the closest nodes that we are
+     * a peer too.
+     *
+     * @param announcePort the port we accept peers on, or 0 not to announce
+     * @return how many nodes were announced to
+     */
+    public int findPeers(byte[] infoHash, int announcePort, Consumer<InetSocketAddress> onPeer) {
+        Lookup lookup = new Lookup(infoHash, true);
+        lookup.run(onPeer);
+        if (announcePort <= 0) {
+            return 0;
+        }
+        int announced = 0;
+        for (Candidate candidate : lookup.closestWithTokens()) {
+            Map<String, Object> arguments = new TreeMap<>();
+            arguments.put("info_hash", infoHash);
+            arguments.put("port", (long) announcePort);
+            arguments.put("implied_port", 0L);
+            arguments.put("token", candidate.token);
+            query(candidate.address, "announce_peer", arguments, candidate.id);
+            announced++;
+        }
+        return announced;
+    }
+
+    /**
+     * Save our ID and the nodes of the routing table for the next start, replacing the file atomically.
+     */
+    public void save() throws IOException {
+        if (nodeCache == null) {
+            return;
+        }
+        Map<String, Object> cache = new TreeMap<>();
+        cache.put("id", ownId);
+        cache.put("nodes", table.toCompact());
+        Path temporary = nodeCache.resolveSibling(nodeCache.getFileName() + ".tmp");
+        Files.write(temporary, BencodeCodec.encodeBencode(cache));
+        Files.move(temporary, nodeCache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Save the node cache and stop answering queries; lookups still running fail their outstanding queries.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            save();
+        } finally {
+            channel.close();
+            try {
+                receiver.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Pending query : pending.values()) {
+                query.response.completeExceptionally(new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * Send a query, completing the returned future with the response's {@code r} dictionary, or exceptionally on
+     * an error response or after {@code QUERY_TIMEOUT_MILLIS}. Timeouts count against the node in the routing
+     * table if its ID is known.
+     */
+    private CompletableFuture<BencodeView> query(InetSocketAddress address, String method, Map<String, Object> arguments,
+                                                 byte[] nodeId) {
+        int transaction = nextTransaction.getAndIncrement() & 0xFFFF;
+        CompletableFuture<BencodeView> response = new CompletableFuture<>();
+        pending.put(transaction, new Pending(address, response));
+        response.orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((result, failure) -> {
+            pending.remove(transaction);
+            if (failure != null && nodeId != null) {
+                table.onFailed(nodeId, 0);
+            }
+        });
+
+        arguments.put("id", ownId);
+        Map<String, Object> message = new TreeMap<>();
+        message.put("t", new byte[]{(byte) (transaction >> 8), (byte) transaction});
+        message.put("y", "q");
+        message.put("q", method);
+        message.put("a", arguments);
+        try {
+            send(message, address);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    private void send(Map<String, Object> message, SocketAddress address) throws IOException {
+        channel.send(ByteBuffer.wrap(BencodeCodec.encodeBencode(message)), address);
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        while (!closed) {
+            InetSocketAddress source;
+            try {
+                buffer.clear();
+                source = (InetSocketAddress) channel.receive(buffer);
+            } catch (IOException e) {
+                return;  // Closed
+            }
+            buffer.flip();
+            try {
+                handle(BencodeView.of(ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.limit()))), source);
+            } catch (IOException | RuntimeException e) {
+                // Malformed message, or the response could not be sent; nothing to do about either
+            }
+        }
+    }
+
+    private void handle(BencodeView message, InetSocketAddress source) throws IOException {
+        if (message.getType() != BencodeView.Type.DICTIONARY || !(source.getAddress() instanceof Inet4Address)) {
+            return;
+        }
+        byte[] transaction = bytes(message.get("t"));
+        String type = message.get("y") == null ? "" : message.get("y").asString();
+        switch (type) {
+            case "q" -> onQuery(message, transaction, source);
+            case "r", "e" -> {
+                if (transaction.length != 2) {
+                    return;
+                }
+                Pending query = pending.get(((transaction[0] & 0xFF) << 8) | (transaction[1] & 0xFF));
+                // A response must come from where the query went, so that no one else can answer for a node
+                if (query == null || !query.address.equals(source)) {
+                    return;
+                }
+                if (type.equals("e")) {
+                    query.response.completeExceptionally(new IOException("DHT node " + source + " returned an error"));
+                    return;
+                }
+                BencodeView response = message.get("r");
+                byte[] id = response == null || response.getType() != BencodeView.Type.DICTIONARY ? new byte[0] : bytes(response.get("id"));
+                if (id.length != DhtRoutingTable.ID_LENGTH) {
+                    query.response.completeExceptionally(new IOException("Malformed response from DHT node " + source));
+                    return;
+                }
+                table.onSeen(id, 0, toInt(source.getAddress()), source.getPort());
+                query.response.complete(response);
+            }
+            default -> {
+                // Not KRPC
+            }
+        }
+    }
+
+    private void onQuery(BencodeView message, byte[] transaction, InetSocketAddress source) throws IOException {
+        // Before the secrets are read, so that a token handed out is good for two full rotation periods
+        rotateSecret();
+        BencodeView arguments = message.get("a");
+        byte[] id = arguments == null || arguments.getType() != BencodeView.Type.DICTIONARY ? new byte[0] : bytes(arguments.get("id"));
+        if (id.length != DhtRoutingTable.ID_LENGTH) {
+            sendError(transaction, source, ERROR_PROTOCOL, "Missing node ID");
+            return;
+        }
+        if (table.onQuery(id, 0, toInt(source.getAddress()), source.getPort()) && !isQueried(source)) {
+            // Only an answer to a query of ours shows the node is where it claims to be; handle() adds it then
+            query(source, "ping", new TreeMap<>(), null);
+        }
+
+        Map<String, Object> response = new TreeMap<>();
+        response.put("id", ownId);
+        String method = message.get("q") == null ? "" : message.get("q").asString();
+        switch (method) {
+            case "ping" -> {
+            }
+            case "find_node" -> {
+                byte[] target = bytes(arguments.get("target"));
+                if (target.length != DhtRoutingTable.ID_LENGTH) {
+                    sendError(transaction, source, ERROR_PROTOCOL, "Invalid target");
+                    return;
+                }
+                response.put("nodes", table.closest(target, DhtRoutingTable.K));
+            }
+            case "get_peers" -> {
+                byte[] infoHash = bytes(arguments.get("info_hash"));
+                if (infoHash.length != DhtRoutingTable.ID_LENGTH) {
+                    sendError(transaction, source, ERROR_PROTOCOL, "Invalid info_hash");
+                    return;
+                }
+                response.put("token", token(source.getAddress(), secret));
+                List<byte[]> values = storedPeers(infoHash);
+                if (values.isEmpty()) {
+                    response.put("nodes", table.closest(infoHash, DhtRoutingTable.K));
+                } else {
+                    response.put("values", values);
+                }
+            }
+            case "announce_peer" -> {
+                byte[] infoHash = bytes(arguments.get("info_hash"));
+                byte[] token = bytes(arguments.get("token"));
+                BencodeView impliedPort = arguments.get("implied_port");
+                BencodeView portView = arguments.get("port");
+                int port = impliedPort != null && impliedPort.asLong() != 0 ? source.getPort()
+                        : portView == null ? 0 : (int) portView.asLong();
+                if (infoHash.length != DhtRoutingTable.ID_LENGTH || port <= 0 || port > 0xFFFF) {
+                    sendError(transaction, source, ERROR_PROTOCOL, "Invalid announce");
+                    return;
+                }
+                if (!isValidToken(token, source.getAddress())) {
+                    sendError(transaction, source, ERROR_PROTOCOL, "Bad token");
+                    return;
+                }
+                storePeer(infoHash, new InetSocketAddress(source.getAddress(), port));
+            }
+            default -> {
+                sendError(transaction, source, ERROR_METHOD_UNKNOWN, "Method Unknown");
+                return;
+            }
+        }
+        Map<String, Object> reply = new TreeMap<>();
+        reply.put("t", transaction);
+        reply.put("y", "r");
+        reply.put("r", response);
+        send(reply, source);
+    }
+
+    private boolean isQueried(InetSocketAddress address) {
+        for (Pending query : pending.values()) {
+            if (query.address.equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendError(byte[] transaction, InetSocketAddress source, int code, String text) throws IOException {
+        Map<String, Object> reply = new TreeMap<>();
+        reply.put("t", transaction);
+        reply.put("y", "e");
+        reply.put("e", List.of((long) code, text));
+        send(reply, source);
+    }
+
+    private List<byte[]> storedPeers(byte[] infoHash) {
+        LinkedHashMap<InetSocketAddress, Long> peers = peerStore.get(ByteBuffer.wrap(infoHash));
+        if (peers == null) {
+            return List.of();
+        }
+        long now = System.currentTimeMillis();
+        peers.values().removeIf(expiry -> expiry < now);
+        List<byte[]> values = new ArrayList<>();
+        for (InetSocketAddress peer : peers.keySet()) {
+            values.add(ByteBuffer.allocate(6).put(peer.getAddress().getAddress()).putChar((char) peer.getPort()).array());
+        }
+        // A random sample when there are more than fit in a datagram
+        Collections.shuffle(values, random);
+        return values.subList(0, Math.min(MAX_VALUES, values.size()));
+    }
+
+    private void storePeer(byte[] infoHash, InetSocketAddress peer) {
+        ByteBuffer key = ByteBuffer.wrap(infoHash.clone());
+        if (!peerStore.containsKey(key) && peerStore.size() >= MAX_TORRENTS) {
+            long now = System.currentTimeMillis();
+            peerStore.values().removeIf(peers -> peers.values().stream().allMatch(expiry -> expiry < now));
+            if (peerStore.size() >= MAX_TORRENTS) {
+                return;
+            }
+        }
+        LinkedHashMap<InetSocketAddress, Long> peers = peerStore.computeIfAbsent(key, k -> new LinkedHashMap<>());
+        peers.remove(peer);  // Re-announcing moves it to the end, so the oldest is evicted first
+        peers.put(peer, System.currentTimeMillis() + PEER_EXPIRY_MILLIS);
+        if (peers.size() > MAX_PEERS_PER_TORRENT) {
+            Iterator<InetSocketAddress> oldest = peers.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * A token proves to us later that an announcing node asked from the same address recently: a hash of its IP
+     * and a secret that changes every {@code TOKEN_ROTATION_MILLIS}, with tokens from the previous secret still
+     * accepted. The secrets are rotated when a query comes in.
+     */
+    private static byte[] token(InetAddress address, byte[] key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(key);
+            sha1.update(address.getAddress());
+            return Arrays.copyOf(sha1.digest(), TOKEN_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private boolean isValidToken(byte[] token, InetAddress address) {
+        return Arrays.equals(token, token(address, secret)) || Arrays.equals(token, token(address, previousSecret));
+    }
+
+    private void rotateSecret() {
+        if (System.currentTimeMillis() - secretRotatedAt >= TOKEN_ROTATION_MILLIS) {
+            previousSecret = secret;
+            secret = new byte[8];
+            random.nextBytes(secret);
+            secretRotatedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Parse compact node info, skipping nodes with our own ID or port 0.
+     *
+     * @param ids if not {@code null}, receives the IDs in the same order as the addresses
+     */
+    private List<InetSocketAddress> parseNodes(ByteBuffer nodes, List<byte[]> ids) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        while (nodes.remaining() >= DhtRoutingTable.COMPACT_NODE_LENGTH) {
+            byte[] id = new byte[DhtRoutingTable.ID_LENGTH];
+            byte[] ip = new byte[4];
+            nodes.get(id).get(ip);
+            int port = nodes.getChar();
+            if (port == 0 || Arrays.equals(id, ownId)) {
+                continue;
+            }
+            try {
+                addresses.add(new InetSocketAddress(InetAddress.getByAddress(ip), port));
+            } catch (UnknownHostException e) {
+                continue;  // Cannot happen for four bytes
+            }
+            if (ids != null) {
+                ids.add(id);
+            }
+        }
+        return addresses;
+    }
+
+    private static byte[] bytes(BencodeView value) {
+        if (value == null || value.getType() != BencodeView.Type.STRING) {
+            return new byte[0];
+        }
+        ByteBuffer bytes = value.asBytes();
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        return copy;
+    }
+
+    private static int toInt(InetAddress address) {
+        return ByteBuffer.wrap(address.getAddress()).getInt();
+    }
+
+    /**
+     * A node a lookup has heard of.
+     */
+    private static final class Candidate {
+        final byte[] id;
+        final InetSocketAddress address;
+        boolean queried;
+        boolean responded;
+        boolean failed;
+        byte[] token;
+
+        Candidate(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    /**
+     * One iterative lookup of the nodes closest to a target, for {@code find_node} or {@code get_peers}. The
+     * calling thread sends the queries and waits, the receiver thread hands in the responses. Guarded by a lock
+     * rather than {@code synchronized}, which would pin a virtual thread's carrier while it waits.
+     */
+    private final class Lookup {
+        private final byte[] target;
+        private final boolean forPeers;
+        private final List<Candidate> candidates = new ArrayList<>();  // Sorted, closest first
+        private final Set<ByteBuffer> known = new HashSet<>();
+        private final ArrayDeque<InetSocketAddress> unknownIds = new ArrayDeque<>();
+        private final Set<InetSocketAddress> peers = new HashSet<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition answered = lock.newCondition();
+        private int inFlight;
+
+        Lookup(byte[] target, boolean forPeers) {
+            this.target = target;
+            this.forPeers = forPeers;
+            List<byte[]> ids = new ArrayList<>();
+            List<InetSocketAddress> closest = parseNodes(ByteBuffer.wrap(table.closest(target, DhtRoutingTable.K)), ids);
+            for (int i = 0; i < closest.size(); i++) {
+                add(ids.get(i), closest.get(i));
+            }
+            if (closest.size() < DhtRoutingTable.K) {
+                // Bootstrap routers and cached nodes have no ID we could trust, they are asked first
+                synchronized (seeds) {
+                    unknownIds.addAll(seeds);
+                }
+            }
+        }
+
+        void run(Consumer<InetSocketAddress> onPeer) {
+            String method = forPeers ? "get_peers" : "find_node";
+            lock.lock();
+            try {
+                while (!closed) {
+                    while (inFlight < ALPHA) {
+                        Candidate next = next();
+                        if (next == null) {
+                            break;
+                        }
+                        next.queried = true;
+                        inFlight++;
+                        Map<String, Object> arguments = new TreeMap<>();
+                        arguments.put(forPeers ? "info_hash" : "target", target);
+                        query(next.address, method, arguments, next.id)
+                                .whenComplete((response, failure) -> onAnswer(next, response, onPeer));
+                    }
+                    if (inFlight == 0) {
+                        return;
+                    }
+                    answered.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The next node to ask: a seed, or else the closest candidate not asked yet, if it is among the
+         * {@code K} closest that have not failed. Once those have all answered the lookup has converged.
+         */
+        private Candidate next() {
+            InetSocketAddress seed = unknownIds.poll();
+            if (seed != null) {
+                return new Candidate(null, seed);
+            }
+            int alive = 0;
+            for (Candidate candidate : candidates) {
+                if (candidate.failed) {
+                    continue;
+                }
+                if (!candidate.queried) {
+                    return candidate;
+                }
+                if (++alive >= DhtRoutingTable.K) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        private void onAnswer(Candidate candidate, BencodeView response, Consumer<InetSocketAddress> onPeer) {
+            List<InetSocketAddress> found = new ArrayList<>();
+            lock.lock();
+            try {
+                inFlight--;
+                if (response == null) {
+                    candidate.failed = true;
+                    return;
+                }
+                candidate.responded = true;
+                candidate.token = bytes(response.get("token"));
+                if (candidate.id == null) {
+                    // A seed answered; now that we know its ID it counts towards the closest nodes like any other
+                    Candidate identified = add(bytes(response.get("id")), candidate.address);
+                    if (identified != null) {
+                        identified.queried = identified.responded = true;
+                        identified.token = candidate.token;
+                    }
+                }
+                BencodeView nodes = response.get("nodes");
+                if (nodes != null && nodes.getType() == BencodeView.Type.STRING) {
+                    List<byte[]> ids = new ArrayList<>();
+                    List<InetSocketAddress> addresses = parseNodes(nodes.asBytes(), ids);
+                    for (int i = 0; i < addresses.size(); i++) {
+                        add(ids.get(i), addresses.get(i));
+                    }
+                }
+                BencodeView values = forPeers ? response.get("values") : null;
+                if (values != null && values.getType() == BencodeView.Type.LIST) {
+                    for (BencodeView value : values.elements()) {
+                        byte[] compact = bytes(value);
+                        if (compact.length != 6) {
+                            continue;
+                        }
+                        InetSocketAddress peer = new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOf(compact, 4)),
+                                ByteBuffer.wrap(compact, 4, 2).getChar());
+                        if (peer.getPort() != 0 && peers.add(peer)) {
+                            found.add(peer);
+                        }
+                    }
+                }
+            } catch (UnknownHostException | RuntimeException e) {
+                // A malformed response only loses what it would have told us
+            } finally {
+                answered.signalAll();
+                lock.unlock();
+            }
+            if (onPeer != null) {
+                found.forEach(onPeer);
+            }
+        }
+
+        /**
+         * Add a node, unless it is known already.
+         *
+         * @return the new candidate, or {@code null}
+         */
+        private Candidate add(byte[] id, InetSocketAddress address) {
+            if (id.length != DhtRoutingTable.ID_LENGTH || Arrays.equals(id, ownId) || !known.add(ByteBuffer.wrap(id))) {
+                return null;
+            }
+            Candidate candidate = new Candidate(id, address);
+            int at = 0;
+            while (at < candidates.size() && compareDistance(candidates.get(at).id, id) < 0) {
+                at++;
+            }
+            candidates.add(at, candidate);
+            return candidate;
+        }
+
+        private int compareDistance(byte[] a, byte[] b) {
+            for (int i = 0; i < DhtRoutingTable.ID_LENGTH; i++) {
+                int da = (a[i] ^ target[i]) & 0xFF;
+                int db = (b[i] ^ target[i]) & 0xFF;
+                if (da != db) {
+                    return Integer.compare(da, db);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * The closest nodes that answered with a token, to announce to.
+         */
+        List<Candidate> closestWithTokens() {
+            lock.lock();
+            try {
+                List<Candidate> closest = new ArrayList<>();
+                for (Candidate candidate : candidates) {
+                    if (candidate.responded && candidate.token != null && candidate.token.length > 0) {
+                        closest.add(candidate);
+                        if (closest.size() == DhtRoutingTable.K) {
+                            break;
+                        }
+                    }
+                }
+                return closest;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Kademlia routing table of a {@link DhtNode}: up to {@value #K} nodes for each length of ID prefix they share
+ * with our own ID, so that we know many nodes close to us and ever fewer further away.
+ * <p>
+ * Nodes are kept in flat primitive arrays, {@value #K} slots per bucket, with each 160-bit ID stored as a run of
+ * 20 bytes in one shared array and each address as an IPv4 {@code int} and a port. Within a bucket the node heard
+ * from least recently comes first. A full bucket only takes a new node in place of one that stopped answering,
+ * as long-lived nodes are the most likely to stay.
+ */
+public class DhtRoutingTable {
+    public static final int K = 8;
+    public static final int ID_LENGTH = 20;
+    public static final int COMPACT_NODE_LENGTH = ID_LENGTH + 6;
+    private static final int BUCKETS = ID_LENGTH * 8;
+    private static final int MAX_FAILURES = 3;
+
+    private final byte[] ownId;
+    private final byte[] ids = new byte[BUCKETS * K * ID_LENGTH];
+    private final int[] addresses = new int[BUCKETS * K];
+    private final char[] ports = new char[BUCKETS * K];
+    private final long[] lastSeen = new long[BUCKETS * K];
+    private final byte[] failures = new byte[BUCKETS * K];
+    private final int[] bucketSizes = new int[BUCKETS];
+    private int size;
+
+    public DhtRoutingTable(byte[] ownId) {
+        if (ownId.length != ID_LENGTH) {
+            throw new IllegalArgumentException("Node IDs are " + ID_LENGTH + " bytes");
+        }
+        this.ownId = ownId.clone();
+    }
+
+    /**
+     * A node answered us, or is otherwise known to be alive: add it, or mark it as just seen.
+     *
+     * @param id     buffer holding the node's ID at {@code offset}
+     * @param address the node's IPv4 address
+     * @return whether the node is in the table now
+     */
+    public synchronized boolean onSeen(byte[] id, int offset, int address, int port) {
+        int bucket = bucketOf(id, offset);
+        if (bucket < 0 || port == 0) {
+            return false;  // Our own ID, or a node nobody can reach
+        }
+        int first = bucket * K;
+        int slot = find(id, offset, bucket);
+        if (slot < 0) {
+            if (bucketSizes[bucket] == K) {
+                int worst = -1;
+                for (int i = first; i < first + K; i++) {
+                    if (failures[i] > 0 && (worst < 0 || failures[i] > failures[worst])) {
+                        worst = i;
+                    }
+                }
+                if (worst < 0) {
+                    return false;
+                }
+                remove(worst, bucket);
+            }
+            slot = first + bucketSizes[bucket]++;
+            size++;
+            System.arraycopy(id, offset, ids, slot * ID_LENGTH, ID_LENGTH);
+        } else {
+            // Move it to the end, as the most recently seen
+            byte[] nodeId = Arrays.copyOfRange(ids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH);
+            remove(slot, bucket);
+            slot = first + bucketSizes[bucket]++;
+            size++;
+            System.arraycopy(nodeId, 0, ids, slot * ID_LENGTH, ID_LENGTH);
+        }
+        addresses[slot] = address;
+        ports[slot] = (char) port;
+        lastSeen[slot] = System.currentTimeMillis();
+        failures[slot] = 0;
+        return true;
+    }
+
+    /**
+     * A node sent us a query. Anyone can claim any ID in a query, so it does not add the node (BEP 5): only one
+     * already in the table at the same address counts as just seen.
+     *
+     * @return whether the node is unknown but has a place in the table if it answers a query of ours
+     */
+    public synchronized boolean onQuery(byte[] id, int offset, int address, int port) {
+        int bucket = bucketOf(id, offset);
+        if (bucket < 0 || port == 0) {
+            return false;
+        }
+        int slot = find(id, offset, bucket);
+        if (slot >= 0) {
+            if (addresses[slot] == address && ports[slot] == port) {
+                onSeen(id, offset, address, port);
+            }
+            return false;
+        }
+        if (bucketSizes[bucket] < K) {
+            return true;
+        }
+        for (int i = bucket * K; i < (bucket + 1) * K; i++) {
+            if (failures[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A query to the node timed out. It is dropped after {@value #MAX_FAILURES} in a row, and may be replaced by
+     * a new node before that.
+     */
+    public synchronized void onFailed(byte[] id, int offset) {
+        int bucket = bucketOf(id, offset);
+        int slot = bucket < 0 ? -1 : find(id, offset, bucket);
+        if (slot >= 0 && ++failures[slot] >= MAX_FAILURES) {
+            remove(slot, bucket);
+        }
+    }
+
+    /**
+     * The nodes closest to {@code target} by XOR distance, nearest first, in compact node info format: each the
+     * 20-byte ID, the 4-byte IPv4 address and the 2-byte port.
+     */
+    public synchronized byte[] closest(byte[] target, int count) {
+        int[] found = new int[Math.min(count, size)];
+        int foundCount = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            for (int slot = bucket * K; slot < bucket * K + bucketSizes[bucket]; slot++) {
+                // Insertion into the sorted prefix, which stays at most count long
+                int at = foundCount;
+                while (at > 0 && compareDistance(target, slot, found[at - 1]) < 0) {
+                    at--;
+                }
+                if (at < found.length) {
+                    int moved = Math.min(foundCount, found.length - 1) - at;
+                    System.arraycopy(found, at, found, at + 1, moved);
+                    found[at] = slot;
+                    foundCount = Math.min(foundCount + 1, found.length);
+                }
+            }
+        }
+        ByteBuffer compact = ByteBuffer.allocate(foundCount * COMPACT_NODE_LENGTH);
+        for (int i = 0; i < foundCount; i++) {
+            putCompact(compact, found[i]);
+        }
+        return compact.array();
+    }
+
+    /**
+     * Every node in the table in compact node info format, e.g. to save them for the next start.
+     */
+    public synchronized byte[] toCompact() {
+        ByteBuffer compact = ByteBuffer.allocate(size * COMPACT_NODE_LENGTH);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            for (int slot = bucket * K; slot < bucket * K + bucketSizes[bucket]; slot++) {
+                putCompact(compact, slot);
+            }
+        }
+        return compact.array();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public byte[] getOwnId() {
+        return ownId.clone();
+    }
+
+    /**
+     * Compare how far two slots' nodes are from {@code target}.
+     */
+    private int compareDistance(byte[] target, int a, int b) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int da = (ids[a * ID_LENGTH + i] ^ target[i]) & 0xFF;
+            int db = (ids[b * ID_LENGTH + i] ^ target[i]) & 0xFF;
+            if (da != db) {
+                return Integer.compare(da, db);
+            }
+        }
+        return 0;
+    }
+
+    private void putCompact(ByteBuffer compact, int slot) {
+        compact.put(ids, slot * ID_LENGTH, ID_LENGTH).putInt(addresses[slot]).putChar(ports[slot]);
+    }
+
+    /**
+     * The bucket for an ID: how many leading bits it shares with ours, or -1 for our own ID.
+     */
+    private int bucketOf(byte[] id, int offset) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int difference = (id[offset + i] ^ ownId[i]) & 0xFF;
+            if (difference != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(difference) - 24;
+            }
+        }
+        return -1;
+    }
+
+    private int find(byte[] id, int offset, int bucket) {
+        for (int slot = bucket * K; slot < bucket * K + bucketSizes[bucket]; slot++) {
+            if (Arrays.equals(ids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH, id, offset, offset + ID_LENGTH)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove a slot's node, closing the gap so the bucket stays ordered by when its nodes were last seen.
+     */
+    private void remove(int slot, int bucket) {
+        int last = bucket * K + --bucketSizes[bucket];
+        int moved = last - slot;
+        System.arraycopy(ids, (slot + 1) * ID_LENGTH, ids, slot * ID_LENGTH, moved * ID_LENGTH);
+        System.arraycopy(addresses, slot + 1, addresses, slot, moved);
+        System.arraycopy(ports, slot + 1, ports, slot, moved);
+        System.arraycopy(lastSeen, slot + 1, lastSeen, slot, moved);
+        System.arraycopy(failures, slot + 1, failures, slot, moved);
+        size--;
+    }
+}
@@ -1,3 +1,5 @@
+package client;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -7,6 +9,13 @@ import java.net.SocketException;
 import java.util.HexFormat;
 
 public class Handshake {
+    // Reserved bit advertising the Fast Extension (BEP 6): the last reserved byte, 0x04
+    private static final int FAST_EXTENSION_BYTE = 27;
+    private static final int FAST_EXTENSION_BIT = 0x04;
+    // Reserved bit advertising the extension protocol (BEP 10): 0x10 in the sixth reserved byte
+    private static final int EXTENSION_PROTOCOL_BYTE = 25;
+    private static final int EXTENSION_PROTOCOL_BIT = 0x10;
+
     private final Torrent torrent;
     private final String peerIp;
     private final int peerPort;
@@ -53,12 +62,21 @@ public class Handshake {
     }
 
     private byte[] createHandshake() throws IOException {
+        return createHandshake(torrent);
+    }
+
+    static byte[] createHandshake(Torrent torrent) throws IOException {
         // Create the Peer handshake message
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         outputStream.write(19); // Length of the protocol identifier
         outputStream.write("BitTorrent protocol".getBytes());
-        outputStream.write(new byte[8]); // 8 reserved bytes
-        outputStream.write(HexFormat.of().parseHex(torrent.getInfoHash()));
+        byte[] reserved = new byte[8];
+        reserved[FAST_EXTENSION_BYTE - 20] |= FAST_EXTENSION_BIT;
+        if (!torrent.isPrivate()) {
+            reserved[EXTENSION_PROTOCOL_BYTE - 20] |= EXTENSION_PROTOCOL_BIT;  // Only peer exchange runs over it
+        }
+        outputStream.write(reserved);
+        outputStream.write(torrent.getInfoHashBytes());
         outputStream.write(torrent.getPeerId().getBytes()); // Random peer ID
         return outputStream.toByteArray();
     }
@@ -66,4 +84,19 @@ public class Handshake {
     public static boolean verifyHandshake(byte[] handshake) {
         return handshake.length != 0 && handshake[0] == 19 && new String(handshake, 1, 19).equals("BitTorrent protocol");
     }
+
+    /**
+     * Whether the peer that sent this handshake supports the Fast Extension. We always advertise it, so this
+     * decides whether it is used on the connection.
+     */
+    public static boolean supportsFastExtension(byte[] handshake) {
+        return (handshake[FAST_EXTENSION_BYTE] & FAST_EXTENSION_BIT) != 0;
+    }
+
+    /**
+     * Whether the peer that sent this handshake supports the extension protocol, and so may exchange peers.
+     */
+    public static boolean supportsExtensionProtocol(byte[] handshake) {
+        return (handshake[EXTENSION_PROTOCOL_BYTE] & EXTENSION_PROTOCOL_BIT) != 0;
+    }
 }
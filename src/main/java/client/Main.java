@@ -0,0 +1,436 @@
+package client;
+
+import util.BencodeCodec;
+import util.Bitfield;
+import util.TokenBucket;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public class Main {
+    private static final long METRICS_LOG_INTERVAL_SECONDS = 5;
+
+    public static void main(String[] args) {
+        if (args.length < (args.length > 0 && args[0].equals("simulate") ? 1 : 2)) {
+            System.out.println("Usage: decode <bencodedValue> | info <torrentFile> | peers <torrentFile> | handshake <torrentFile> <peerIp>:<peerPort> | download_piece -o <pieceLocation> <torrentFile> <pieceIndex> | download [--nio] [--seed] [--metrics-log <file>] [--metrics-port <port>] [--cache-mb <mb>] [--cache-heap] [--download-limit <KiB/s>] [--upload-limit <KiB/s>] [--max-peers <n>] [--dht] [--dht-port <port>] [--dht-bootstrap <host>:<port>]... -o <fileLocation> <torrentFile> | session [--nio] [--seed] [--download-limit <KiB/s>] [--upload-limit <KiB/s>] [--max-peers <n>] [--torrent-download-limit <KiB/s>] [--torrent-upload-limit <KiB/s>] [--torrent-max-peers <n>] [--dht] [--dht-port <port>] [--dht-bootstrap <host>:<port>]... -o <directory> <torrentFile>... | stream [--nio] [--listen <port>] -o <fileLocation> <torrentFile> [<file>] | recheck <torrentFile> <location> | simulate [--nio] [--seeders <n>] [--size-mb <mb>] [--piece-kib <kib>] [--latency-ms <ms>] [--seeder-rate <KiB/s>] [--choke-ms <ms>] [--corrupt <seeders> <probability>] [--runs <n>] [--random-seed <n>] [--piece <index>]");
+            return;
+        }
+
+        String command = args[0];
+
+        try {
+            switch (command) {
+                case "decode" -> BencodeCodec.decode(args[1].getBytes());
+                case "info" -> System.out.println(parseTorrentFile(args));
+                case "peers" -> {
+                    Torrent torrent = parseTorrentFile(args);
+                    try (PeerDiscovery discovery = new PeerDiscovery(torrent)) {
+                        for (int peer : discovery.getPeers()) {
+                            System.out.println(discovery.getRegistry().format(peer));
+                        }
+                    }
+                }
+                case "handshake" -> {
+                    Torrent torrent = parseTorrentFile(args);
+                    String[] parts = args[2].split(":");
+                    Handshake.handleHandshake(torrent, parts[0], Integer.parseInt(parts[1]));
+                }
+                case "download_piece" -> {
+                    Torrent torrent = parseTorrentFile(List.of(args).subList(2, args.length).toArray(String[]::new));
+                    int pieceIndex = Integer.parseInt(args[args.length - 1]);
+                    PieceDownloader downloader = new PieceDownloader(torrent, pieceIndex);
+                    byte[] pieceData = downloader.downloadPiece();
+                    downloader.savePiece(args[2], pieceData);
+                }
+                case "download" -> {
+                    // An optional --nio flag switches from virtual threads to the selector-based transport, and
+                    // --seed keeps uploading to other peers after the download until the process is interrupted.
+                    // --metrics-log appends a metrics snapshot to a file every few seconds, and --metrics-port
+                    // serves one on demand at http://127.0.0.1:<port>/metrics. --cache-mb sets the memory for
+                    // buffering pieces before they are written (0 writes every block straight to disk), and
+                    // --cache-heap keeps that memory on the Java heap instead of off-heap. --download-limit and
+                    // --upload-limit cap the transfer rates, and --max-peers the number of connections. --dht also
+                    // finds peers on the DHT, joined through the --dht-bootstrap nodes (or well-known routers), with
+                    // the nodes it learns kept in dht.nodes next to the output for the next start
+                    boolean nio = false;
+                    boolean seed = false;
+                    Path metricsLog = null;
+                    int metricsPort = -1;
+                    long cacheBudget = BlockCache.DEFAULT_BUDGET;
+                    boolean cacheOnHeap = false;
+                    long downloadRate = 0;
+                    long uploadRate = 0;
+                    int maxPeers = Integer.MAX_VALUE;
+                    boolean dht = false;
+                    int dhtPort = DhtNode.DEFAULT_PORT;
+                    List<String> dhtBootstrap = new ArrayList<>();
+                    int first = 1;
+                    for (; first < args.length && args[first].startsWith("--"); first++) {
+                        switch (args[first]) {
+                            case "--nio" -> nio = true;
+                            case "--seed" -> seed = true;
+                            case "--dht" -> dht = true;
+                            case "--dht-port" -> dhtPort = Integer.parseInt(args[++first]);
+                            case "--dht-bootstrap" -> {
+                                dht = true;
+                                dhtBootstrap.add(args[++first]);
+                            }
+                            case "--metrics-log" -> metricsLog = Paths.get(args[++first]);
+                            case "--metrics-port" -> metricsPort = Integer.parseInt(args[++first]);
+                            case "--cache-mb" -> cacheBudget = Long.parseLong(args[++first]) << 20;
+                            case "--cache-heap" -> cacheOnHeap = true;
+                            case "--download-limit" -> downloadRate = Long.parseLong(args[++first]) << 10;
+                            case "--upload-limit" -> uploadRate = Long.parseLong(args[++first]) << 10;
+                            case "--max-peers" -> maxPeers = Integer.parseInt(args[++first]);
+                            default -> throw new IllegalArgumentException("Unknown option: " + args[first]);
+                        }
+                    }
+                    String[] downloadArgs = List.of(args).subList(first - 1, args.length).toArray(String[]::new);
+                    Torrent torrent = parseTorrentFile(List.of(downloadArgs).subList(2, downloadArgs.length).toArray(String[]::new));
+                    TorrentDownloader.Transport transport = nio ? TorrentDownloader.Transport.NIO : TorrentDownloader.Transport.THREADS;
+                    TorrentDownloader downloader = new TorrentDownloader(torrent, PeerConnection.MIN_PIPELINE_DEPTH, PeerConnection.MAX_PIPELINE_DEPTH, transport);
+                    downloader.setSeeding(seed);
+                    downloader.setCache(cacheBudget, !cacheOnHeap);
+                    downloader.setRateLimits(downloadRate > 0 ? new TokenBucket(downloadRate, null) : null,
+                            uploadRate > 0 ? new TokenBucket(uploadRate, null) : null);
+                    downloader.setMaxPeers(maxPeers);
+                    Metrics metrics = new Metrics();
+                    downloader.setMetrics(metrics);
+                    if (metricsLog != null) {
+                        metrics.logTo(metricsLog, METRICS_LOG_INTERVAL_SECONDS);
+                    }
+                    if (metricsPort >= 0) {
+                        System.out.println("Metrics at http://127.0.0.1:" + metrics.serve(metricsPort) + "/metrics");
+                    }
+                    if (seed) {
+                        Thread main = Thread.currentThread();
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                            downloader.stop();
+                            try {
+                                main.join(5000);  // Let it tell the trackers we left
+                            } catch (InterruptedException ignored) {
+                                // Exiting anyway
+                            }
+                        }));
+                    }
+                    try (metrics;
+                         DhtNode node = dht ? startDht(dhtPort, Paths.get(downloadArgs[2]).toAbsolutePath().resolveSibling("dht.nodes"), dhtBootstrap) : null) {
+                        downloader.setDht(node);
+                        downloader.download(downloadArgs[2]);
+                    }
+                    System.out.println("Downloaded " + downloadArgs[downloadArgs.length - 1] + " to " + downloadArgs[2]);
+                }
+                case "session" -> {
+                    // Downloads every torrent given into <directory>, each under its own name, in one process.
+                    // --download-limit, --upload-limit and --max-peers cap the totals of all torrents together, the
+                    // --torrent-* variants those of each one. --seed keeps seeding them all until interrupted. The
+                    // --dht options are those of download, with one DHT node for all the torrents
+                    boolean nio = false;
+                    boolean seed = false;
+                    long downloadRate = 0;
+                    long uploadRate = 0;
+                    int maxPeers = Integer.MAX_VALUE;
+                    long torrentDownloadRate = 0;
+                    long torrentUploadRate = 0;
+                    int torrentMaxPeers = Integer.MAX_VALUE;
+                    boolean dht = false;
+                    int dhtPort = DhtNode.DEFAULT_PORT;
+                    List<String> dhtBootstrap = new ArrayList<>();
+                    int first = 1;
+                    for (; first < args.length && args[first].startsWith("--"); first++) {
+                        switch (args[first]) {
+                            case "--nio" -> nio = true;
+                            case "--seed" -> seed = true;
+                            case "--dht" -> dht = true;
+                            case "--dht-port" -> dhtPort = Integer.parseInt(args[++first]);
+                            case "--dht-bootstrap" -> {
+                                dht = true;
+                                dhtBootstrap.add(args[++first]);
+                            }
+                            case "--download-limit" -> downloadRate = Long.parseLong(args[++first]) << 10;
+                            case "--upload-limit" -> uploadRate = Long.parseLong(args[++first]) << 10;
+                            case "--max-peers" -> maxPeers = Integer.parseInt(args[++first]);
+                            case "--torrent-download-limit" -> torrentDownloadRate = Long.parseLong(args[++first]) << 10;
+                            case "--torrent-upload-limit" -> torrentUploadRate = Long.parseLong(args[++first]) << 10;
+                            case "--torrent-max-peers" -> torrentMaxPeers = Integer.parseInt(args[++first]);
+                            default -> throw new IllegalArgumentException("Unknown option: " + args[first]);
+                        }
+                    }
+                    if (first + 2 >= args.length || !args[first].equals("-o")) {
+                        throw new IllegalArgumentException("Expected -o <directory> <torrentFile>...");
+                    }
+                    Path directory = Paths.get(args[first + 1]);
+                    TorrentDownloader.Transport transport = nio ? TorrentDownloader.Transport.NIO : TorrentDownloader.Transport.THREADS;
+                    Files.createDirectories(directory);
+                    try (DhtNode node = dht ? startDht(dhtPort, directory.resolve("dht.nodes"), dhtBootstrap) : null;
+                         TorrentSession session = new TorrentSession()) {
+                        session.start();
+                        session.setRateLimits(downloadRate, uploadRate);
+                        session.setMaxConnections(maxPeers);
+                        List<TorrentSession.Entry> entries = new ArrayList<>();
+                        Set<String> names = new HashSet<>();
+                        for (int i = first + 2; i < args.length; i++) {
+                            Torrent torrent = parseTorrentFile(new String[]{null, args[i]});
+                            TorrentDownloader downloader = new TorrentDownloader(torrent, PeerConnection.MIN_PIPELINE_DEPTH, PeerConnection.MAX_PIPELINE_DEPTH, transport);
+                            downloader.setSeeding(seed);
+                            downloader.setMaxPeers(torrentMaxPeers);
+                            downloader.setDht(node);
+                            entries.add(session.add(downloader, outputPath(directory, torrent, names).toString(),
+                                    torrentDownloadRate, torrentUploadRate));
+                        }
+                        if (seed) {
+                            Thread main = Thread.currentThread();
+                            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                                for (TorrentSession.Entry entry : entries) {
+                                    entry.getDownloader().stop();
+                                }
+                                try {
+                                    main.join(5000);
+                                } catch (InterruptedException ignored) {
+                                    // Exiting anyway
+                                }
+                            }));
+                        }
+                        for (int i = 0; i < entries.size(); i++) {
+                            TorrentSession.Entry entry = entries.get(i);
+                            try {
+                                entry.await();
+                                System.out.println("Downloaded " + args[first + 2 + i] + " to " + entry.getOutputLocation());
+                            } catch (IOException e) {
+                                System.err.println("Failed " + args[first + 2 + i] + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+                case "stream" -> {
+                    // Writes the torrent, or one file of it, to stdout in order while downloading it to
+                    // <fileLocation>. --listen serves it to the first client connecting to 127.0.0.1:<port>
+                    // instead; progress goes to stderr either way
+                    boolean nio = false;
+                    int listenPort = -1;
+                    int first = 1;
+                    for (; first < args.length && args[first].startsWith("--"); first++) {
+                        switch (args[first]) {
+                            case "--nio" -> nio = true;
+                            case "--listen" -> listenPort = Integer.parseInt(args[++first]);
+                            default -> throw new IllegalArgumentException("Unknown option: " + args[first]);
+                        }
+                    }
+                    String[] streamArgs = List.of(args).subList(first - 1, args.length).toArray(String[]::new);
+                    Torrent torrent = parseTorrentFile(List.of(streamArgs).subList(2, streamArgs.length).toArray(String[]::new));
+                    String file = streamArgs.length > 4 ? streamArgs[4] : null;
+                    WritableByteChannel output;
+                    if (listenPort >= 0) {
+                        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+                            System.err.println("Waiting for a client on " + server.getLocalAddress());
+                            output = server.accept();
+                        }
+                    } else {
+                        output = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+                    }
+                    TorrentStream stream = TorrentStream.ofFile(torrent, file, output);
+                    TorrentDownloader.Transport transport = nio ? TorrentDownloader.Transport.NIO : TorrentDownloader.Transport.THREADS;
+                    TorrentDownloader downloader = new TorrentDownloader(torrent, PeerConnection.MIN_PIPELINE_DEPTH, PeerConnection.MAX_PIPELINE_DEPTH, transport);
+                    downloader.setStream(stream);
+                    try (stream) {
+                        downloader.download(streamArgs[2]);
+                    }
+                    System.err.printf("Streamed %d bytes: first byte after %d ms, %d stalls totalling %d ms%n",
+                            stream.getBytesWritten(), stream.getTimeToFirstByteNanos() / 1_000_000, stream.getStalls(),
+                            stream.getStalledNanos() / 1_000_000);
+                }
+                case "recheck" -> {
+                    Torrent torrent = parseTorrentFile(args);
+                    long startedAt = System.nanoTime();
+                    long[] valid;
+                    try (Storage storage = Storage.openExisting(torrent, Paths.get(args[2]));
+                         PieceVerifier verifier = new PieceVerifier(torrent, storage)) {
+                        valid = verifier.recheck();
+                    }
+                    double seconds = (System.nanoTime() - startedAt) / 1e9;
+                    System.out.printf("Verified %d/%d pieces in %.2f s (%.1f MB/s)%n", Bitfield.cardinality(valid),
+                            torrent.getPieceCount(), seconds, torrent.getLength() / 1e6 / seconds);
+                }
+                case "simulate" -> {
+                    // Runs the client against a swarm simulated in this process on loopback, so no network is
+                    // needed: a stand-in tracker and --seeders seeders serving --size-mb of random data in pieces of
+                    // --piece-kib. --latency-ms delays every block, --seeder-rate caps each seeder's upload,
+                    // --choke-ms has seeders choke and unchoke on that period, and --corrupt has the given number of
+                    // seeders corrupt blocks with the given probability. --runs repeats the download against the
+                    // same swarm, and --piece fetches just that piece the way download_piece does
+                    boolean nio = false;
+                    int seeders = 4;
+                    long size = 64L << 20;
+                    int pieceLength = 256 << 10;
+                    long latency = 0;
+                    long seederRate = 0;
+                    long chokeInterval = 0;
+                    int corruptSeeders = 0;
+                    double corruptProbability = 0;
+                    int runs = 1;
+                    long randomSeed = 1;
+                    int piece = -1;
+                    for (int i = 1; i < args.length; i++) {
+                        switch (args[i]) {
+                            case "--nio" -> nio = true;
+                            case "--seeders" -> seeders = Integer.parseInt(args[++i]);
+                            case "--size-mb" -> size = Long.parseLong(args[++i]) << 20;
+                            case "--piece-kib" -> pieceLength = Integer.parseInt(args[++i]) << 10;
+                            case "--latency-ms" -> latency = Long.parseLong(args[++i]);
+                            case "--seeder-rate" -> seederRate = Long.parseLong(args[++i]) << 10;
+                            case "--choke-ms" -> chokeInterval = Long.parseLong(args[++i]);
+                            case "--corrupt" -> {
+                                corruptSeeders = Integer.parseInt(args[++i]);
+                                corruptProbability = Double.parseDouble(args[++i]);
+                            }
+                            case "--runs" -> runs = Integer.parseInt(args[++i]);
+                            case "--random-seed" -> randomSeed = Long.parseLong(args[++i]);
+                            case "--piece" -> piece = Integer.parseInt(args[++i]);
+                            default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                        }
+                    }
+                    TorrentDownloader.Transport transport = nio ? TorrentDownloader.Transport.NIO : TorrentDownloader.Transport.THREADS;
+                    try (SwarmSimulator swarm = new SwarmSimulator(size, pieceLength, seeders, randomSeed)) {
+                        swarm.setLatency(latency);
+                        swarm.setSeederRate(seederRate);
+                        swarm.setChokeInterval(chokeInterval);
+                        swarm.setCorruption(corruptSeeders, corruptProbability);
+                        long startedAt = System.nanoTime();
+                        Torrent torrent = swarm.start();
+                        System.out.printf("Simulated %d seeders with %d pieces of %d KiB, set up in %d ms%n", seeders,
+                                torrent.getPieceCount(), pieceLength >> 10, (System.nanoTime() - startedAt) / 1_000_000);
+                        double[] rates = new double[runs];
+                        for (int run = 0; run < runs; run++) {
+                            rates[run] = simulateRun(swarm, torrent, transport, piece, run + 1);
+                        }
+                        if (runs > 1) {
+                            Arrays.sort(rates);
+                            System.out.printf("Over %d runs: median %.1f MB/s, best %.1f MB/s%n", runs,
+                                    rates[runs / 2], rates[runs - 1]);
+                        }
+                    }
+                }
+                default -> System.out.println("Unknown command: " + command);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Error creating SHA-1 digest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Where a session torrent is saved in {@code directory}: under its name, or its info hash if the name could
+     * escape the directory, prefixed with the info hash if an earlier torrent in {@code names} took the name.
+     */
+    private static Path outputPath(Path directory, Torrent torrent, Set<String> names) throws IOException {
+        String name = Storage.isSafeName(torrent.getName()) ? torrent.getName() : torrent.getInfoHash();
+        if (!names.add(name)) {
+            name = torrent.getInfoHash() + "-" + name;
+        }
+        Path output = directory.resolve(name).normalize();
+        if (!output.startsWith(directory.normalize())) {
+            throw new IOException("Torrent name escapes " + directory + ": " + torrent.getName());
+        }
+        return output;
+    }
+
+    /**
+     * Open a DHT node with its node cache and join the DHT, through the well-known routers if no other nodes are
+     * given.
+     */
+    private static DhtNode startDht(int port, Path nodeCache, List<String> bootstrap) throws IOException {
+        DhtNode node = new DhtNode(port, nodeCache);
+        int nodes = node.bootstrap(bootstrap.isEmpty() ? DhtNode.DEFAULT_BOOTSTRAP : bootstrap);
+        System.out.println("DHT node on port " + node.getPort() + " knows " + nodes + " nodes");
+        return node;
+    }
+
+    /**
+     * Download the simulated torrent once into a temporary directory, or only one piece if {@code piece} is not
+     * negative, check the result and print its throughput and phase timings.
+     *
+     * @return the throughput in MB/s
+     */
+    private static double simulateRun(SwarmSimulator swarm, Torrent torrent, TorrentDownloader.Transport transport,
+                                      int piece, int run) throws IOException {
+        Path directory = Files.createTempDirectory("simulate");
+        try {
+            swarm.resetStats();
+            Metrics metrics = new Metrics();
+            long startedAt = System.nanoTime();
+            boolean valid;
+            long bytes;
+            if (piece >= 0) {
+                PieceDownloader downloader = new PieceDownloader(torrent, piece);
+                Path output = directory.resolve("piece");
+                downloader.savePiece(output.toString(), downloader.downloadPiece());
+                bytes = torrent.getPieceSize(piece);
+                valid = swarm.matches(output, (long) piece * torrent.getPieceLength(), bytes);
+            } else {
+                Path output = directory.resolve(torrent.getName());
+                TorrentDownloader downloader = new TorrentDownloader(torrent, PeerConnection.MIN_PIPELINE_DEPTH, PeerConnection.MAX_PIPELINE_DEPTH, transport);
+                downloader.setMetrics(metrics);
+                try (metrics) {
+                    downloader.download(output.toString());
+                }
+                valid = swarm.matches(output, 0, torrent.getLength());
+                bytes = torrent.getLength();
+            }
+            long finishedAt = System.nanoTime();
+            SwarmSimulator.Stats stats = swarm.getStats();
+            double seconds = (finishedAt - startedAt) / 1e9;
+            double rate = bytes / 1e6 / seconds;
+            System.out.printf("Run %d: %.1f MiB in %.2f s, %.1f MB/s, %s%n", run, bytes / (double) (1 << 20), seconds,
+                    rate, valid ? "content matches" : "CONTENT DIFFERS");
+            System.out.printf("  phases: announce %s, handshake %s, first block %s, transfer %d ms%n",
+                    sincePhase(startedAt, stats.firstAnnounceNanos()), sincePhase(startedAt, stats.firstHandshakeNanos()),
+                    sincePhase(startedAt, stats.firstBlockNanos()),
+                    (finishedAt - (stats.firstBlockNanos() == 0 ? startedAt : stats.firstBlockNanos())) / 1_000_000);
+            Map<String, Object> snapshot = metrics.snapshot();
+            System.out.printf("  seeders: %d announces, %d connections, %d blocks sent (%d corrupt), %d chokes; "
+                            + "client: %s hash failures, %s peer failures, %s ms choked%n", stats.announces(),
+                    stats.connections(), stats.blocksSent(), stats.corruptBlocks(), stats.chokes(),
+                    snapshot.get("hashFailures"), snapshot.get("peerFailures"), snapshot.get("chokedMillis"));
+            if (!valid) {
+                throw new IOException("Run " + run + " did not reproduce the simulated content");
+            }
+            return rate;
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static String sincePhase(long startedAt, long phaseNanos) {
+        return phaseNanos == 0 ? "never" : (phaseNanos - startedAt) / 1_000_000 + " ms";
+    }
+
+    private static Torrent parseTorrentFile(String[] args) throws IOException, NoSuchAlgorithmException {
+        Path path = Paths.get(args[1]);
+        byte[] bencodedValue = Files.readAllBytes(path);
+        return new Torrent(bencodedValue);
+    }
+}
@@ -0,0 +1,247 @@
+package client;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+import util.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime metrics of one download: aggregate counters, latency histograms and queue depths, and the live state
+ * of every connected peer.
+ * <p>
+ * Connections feed it through their {@link PeerThroughput}; storage and the verifier keep their own histograms,
+ * which are registered here by name along with gauges for queue depths. A snapshot is a JSON object, written as
+ * one line to a log file every few seconds and served on demand from a local HTTP endpoint. Counters are
+ * cumulative and rates are averages over the interval a snapshot covers: the log keeps its own {@link Interval}, so
+ * each line covers the time since the one before, while the HTTP endpoint covers the time since the start, and
+ * its clients can difference the counters over their own interval. Together the network, disk and hashing figures
+ * show which of them limits the download.
+ */
+public class Metrics implements Closeable {
+    private static final Gson GSON = new Gson();
+
+    private final long startedAt = System.nanoTime();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder blocksIn = new LongAdder();
+    private final LongAdder blocksOut = new LongAdder();
+    private final LongAdder chokedNanos = new LongAdder();
+    private final LongAdder piecesCompleted = new LongAdder();
+    private final LongAdder hashFailures = new LongAdder();
+    private final LongAdder peersConnected = new LongAdder();
+    private final LongAdder peerFailures = new LongAdder();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<PeerThroughput, String> peers = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService logger;
+    private Path logFile;
+    private Interval logInterval;
+    private HttpServer server;
+
+    /**
+     * Where one consumer of snapshots left off, so that the rates in its next snapshot cover the time since.
+     */
+    public final class Interval {
+        private long startNanos = startedAt;
+        private long bytesIn;
+        private long bytesOut;
+    }
+
+    public Metrics() {
+        histograms.put("requestLatency", requestLatency);
+    }
+
+    /**
+     * A peer completed its handshake; it is listed in snapshots until {@link #removePeer}.
+     */
+    public void addPeer(String peer, PeerThroughput throughput) {
+        peersConnected.increment();
+        peers.put(throughput, peer);
+    }
+
+    public void removePeer(PeerThroughput throughput) {
+        peers.remove(throughput);
+    }
+
+    /**
+     * A connection attempt or a connection failed.
+     */
+    public void onPeerFailed() {
+        peerFailures.increment();
+    }
+
+    void onBlockReceived(int length, long latencyNanos) {
+        bytesIn.add(length);
+        blocksIn.increment();
+        requestLatency.record(latencyNanos);
+    }
+
+    void onBlockSent(int length) {
+        bytesOut.add(length);
+        blocksOut.increment();
+    }
+
+    void onUnchoked(long chokedForNanos) {
+        chokedNanos.add(chokedForNanos);
+    }
+
+    public void onPieceCompleted() {
+        piecesCompleted.increment();
+    }
+
+    public void onHashFailure() {
+        hashFailures.increment();
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void histogram(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * A snapshot with rates averaged since the start; it changes no state, so any number of callers may take them.
+     */
+    public Map<String, Object> snapshot() {
+        return snapshot(new Interval());
+    }
+
+    /**
+     * A snapshot with rates averaged since the previous one taken for {@code interval}, which is moved on to now.
+     */
+    public Map<String, Object> snapshot(Interval interval) {
+        long now = System.nanoTime();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        long lastIn;
+        long lastOut;
+        double seconds;
+        synchronized (interval) {
+            seconds = Math.max(1e-3, (now - interval.startNanos) / 1e9);
+            lastIn = interval.bytesIn;
+            lastOut = interval.bytesOut;
+            interval.startNanos = now;
+            interval.bytesIn = in;
+            interval.bytesOut = out;
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("uptimeMillis", (now - startedAt) / 1_000_000);
+        snapshot.put("bytesIn", in);
+        snapshot.put("bytesOut", out);
+        snapshot.put("bytesInPerSecond", (long) ((in - lastIn) / seconds));
+        snapshot.put("bytesOutPerSecond", (long) ((out - lastOut) / seconds));
+        snapshot.put("blocksIn", blocksIn.sum());
+        snapshot.put("blocksOut", blocksOut.sum());
+        snapshot.put("chokedMillis", chokedNanos.sum() / 1_000_000);
+        snapshot.put("piecesCompleted", piecesCompleted.sum());
+        snapshot.put("hashFailures", hashFailures.sum());
+        snapshot.put("peersConnected", peersConnected.sum());
+        snapshot.put("peerFailures", peerFailures.sum());
+        Map<String, Object> gaugeValues = new LinkedHashMap<>();
+        gauges.forEach((name, value) -> gaugeValues.put(name, value.getAsLong()));
+        snapshot.put("gauges", gaugeValues);
+        Map<String, Object> histogramValues = new LinkedHashMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        snapshot.put("histograms", histogramValues);
+
+        List<Map<String, Object>> peerValues = new ArrayList<>();
+        peers.forEach((throughput, peer) -> {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("peer", peer);
+            values.put("bytesIn", throughput.getDelivered());
+            values.put("bytesOut", throughput.getUploaded());
+            values.put("bytesInPerSecond", (long) throughput.getBytesPerSecond());
+            values.put("rttMicros", throughput.getSmoothedRttNanos() / 1000);
+            values.put("window", throughput.getWindow());
+            values.put("outstanding", throughput.getPending());
+            values.put("snubbed", throughput.isSnubbed());
+            values.put("chokedMillis", throughput.getChokedNanos() / 1_000_000);
+            peerValues.add(values);
+        });
+        snapshot.put("peers", peerValues);
+        return snapshot;
+    }
+
+    public String toJson() {
+        return GSON.toJson(snapshot());
+    }
+
+    /**
+     * Append a snapshot to {@code file} as a JSON line every {@code intervalSeconds}, and once more on close.
+     */
+    public synchronized void logTo(Path file, long intervalSeconds) {
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-logger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logInterval = new Interval();
+        logger.scheduleAtFixedRate(() -> appendTo(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        logFile = file;
+    }
+
+    private void appendTo(Path file) {
+        try {
+            Files.writeString(file, GSON.toJson(snapshot(logInterval)) + System.lineSeparator(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to write metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serve the current snapshot at {@code http://127.0.0.1:<port>/metrics}. Only the loopback interface is
+     * bound, so the endpoint is not reachable from other hosts.
+     *
+     * @return the port bound, which differs from {@code port} if that was 0
+     */
+    public synchronized int serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (logger != null) {
+            logger.shutdownNow();
+            appendTo(logFile);
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,957 @@
+package client;
+
+import util.AllowedFastSet;
+import util.Bitfield;
+import util.BufferPool;
+import util.FrameDecoder;
+import util.FrameEncoder;
+import util.Message;
+import util.TokenBucket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-blocking state machine for one peer connection driven by a {@link NioTransport} event loop, either dialled
+ * by us or accepted by a {@link PeerServer}.
+ * <p>
+ * Handles the handshake, message framing and pipelined block requests using pooled direct buffers, and serves
+ * the peer's requests while a {@link Choker} lets it. Received blocks go to the {@link BlockCache}; uploaded blocks
+ * are copied from it while it still holds their piece, and otherwise go from the page cache to the socket with
+ * {@link Storage#transferTo}, never through the heap.
+ * <p>
+ * With a peer that also supports the Fast Extension (BEP 6), piece sets may be announced with HAVE_ALL or
+ * HAVE_NONE, every request that will not be served is answered with a REJECT_REQUEST instead of being dropped,
+ * and pieces in an allowed fast set can be fetched while choked, in both directions. With one that supports the
+ * extension protocol (BEP 10), connected peers are exchanged through a {@link PeerExchange}. All methods except
+ * construction and the ones the choker uses are called from the owning event loop thread only.
+ */
+public class NioPeerSession implements FrameDecoder.Handler {
+    private static final int HANDSHAKE_LENGTH = 68;
+    private static final BufferPool BUFFERS = new BufferPool(2 * PeerConnection.BLOCK_SIZE, 1024);
+    private static final int MAX_QUEUED_UPLOADS = 256;
+    private static final int MAX_UPLOAD_REQUEST = 128 * 1024;
+    private static final long KEEP_ALIVE_MILLIS = 90_000;
+    private static final long QUIET_TIMEOUT_MILLIS = 180_000;
+
+    /**
+     * Callbacks into the download that owns the session.
+     */
+    public interface Listener {
+        /**
+         * Every block of a piece is stored. Called on the event loop, so it must not block.
+         *
+         * @return false if verification is backed up: the piece waits its turn, and the session stops reading from
+         * the peer until {@link #drainVerification()} returns true
+         */
+        boolean onPieceComplete(NioPeerSession session, int pieceIndex) throws IOException;
+
+        /**
+         * Hand pieces waiting for verification on, as far as there is room and without blocking.
+         *
+         * @return whether none are left waiting
+         */
+        default boolean drainVerification() {
+            return true;
+        }
+
+        /**
+         * Blocks of a piece already on disk, as a packed bitset, or {@code null} to fetch the whole piece.
+         */
+        default long[] getBlocksOnDisk(int pieceIndex) {
+            return null;
+        }
+
+        default void onBlockReceived(int pieceIndex, int begin, int length) {
+        }
+
+        /**
+         * The handshake completed and the session is ready to exchange messages.
+         */
+        default void onActive(NioPeerSession session) {
+        }
+
+        /**
+         * The peer became interested in downloading from us, or stopped being so.
+         */
+        default void onPeerInterested(NioPeerSession session, boolean interested) {
+        }
+
+        default void onBlockSent(int pieceIndex, int begin, int length) {
+        }
+
+        void onClosed(NioPeerSession session, Exception cause);
+    }
+
+    private enum State { CONNECTING, HANDSHAKE, ACTIVE, CLOSED }
+
+    private final int handle;
+    private final String peer;
+    private final Torrent torrent;
+    private final PiecePicker picker;
+    private final BlockCache cache;
+    private final Listener listener;
+    private final PeerThroughput throughput;
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder;
+    private final byte[] handshake;
+    private final byte[] infoHash;
+    private final long[] pieces;
+
+    private ByteBuffer readBuffer = BUFFERS.acquire();
+    private final ByteBuffer writeBuffer = BUFFERS.acquire();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.CONNECTING;
+    private final TorrentEvents.Handshake handshakeEvent = new TorrentEvents.Handshake();
+    private boolean inbound;
+    private long lastActivity = System.currentTimeMillis();
+    private long lastSent = System.currentTimeMillis();
+    private TokenBucket downloadLimit;
+    private TokenBucket uploadLimit;
+    private boolean readThrottled;
+    private boolean verifyBacklogged;
+    private boolean choked = true;
+    private boolean interested;
+    private boolean fast;
+    private PeerExchange exchange;
+    private PeerExchange.Peer pex;
+
+    // Pieces the peer lets us fetch while it chokes us, and its pieces we may request right now when choked
+    private final long[] allowedByPeer;
+    private final long[] requestable;
+
+    // Our side of the upload: what the peer was told we have, and whether it may request
+    private long[] advertised;
+    private int advertisedRemaining = -1;
+    private volatile boolean peerInterested;
+    private volatile boolean unchokeWanted;
+    private boolean choking = true;
+    private long[] allowedForPeer;
+
+    // Requests from the peer as (piece, begin, length) triples in a ring; a cancelled one has length 0
+    private final int[] uploadQueue = new int[MAX_QUEUED_UPLOADS * 3];
+    private int uploadHead;
+    private int uploadCount;
+
+    // Block being sent: its PIECE header goes out through its own buffer so that nothing queued in the encoder
+    // afterwards can end up between the header and the data
+    private final ByteBuffer uploadHeader = ByteBuffer.allocate(13);
+    private final FrameEncoder headerEncoder = new FrameEncoder(uploadHeader);
+    private boolean uploading;
+    private int uploadPiece;
+    private int uploadBegin;
+    private int uploadLength;
+    private long uploadOffset;
+    private long uploadRemaining;
+    private ByteBuffer uploadBody;  // The block's data when it was copied from the cache, else it is transferred
+    private boolean uploadFromCache;
+
+    // Pieces being fetched from this peer, oldest first, and requests outstanding across all of them
+    private final List<ActivePiece> active = new ArrayList<>();
+    private int outstanding;
+
+    /**
+     * @param handle the peer's handle in the {@link PeerRegistry} it was dialled from, or -1 if it connected to us
+     * @param peer   the peer's address, for messages
+     */
+    public NioPeerSession(int handle, String peer, Torrent torrent, PiecePicker picker, BlockCache cache,
+                          PeerThroughput throughput, Listener listener) throws IOException {
+        this.handle = handle;
+        this.peer = peer;
+        this.torrent = torrent;
+        this.picker = picker;
+        this.cache = cache;
+        this.throughput = throughput;
+        this.listener = listener;
+        this.handshake = Handshake.createHandshake(torrent);
+        this.infoHash = torrent.getInfoHashBytes();
+        this.pieces = Bitfield.create(torrent.getPieceCount());
+        this.allowedByPeer = Bitfield.create(torrent.getPieceCount());
+        this.requestable = Bitfield.create(torrent.getPieceCount());
+        this.decoder = new FrameDecoder(Math.max(PeerConnection.BLOCK_SIZE + 9, 1 + (torrent.getPieceCount() + 7) / 8));
+        this.encoder = new FrameEncoder(writeBuffer);
+    }
+
+    /**
+     * Charge traffic to these buckets and hold back reading or starting new blocks while either is empty; must be
+     * called before the session is handed to the transport. Either may be {@code null} for no limit.
+     */
+    void setRateLimits(TokenBucket download, TokenBucket upload) {
+        this.downloadLimit = download;
+        this.uploadLimit = upload;
+    }
+
+    /**
+     * Exchange peers through {@code exchange} if the peer supports it; must be called before the session is
+     * handed to the transport.
+     */
+    void setPeerExchange(PeerExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    /**
+     * The start of the peer's handshake, already read off an incoming connection to find its torrent; must be
+     * called before the session is handed to the transport.
+     */
+    void setReceived(ByteBuffer received) {
+        readBuffer.put(received);
+    }
+
+    void attach(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        handshakeEvent.begin();
+    }
+
+    void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            onConnected();
+        }
+    }
+
+    void onConnected() {
+        state = State.HANDSHAKE;
+        lastActivity = System.currentTimeMillis();
+        writeBuffer.put(handshake);
+        updateInterest();
+    }
+
+    /**
+     * An incoming connection: wait for the peer's handshake and only answer it once the info hash matches.
+     */
+    void onAccepted() {
+        inbound = true;
+        state = State.HANDSHAKE;
+        lastActivity = System.currentTimeMillis();
+        updateInterest();
+    }
+
+    void onReadable() throws IOException {
+        if (state == State.ACTIVE && downloadLimit != null && !downloadLimit.hasTokens()) {
+            // Stop selecting for reads until a tick finds tokens again
+            readThrottled = true;
+            updateInterest();
+            return;
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new EOFException("Peer closed the connection");
+        }
+        if (downloadLimit != null) {
+            downloadLimit.consume(read);
+        }
+        lastActivity = System.currentTimeMillis();
+        readBuffer.flip();
+        int needed = HANDSHAKE_LENGTH;
+        if (state == State.HANDSHAKE && readBuffer.remaining() >= HANDSHAKE_LENGTH) {
+            verifyHandshake();
+        }
+        if (state == State.ACTIVE) {
+            needed = decoder.decode(readBuffer, this);
+        }
+        if (needed > readBuffer.capacity()) {
+            // Only an unusually large bitfield outgrows a pooled buffer
+            ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+            larger.put(readBuffer);
+            BUFFERS.release(readBuffer);
+            readBuffer = larger;
+        } else {
+            readBuffer.compact();
+        }
+        fillPipeline();
+        flush();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Periodic housekeeping from the event loop: enforce the idle timeout, resume reading once verification has
+     * caught up, advertise newly verified pieces, apply the choker's decision and pick up new work if idle. A peer
+     * we are not waiting on may stay quiet for longer, as long as it sends the occasional keep-alive.
+     */
+    void onTick(long now, long idleTimeoutMillis) throws IOException {
+        long timeout = outstanding > 0 || state != State.ACTIVE ? idleTimeoutMillis : QUIET_TIMEOUT_MILLIS;
+        if (now - lastActivity > timeout && !readThrottled && !verifyBacklogged) {
+            throw new SocketTimeoutException("No data from peer for " + timeout + " ms");
+        }
+        if (readThrottled && downloadLimit.hasTokens()) {
+            readThrottled = false;
+            lastActivity = now;  // Time spent throttled is not the peer's fault
+        }
+        if (verifyBacklogged && listener.drainVerification()) {
+            verifyBacklogged = false;
+            lastActivity = now;
+        }
+        if (state == State.ACTIVE) {
+            advertisePieces();
+            updateInterested();
+            applyChoke();
+            sendPeerExchange();
+            if (now - lastSent > KEEP_ALIVE_MILLIS && encoder.pending() == 0 && !uploading) {
+                encoder.keepAlive();
+            }
+            fillPipeline();
+            flush();
+        }
+    }
+
+    private void verifyHandshake() throws IOException {
+        byte[] response = new byte[HANDSHAKE_LENGTH];
+        readBuffer.get(response);
+        if (!Handshake.verifyHandshake(response)) {
+            throw new IOException("Invalid handshake protocol identifier");
+        }
+        for (int i = 0; i < infoHash.length; i++) {
+            if (response[28 + i] != infoHash[i]) {
+                throw new IOException("Peer responded with a different info hash");
+            }
+        }
+        if (inbound) {
+            writeBuffer.put(handshake);
+        }
+        fast = Handshake.supportsFastExtension(response);
+        state = State.ACTIVE;
+        handshakeEvent.finish(peer, inbound, true);
+
+        // Tell the peer what we have; pieces that do not fit follow as HAVE messages
+        advertised = picker.getCompleted();
+        advertisedRemaining = picker.getRemaining();
+        int have = Bitfield.cardinality(advertised);
+        byte[] bitfield = Bitfield.toPayload(advertised, torrent.getPieceCount());
+        if (fast && have == torrent.getPieceCount()) {
+            encoder.haveAll();
+        } else if (fast && have == 0) {
+            encoder.haveNone();
+        } else if (have == 0) {
+            // Nothing to advertise, and a peer may omit the BITFIELD then
+        } else if (encoder.hasRoom(5 + bitfield.length)) {
+            encoder.bitfield(bitfield);
+        } else {
+            advertised = Bitfield.create(torrent.getPieceCount());
+            advertisedRemaining = -1;
+            if (fast) {
+                encoder.haveNone();  // Something must come first
+            }
+        }
+        if (fast) {
+            offerAllowedFast();
+        }
+        if (exchange != null && Handshake.supportsExtensionProtocol(response)) {
+            pex = exchange.open((InetSocketAddress) channel.getRemoteAddress(), !inbound);
+            byte[] extensionHandshake = pex.handshake();
+            if (encoder.hasRoom(5 + extensionHandshake.length)) {
+                encoder.extended(extensionHandshake);
+            }
+        }
+        listener.onActive(this);
+    }
+
+    /**
+     * Tell the peer about the peers we connected to or lost since the last time, if it is time to.
+     */
+    private void sendPeerExchange() {
+        if (pex == null || !encoder.hasRoom(PeerExchange.MAX_MESSAGE_LENGTH)) {
+            return;  // Polling marks the changes as sent, so only poll when the message fits
+        }
+        byte[] message = pex.poll(System.nanoTime());
+        if (message != null) {
+            encoder.extended(message);
+        }
+    }
+
+    /**
+     * Send the peer its allowed fast set, for the pieces of it we have.
+     */
+    private void offerAllowedFast() throws IOException {
+        allowedForPeer = Bitfield.create(torrent.getPieceCount());
+        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+        for (int index : AllowedFastSet.compute(address.getAddress(), infoHash, torrent.getPieceCount(),
+                AllowedFastSet.DEFAULT_SIZE)) {
+            Bitfield.set(allowedForPeer, index);
+            if (Bitfield.get(advertised, index) && encoder.hasRoom(9)) {
+                encoder.allowedFast(index);
+            }
+        }
+    }
+
+    private boolean isAllowedForPeer(int pieceIndex) {
+        return allowedForPeer != null && Bitfield.get(allowedForPeer, pieceIndex);
+    }
+
+    /**
+     * Queue a HAVE for every piece verified since the peer was last told, unless it has the piece itself.
+     */
+    private void advertisePieces() {
+        int remaining = picker.getRemaining();
+        if (remaining == advertisedRemaining) {
+            return;
+        }
+        long[] completed = picker.getCompleted();
+        for (int w = 0; w < completed.length; w++) {
+            long fresh = completed[w] & ~advertised[w];
+            while (fresh != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(fresh);
+                if (!Bitfield.get(pieces, index)) {
+                    if (!encoder.hasRoom(9)) {
+                        return;  // The rest goes out on a later tick
+                    }
+                    encoder.have(index);
+                }
+                Bitfield.set(advertised, index);
+                fresh &= fresh - 1;
+            }
+        }
+        advertisedRemaining = remaining;
+    }
+
+    /**
+     * Tell the peer whether it has anything we still need.
+     */
+    private void updateInterested() {
+        boolean wanted = picker.isInteresting(pieces);
+        if (wanted != interested && encoder.hasRoom(5)) {
+            interested = wanted;
+            if (wanted) {
+                encoder.interested();
+            } else {
+                encoder.notInterested();
+            }
+        }
+    }
+
+    /**
+     * Send CHOKE or UNCHOKE if the choker changed its mind. Choking drops every queued request, as the peer
+     * expects, except that a Fast Extension peer keeps those for its allowed fast pieces and is sent a rejection
+     * for each of the rest; a block already being sent is finished first.
+     */
+    private void applyChoke() {
+        if (unchokeWanted == choking && encoder.hasRoom(5)) {
+            choking = !unchokeWanted;
+            if (!choking) {
+                encoder.unchoke();
+            } else if (!fast) {
+                encoder.choke();
+                uploadCount = 0;
+            } else {
+                encoder.choke();
+                for (int i = 0; i < uploadCount; i++) {
+                    int slot = (uploadHead + i) % MAX_QUEUED_UPLOADS * 3;
+                    if (uploadQueue[slot + 2] > 0 && !isAllowedForPeer(uploadQueue[slot])) {
+                        reject(uploadQueue[slot], uploadQueue[slot + 1], uploadQueue[slot + 2]);
+                        uploadQueue[slot + 2] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell a Fast Extension peer that a request will not be served. Best effort: if the encoder is full, the peer
+     * finds out when its request times out instead.
+     */
+    private void reject(int pieceIndex, int begin, int length) {
+        if (fast && encoder.hasRoom(17)) {
+            encoder.reject(pieceIndex, begin, length);
+        }
+    }
+
+    @Override
+    public void onMessage(Message.MessageType type, ByteBuffer payload) {
+        switch (type) {
+            case CHOKE -> {
+                // A choking peer discards every pending request, so re-request whatever is still missing. A Fast
+                // Extension peer rejects them one by one instead, and may still serve its allowed fast pieces
+                choked = true;
+                throughput.onChoked(!fast);
+                if (!fast) {
+                    for (ActivePiece piece : active) {
+                        piece.resetRequests();
+                    }
+                    outstanding = 0;
+                }
+            }
+            case UNCHOKE -> {
+                choked = false;
+                throughput.onUnchoked();
+            }
+            case INTERESTED, NOT_INTERESTED -> {
+                boolean wanted = type == Message.MessageType.INTERESTED;
+                if (wanted != peerInterested) {
+                    peerInterested = wanted;
+                    listener.onPeerInterested(this, wanted);
+                }
+            }
+            case HAVE -> {
+                int index = Bitfield.haveIndex(payload);
+                if (index >= 0 && index < torrent.getPieceCount() && !Bitfield.get(pieces, index)) {
+                    Bitfield.set(pieces, index);
+                    picker.peerHas(index);
+                    if (!interested && !picker.hasPiece(index)) {
+                        updateInterested();
+                    }
+                }
+            }
+            case BITFIELD, HAVE_ALL -> {
+                long[] announced = type == Message.MessageType.BITFIELD
+                        ? Bitfield.fromPayload(payload, torrent.getPieceCount()) : allPieces();
+                for (int w = 0; w < announced.length; w++) {
+                    announced[w] &= ~pieces[w];
+                    pieces[w] |= announced[w];
+                }
+                picker.addPeer(announced);
+                updateInterested();
+            }
+            case REJECT_REQUEST -> onRejected(payload.getInt(payload.position()), payload.getInt(payload.position() + 4));
+            case ALLOWED_FAST -> {
+                int index = Bitfield.haveIndex(payload);
+                if (index >= 0 && index < torrent.getPieceCount()) {
+                    Bitfield.set(allowedByPeer, index);
+                }
+            }
+            case REQUEST -> onRequest(payload.getInt(payload.position()), payload.getInt(payload.position() + 4),
+                    payload.getInt(payload.position() + 8));
+            case CANCEL -> onCancel(payload.getInt(payload.position()), payload.getInt(payload.position() + 4),
+                    payload.getInt(payload.position() + 8));
+            case EXTENDED -> {
+                if (pex != null) {
+                    pex.onExtended(payload);
+                }
+            }
+            default -> {
+                // Other messages carry nothing a downloading session needs
+            }
+        }
+    }
+
+    /**
+     * Store a block we asked for. In endgame it may come too late: if the piece is no longer claimed, having been
+     * completed elsewhere, it is dropped along with the rest of the piece, and if another peer delivered the block
+     * first it only counts as received here, so a verified piece or another peer's copy is never written over.
+     */
+    @Override
+    public void onPiece(int index, int begin, ByteBuffer block) throws IOException {
+        ActivePiece piece = findActive(index);
+        if (piece != null) {
+            restartIfFailed(piece);
+        }
+        int blockIndex = begin / PeerConnection.BLOCK_SIZE;
+        if (piece == null || begin % PeerConnection.BLOCK_SIZE != 0 || blockIndex >= piece.received.length
+                || piece.received[blockIndex]) {
+            return;
+        }
+        if (begin + block.remaining() > piece.length) {
+            throw new IOException("Block at offset " + begin + " overruns piece " + index);
+        }
+        int length = block.remaining();
+        throughput.onBlock(piece.sentAt[blockIndex], piece.deliveredAtSend[blockIndex], length);
+        outstanding--;
+        if (!picker.isClaimed(index)) {
+            piece.received[blockIndex] = true;
+            cancelPending(piece);
+            active.remove(piece);
+            return;
+        }
+        if (!picker.isReceived(index, begin)) {
+            cache.writeBlock(index, begin, block);
+            listener.onBlockReceived(index, begin, length);
+            picker.onBlockReceived(index, begin);
+        }
+        piece.received[blockIndex] = true;
+        piece.receivedCount++;
+
+        if (piece.isComplete()) {
+            active.remove(piece);
+            onPieceComplete(index);
+        }
+    }
+
+    /**
+     * Hand a piece on for verification. If verification is backed up, stop reading from the peer, so no more
+     * blocks pile up, until a tick finds it has caught up.
+     */
+    private void onPieceComplete(int pieceIndex) throws IOException {
+        if (!listener.onPieceComplete(this, pieceIndex)) {
+            verifyBacklogged = true;
+            updateInterest();
+        }
+    }
+
+    private long[] allPieces() {
+        long[] all = Bitfield.create(torrent.getPieceCount());
+        for (int index = 0; index < torrent.getPieceCount(); index++) {
+            Bitfield.set(all, index);
+        }
+        return all;
+    }
+
+    /**
+     * The peer will not serve one of our requests. A block rejected while choked waits for the next unchoke; while
+     * unchoked the peer cannot or will not serve the piece at all, so it is handed back for another peer rather
+     * than asked for again at once.
+     */
+    private void onRejected(int pieceIndex, int begin) {
+        ActivePiece piece = findActive(pieceIndex);
+        int block = begin / PeerConnection.BLOCK_SIZE;
+        if (piece == null || begin % PeerConnection.BLOCK_SIZE != 0 || block >= piece.requested.length
+                || !piece.requested[block] || piece.received[block]) {
+            return;
+        }
+        piece.onRejected(block);
+        throughput.onCancelled();
+        outstanding--;
+        if (choked) {
+            return;
+        }
+        cancelPending(piece);
+        active.remove(piece);
+        picker.release(pieceIndex);
+    }
+
+    /**
+     * Cancel every request of a piece that is being dropped. A late block for it is ignored anyway, so it stops
+     * counting as outstanding whether or not the CANCEL fits; that only spares the peer sending it.
+     */
+    private void cancelPending(ActivePiece piece) {
+        for (int block = 0; block < piece.requested.length; block++) {
+            if (piece.requested[block] && !piece.received[block]) {
+                if (encoder.hasRoom(17)) {
+                    encoder.cancel(piece.index, block * PeerConnection.BLOCK_SIZE, piece.blockLength(block));
+                }
+                throughput.onCancelled();
+                outstanding--;
+            }
+        }
+    }
+
+    /**
+     * Queue a block the peer asked for. Requests while choked, unless for an allowed fast piece, for pieces we do
+     * not have or beyond the queue's capacity are dropped, as the protocol allows, or rejected for a Fast
+     * Extension peer.
+     */
+    private void onRequest(int pieceIndex, int begin, int length) {
+        if (uploadCount == MAX_QUEUED_UPLOADS || pieceIndex < 0 || pieceIndex >= torrent.getPieceCount()
+                || begin < 0 || length <= 0 || length > MAX_UPLOAD_REQUEST
+                || (long) begin + length > torrent.getPieceSize(pieceIndex) || !Bitfield.get(advertised, pieceIndex)
+                || choking && !isAllowedForPeer(pieceIndex)) {
+            reject(pieceIndex, begin, length);
+            return;
+        }
+        int slot = (uploadHead + uploadCount++) % MAX_QUEUED_UPLOADS * 3;
+        uploadQueue[slot] = pieceIndex;
+        uploadQueue[slot + 1] = begin;
+        uploadQueue[slot + 2] = length;
+    }
+
+    private void onCancel(int pieceIndex, int begin, int length) {
+        for (int i = 0; i < uploadCount; i++) {
+            int slot = (uploadHead + i) % MAX_QUEUED_UPLOADS * 3;
+            if (uploadQueue[slot] == pieceIndex && uploadQueue[slot + 1] == begin && uploadQueue[slot + 2] == length) {
+                uploadQueue[slot + 2] = 0;
+                reject(pieceIndex, begin, length);  // A Fast Extension peer expects an answer to every request
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take the next queued request the peer may have now, and prepare its PIECE header and, if the block is
+     * cached, its data.
+     *
+     * @return false if there is nothing to send
+     */
+    private boolean startUpload() {
+        while (uploadCount > 0) {
+            int slot = uploadHead * 3;
+            uploadHead = (uploadHead + 1) % MAX_QUEUED_UPLOADS;
+            uploadCount--;
+            if (uploadQueue[slot + 2] == 0 || choking && !isAllowedForPeer(uploadQueue[slot])) {
+                continue;  // Cancelled, or rejected when the peer was choked
+            }
+            uploadPiece = uploadQueue[slot];
+            uploadBegin = uploadQueue[slot + 1];
+            uploadLength = uploadQueue[slot + 2];
+            uploadOffset = (long) uploadPiece * torrent.getPieceLength() + uploadBegin;
+            uploadRemaining = uploadLength;
+            uploadFromCache = false;
+            if (uploadLength <= BUFFERS.getBufferSize()) {
+                if (uploadBody == null) {
+                    uploadBody = BUFFERS.acquire();
+                }
+                uploadFromCache = cache.read(uploadPiece, uploadBegin, uploadLength, uploadBody.clear());
+                uploadBody.flip();
+            }
+            uploadHeader.clear();
+            headerEncoder.pieceHeader(uploadPiece, uploadBegin, uploadLength);
+            uploadHeader.flip();
+            uploading = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keep the peer's window of requests in flight. When the pieces in hand have no blocks left to request, the
+     * next piece is started from the picker right away, so the window spans piece boundaries instead of
+     * draining at the end of every piece. While choked, only allowed fast pieces are requested.
+     */
+    private void fillPipeline() throws IOException {
+        if (state != State.ACTIVE || choked && !fast) {
+            return;
+        }
+        skipDelivered();
+        int window = throughput.getWindow();
+        int current = 0;
+        while (outstanding < window && encoder.hasRoom(17)) {
+            if (current == active.size()) {
+                if (!startPiece()) {
+                    return;
+                }
+                continue;
+            }
+            ActivePiece piece = active.get(current);
+            if (piece.nextBlock == piece.requested.length || choked && !Bitfield.get(allowedByPeer, piece.index)) {
+                current++;
+                continue;
+            }
+            int block = piece.nextBlock++;
+            if (!piece.requested[block]) {
+                encoder.request(piece.index, block * PeerConnection.BLOCK_SIZE, piece.blockLength(block));
+                piece.onRequested(block, throughput);
+                outstanding++;
+            }
+        }
+    }
+
+    /**
+     * Endgame: in every piece other sessions are fetching too, mark blocks they already delivered as received,
+     * cancelling any still requested from this peer. Pieces this completes are handed on. A piece whose copy failed
+     * its hash check elsewhere is started over first.
+     */
+    private void skipDelivered() throws IOException {
+        for (int i = active.size() - 1; i >= 0; i--) {
+            ActivePiece piece = active.get(i);
+            restartIfFailed(piece);
+            if (picker.isShared(piece.index)) {
+                skipDelivered(piece);
+            }
+        }
+    }
+
+    private void restartIfFailed(ActivePiece piece) {
+        int attempt = picker.getAttempt(piece.index);
+        if (attempt != piece.attempt) {
+            piece.restart(attempt);
+        }
+    }
+
+    private void skipDelivered(ActivePiece piece) throws IOException {
+        for (int block = 0; block < piece.received.length; block++) {
+            if (piece.received[block] || !picker.isReceived(piece.index, block * PeerConnection.BLOCK_SIZE)) {
+                continue;
+            }
+            if (piece.requested[block]) {
+                if (encoder.hasRoom(17)) {
+                    // Best effort: if the CANCEL cannot be queued, the late copy is simply dropped on arrival
+                    encoder.cancel(piece.index, block * PeerConnection.BLOCK_SIZE, piece.blockLength(block));
+                }
+                throughput.onCancelled();
+                outstanding--;
+            }
+            piece.requested[block] = piece.received[block] = true;
+            piece.receivedCount++;
+        }
+        if (piece.isComplete()) {
+            active.remove(piece);
+            onPieceComplete(piece.index);
+        }
+    }
+
+    /**
+     * Take a new piece from the picker. A piece whose blocks are all on disk already is handed straight to
+     * verification instead.
+     *
+     * @return false if the picker had nothing new for this peer
+     */
+    private boolean startPiece() throws IOException {
+        long[] candidates = pieces;
+        if (choked) {
+            for (int w = 0; w < pieces.length; w++) {
+                requestable[w] = pieces[w] & allowedByPeer[w];
+            }
+            candidates = requestable;
+        }
+        int index = picker.pick(candidates, throughput.isSnubbed());
+        if (index < 0) {
+            return false;
+        }
+        if (findActive(index) != null) {
+            // Endgame offered a piece this session is already fetching
+            picker.release(index);
+            return false;
+        }
+        ActivePiece piece = new ActivePiece(index, torrent.getPieceSize(index), picker.getAttempt(index));
+        piece.skipStored(listener.getBlocksOnDisk(index));
+        if (piece.isComplete()) {
+            onPieceComplete(index);
+            return true;
+        }
+        active.add(piece);
+        if (picker.isShared(index)) {
+            skipDelivered(piece);
+        }
+        return true;
+    }
+
+    private ActivePiece findActive(int pieceIndex) {
+        for (ActivePiece piece : active) {
+            if (piece.index == pieceIndex) {
+                return piece;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send everything queued in the encoder, so a batch of messages leaves in one write, then as many requested
+     * blocks as the socket takes. A block's header is gathered into the same write as the messages queued before
+     * it, and its data follows from the cache or with {@link Storage#transferTo}; nothing else is sent until the
+     * block is complete.
+     */
+    private void flush() throws IOException {
+        while (state == State.HANDSHAKE || state == State.ACTIVE) {
+            if (uploading) {
+                if (uploadHeader.hasRemaining()) {
+                    if (uploadHeader.position() == 0) {
+                        encoder.flush(channel, uploadHeader);
+                    } else {
+                        channel.write(uploadHeader);
+                    }
+                    if (uploadHeader.hasRemaining()) {
+                        break;
+                    }
+                }
+                long sent = uploadFromCache ? channel.write(uploadBody)
+                        : cache.transferTo(uploadOffset, uploadRemaining, channel);
+                if (uploadLimit != null) {
+                    uploadLimit.consume(sent);
+                }
+                uploadOffset += sent;
+                uploadRemaining -= sent;
+                if (uploadRemaining > 0) {
+                    break;
+                }
+                uploading = false;
+                throughput.onBlockSent(uploadLength);
+                listener.onBlockSent(uploadPiece, uploadBegin, uploadLength);
+            } else if (encoder.pending() > 0) {
+                if (encoder.flush(channel) > 0) {
+                    break;
+                }
+            } else if (uploadCount > 0 && uploadLimit != null && !uploadLimit.hasTokens()) {
+                break;  // The next tick tries again
+            } else if (!startUpload()) {
+                break;
+            }
+            lastSent = System.currentTimeMillis();
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (state == State.CLOSED || !key.isValid()) {
+            return;
+        }
+        int ops = state == State.CONNECTING ? SelectionKey.OP_CONNECT
+                : readThrottled || verifyBacklogged ? 0 : SelectionKey.OP_READ;
+        if (state != State.CONNECTING && (encoder.pending() > 0 || uploading)) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Tear down the connection and hand any in-flight pieces back to the picker.
+     */
+    void close(Exception cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state != State.ACTIVE && channel != null) {
+            handshakeEvent.finish(peer, inbound, false);
+        }
+        state = State.CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+            // Already closing
+        }
+        BUFFERS.release(readBuffer);
+        BUFFERS.release(writeBuffer);
+        if (uploadBody != null) {
+            BUFFERS.release(uploadBody);
+        }
+        for (ActivePiece piece : active) {
+            picker.release(piece.index);
+        }
+        active.clear();
+        picker.removePeer(pieces);
+        if (pex != null) {
+            pex.close();
+        }
+        listener.onClosed(this, cause);
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public Torrent getTorrent() {
+        return torrent;
+    }
+
+    public PeerThroughput getThroughput() {
+        return throughput;
+    }
+
+    public boolean isPeerInterested() {
+        return peerInterested;
+    }
+
+    /**
+     * Let the peer download from us, or stop it; takes effect on the session's next tick. Called by the choker.
+     */
+    public void setUnchoked(boolean unchoked) {
+        this.unchokeWanted = unchoked;
+    }
+
+    public boolean isUnchoked() {
+        return unchokeWanted;
+    }
+
+    public long getBytesDownloaded() {
+        return throughput.getDelivered();
+    }
+
+    public long getBytesUploaded() {
+        return throughput.getUploaded();
+    }
+}
@@ -0,0 +1,196 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Non-blocking transport that multiplexes many {@link NioPeerSession}s over a small, fixed set of
+ * selector threads instead of one thread per socket.
+ */
+public class NioTransport implements Closeable {
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final long SELECT_TIMEOUT_MILLIS = 250;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final EventLoop[] loops;
+    private final long idleTimeoutMillis;
+    private int nextLoop;
+
+    public NioTransport(int threads, long idleTimeoutMillis) throws IOException {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-transport-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public static int defaultThreadCount() {
+        return Math.min(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start a non-blocking connect and hand the session to the next event loop in round-robin order.
+     */
+    public synchronized void connect(InetSocketAddress address, NioPeerSession session) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        loops[nextLoop++ % loops.length].register(channel, session, false);
+    }
+
+    /**
+     * Hand a connection accepted by a {@link PeerServer} to the next event loop; the session waits for the
+     * peer's handshake.
+     */
+    public synchronized void accept(SocketChannel channel, NioPeerSession session) {
+        loops[nextLoop++ % loops.length].register(channel, session, true);
+    }
+
+    /**
+     * Close the sessions matching {@code filter} on their event loops and wait until that is done, e.g. those of
+     * one torrent when the transport is shared between several.
+     */
+    public void closeSessions(Predicate<NioPeerSession> filter) {
+        CountDownLatch closed = new CountDownLatch(loops.length);
+        for (EventLoop loop : loops) {
+            loop.closeSessions(filter, closed);
+        }
+        try {
+            closed.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, NioPeerSession session, boolean accepted) {
+            tasks.add(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, session);
+                    session.attach(channel, key);
+                    if (accepted) {
+                        session.onAccepted();
+                    } else if (channel.isConnected()) {
+                        session.onConnected();
+                    }
+                } catch (IOException e) {
+                    session.close(e);
+                }
+            });
+            selector.wakeup();
+        }
+
+        void closeSessions(Predicate<NioPeerSession> filter, CountDownLatch closed) {
+            tasks.add(() -> {
+                try {
+                    for (SelectionKey key : selector.keys()) {
+                        NioPeerSession session = (NioPeerSession) key.attachment();
+                        if (filter.test(session)) {
+                            session.close(null);
+                        }
+                    }
+                } finally {
+                    closed.countDown();
+                }
+            });
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastTick = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT_MILLIS);
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        NioPeerSession session = (NioPeerSession) key.attachment();
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                session.onConnectable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            session.close(e);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTick >= SELECT_TIMEOUT_MILLIS) {
+                        lastTick = now;
+                        for (SelectionKey key : selector.keys()) {
+                            NioPeerSession session = (NioPeerSession) key.attachment();
+                            try {
+                                session.onTick(now, idleTimeoutMillis);
+                            } catch (IOException | RuntimeException e) {
+                                session.close(e);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioPeerSession) key.attachment()).close(null);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+}
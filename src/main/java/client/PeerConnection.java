@@ -0,0 +1,733 @@
+package client;
+
+import util.Bitfield;
+import util.FrameDecoder;
+import util.FrameEncoder;
+import util.Message;
+import util.TokenBucket;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A handshaken connection to a single peer that can fetch whole pieces using pipelined block requests.
+ * <p>
+ * Frames are read into one reusable buffer and decoded in place, and outgoing messages are batched in a
+ * reusable {@link FrameEncoder}, so steady-state downloading allocates nothing per message.
+ */
+public class PeerConnection implements Closeable, FrameDecoder.Handler {
+    public static final int BLOCK_SIZE = Torrent.BLOCK_SIZE;
+    public static final int DEFAULT_PIPELINE_DEPTH = 16;
+    public static final int MIN_PIPELINE_DEPTH = 2;
+    public static final int MAX_PIPELINE_DEPTH = 128;
+    private static final int SEND_BUFFER_SIZE = 4096;
+    private static final int SHARED_POLL_MILLIS = 250;
+
+    private final String peer;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final OutputStream outputStream;
+    private final PeerThroughput throughput;
+    private final int pieceCount;
+    private final int maxFrameLength;
+    private final int readTimeout;
+    private int currentTimeout;
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder = new FrameEncoder(ByteBuffer.allocate(SEND_BUFFER_SIZE));
+    private ByteBuffer frame = ByteBuffer.allocate(4 + BLOCK_SIZE + 9);
+
+    /**
+     * Receives each block as it arrives; the buffer is only valid for the duration of the call.
+     */
+    @FunctionalInterface
+    public interface BlockSink {
+        void accept(int pieceIndex, int begin, ByteBuffer block) throws IOException;
+    }
+
+    /**
+     * Supplies the pieces to fetch over a connection, and is told as each one is complete.
+     */
+    public interface PieceSource {
+        /**
+         * Reserve the next piece to fetch from this peer.
+         *
+         * @return the piece index, or -1 if there is nothing for this peer right now
+         */
+        int next();
+
+        int getPieceSize(int pieceIndex);
+
+        /**
+         * Blocks of a piece already on disk, as a packed bitset, or {@code null} to fetch the whole piece.
+         */
+        default long[] getBlocksOnDisk(int pieceIndex) {
+            return null;
+        }
+
+        /**
+         * Whether other connections are fetching the piece too, as happens in endgame, so its blocks may
+         * arrive elsewhere.
+         */
+        default boolean isShared(int pieceIndex) {
+            return false;
+        }
+
+        /**
+         * Whether a block has already been delivered by any connection.
+         */
+        default boolean isReceived(int pieceIndex, int begin) {
+            return false;
+        }
+
+        /**
+         * Whether the piece is still being fetched, rather than completed elsewhere.
+         */
+        default boolean isClaimed(int pieceIndex) {
+            return true;
+        }
+
+        /**
+         * A count that changes whenever a copy of the piece fails its hash check elsewhere, discarding every block
+         * stored for it.
+         */
+        default int getAttempt(int pieceIndex) {
+            return 0;
+        }
+
+        /**
+         * Every block of the piece is stored, whether received here or elsewhere.
+         */
+        void onPieceComplete(int pieceIndex) throws IOException;
+
+        /**
+         * Hand back a piece this connection will not finish, because the peer failed or the piece turned out to be
+         * in hand already.
+         */
+        default void release(int pieceIndex) {
+        }
+    }
+
+    private final long[] pieces;
+    private IntConsumer haveListener = pieceIndex -> {
+    };
+    private boolean choked = true;
+    private boolean interested = false;
+    private boolean fast;
+
+    // Pieces the peer lets us fetch while it chokes us, and its pieces we may request right now when choked
+    private final long[] allowedFast;
+    private final long[] requestable;
+
+    // Pieces being fetched, oldest first, see download
+    private final List<ActivePiece> active = new ArrayList<>();
+    private PieceSource source;
+    private BlockSink sink;
+    private int outstanding;
+    private long lastFrameMillis;
+    private TokenBucket downloadLimit;
+    private PeerExchange.Peer pex;
+
+    private PeerConnection(String peer, Socket socket, PeerThroughput throughput, int pieceCount) throws IOException {
+        this.peer = peer;
+        this.socket = socket;
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.outputStream = socket.getOutputStream();
+        this.throughput = throughput;
+        this.pieceCount = pieceCount;
+        this.pieces = Bitfield.create(pieceCount);
+        this.allowedFast = Bitfield.create(pieceCount);
+        this.requestable = Bitfield.create(pieceCount);
+        this.maxFrameLength = Math.max(BLOCK_SIZE + 9, 1 + (pieceCount + 7) / 8);
+        this.decoder = new FrameDecoder(maxFrameLength);
+        this.readTimeout = socket.getSoTimeout();
+        this.currentTimeout = readTimeout;
+    }
+
+    public static PeerConnection open(Torrent torrent, InetSocketAddress address, int pipelineDepth) throws IOException {
+        return open(torrent, address, PeerThroughput.fixed(pipelineDepth));
+    }
+
+    public static PeerConnection open(Torrent torrent, InetSocketAddress address, PeerThroughput throughput) throws IOException {
+        return open(torrent, address, throughput, null);
+    }
+
+    /**
+     * Like {@link #open(Torrent, String, int, PeerThroughput)}, also exchanging peers through {@code exchange} if
+     * the peer supports the extension protocol.
+     */
+    public static PeerConnection open(Torrent torrent, InetSocketAddress address, PeerThroughput throughput,
+                                      PeerExchange exchange) throws IOException {
+        return open(torrent, address.getAddress().getHostAddress(), address.getPort(), throughput, exchange);
+    }
+
+    public static PeerConnection open(Torrent torrent, String peerIp, int peerPort, int pipelineDepth) throws IOException {
+        return open(torrent, peerIp, peerPort, PeerThroughput.fixed(pipelineDepth));
+    }
+
+    /**
+     * Connect to a peer, exchange handshakes, verify that the peer serves the same torrent and wait until it
+     * unchokes us, by which point its bitfield has been received. A peer supporting the Fast Extension is told
+     * that we have nothing, and waiting ends early if it allows us some of its pieces while choked. The request
+     * window follows {@code throughput}.
+     */
+    public static PeerConnection open(Torrent torrent, String peerIp, int peerPort, PeerThroughput throughput) throws IOException {
+        return open(torrent, peerIp, peerPort, throughput, null);
+    }
+
+    private static PeerConnection open(Torrent torrent, String peerIp, int peerPort, PeerThroughput throughput,
+                                       PeerExchange exchange) throws IOException {
+        TorrentEvents.Handshake event = new TorrentEvents.Handshake();
+        event.begin();
+        Socket socket;
+        try {
+            socket = new Handshake(torrent, peerIp, peerPort).initiateHandshake();
+        } catch (RuntimeException e) {
+            event.finish(peerIp + ":" + peerPort, false, false);
+            throw e;
+        }
+        PeerConnection connection = new PeerConnection(peerIp + ":" + peerPort, socket, throughput, torrent.getPieceCount());
+        boolean handshaken = false;
+        try {
+            byte[] response = new byte[68];
+            connection.inputStream.readFully(response);
+            if (!Handshake.verifyHandshake(response)) {
+                throw new IOException("Invalid handshake protocol identifier");
+            }
+            byte[] infoHash = torrent.getInfoHashBytes();
+            if (!Arrays.equals(response, 28, 48, infoHash, 0, infoHash.length)) {
+                throw new IOException("Peer responded with a different info hash");
+            }
+            event.finish(connection.peer, false, true);
+            handshaken = true;
+            connection.fast = Handshake.supportsFastExtension(response);
+            if (connection.fast) {
+                connection.encoder.haveNone();  // This transport only downloads
+            }
+            if (exchange != null && Handshake.supportsExtensionProtocol(response)) {
+                connection.pex = exchange.open(new InetSocketAddress(peerIp, peerPort), true);
+                connection.encoder.extended(connection.pex.handshake());
+            }
+            connection.awaitRequestable();
+            return connection;
+        } catch (IOException e) {
+            if (!handshaken) {
+                event.finish(connection.peer, false, false);
+            }
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Download a complete piece into a heap array.
+     */
+    public byte[] downloadPiece(int pieceIndex, int pieceLength) throws IOException {
+        byte[] piece = new byte[pieceLength];
+        downloadPiece(pieceIndex, pieceLength, (index, begin, block) -> block.get(piece, begin, block.remaining()));
+        return piece;
+    }
+
+    /**
+     * Download a complete piece, keeping the connection's window of block requests outstanding at once and
+     * handing every block to {@code sink} as soon as it arrives.
+     */
+    public void downloadPiece(int pieceIndex, int pieceLength, BlockSink sink) throws IOException {
+        download(new PieceSource() {
+            private boolean started;
+
+            @Override
+            public int next() {
+                if (started) {
+                    return -1;
+                }
+                started = true;
+                return pieceIndex;
+            }
+
+            @Override
+            public int getPieceSize(int index) {
+                return pieceLength;
+            }
+
+            @Override
+            public void onPieceComplete(int index) {
+            }
+        }, sink, false);
+    }
+
+    /**
+     * Download pieces from {@code source} until it has nothing more for this peer and every piece taken from it is
+     * complete. The window of requests runs on into the next piece as soon as the current ones have no blocks
+     * left to request, so it is not drained at every piece boundary.
+     * <p>
+     * The peer is polled rather than waited on, and in pieces that are shared, blocks delivered by other
+     * connections are skipped, or cancelled if already requested; such a piece is complete as soon as every block
+     * has arrived somewhere. If the connection fails, every unfinished piece is released back to the source.
+     */
+    public void download(PieceSource source, BlockSink sink) throws IOException {
+        download(source, sink, true);
+    }
+
+    private void download(PieceSource source, BlockSink sink, boolean poll) throws IOException {
+        this.source = source;
+        this.sink = sink;
+        this.outstanding = 0;
+        this.lastFrameMillis = System.currentTimeMillis();
+        try {
+            awaitRequestable();
+            while (true) {
+                skipDelivered();
+
+                // Top up the window, send the whole batch in one write, then wait for the next response
+                int window = throughput.getWindow();
+                int current = 0;
+                while (outstanding < window && encoder.hasRoom(17)) {
+                    if (current == active.size()) {
+                        if (!startPiece()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    ActivePiece piece = active.get(current);
+                    if (piece.nextBlock == piece.requested.length || choked && !Bitfield.get(allowedFast, piece.index)) {
+                        current++;
+                        continue;
+                    }
+                    int block = piece.nextBlock++;
+                    if (!piece.requested[block]) {
+                        encoder.request(piece.index, block * BLOCK_SIZE, piece.blockLength(block));
+                        piece.onRequested(block, throughput);
+                        outstanding++;
+                    }
+                }
+                sendPeerExchange();
+                if (encoder.pending() > 0) {
+                    encoder.writeTo(outputStream);
+                }
+                if (active.isEmpty() && !choked) {
+                    return;
+                }
+                if (choked && outstanding == 0) {
+                    // Nothing this peer allows us while choked is left to ask for
+                    awaitUnchoke();
+                    continue;
+                }
+
+                if (poll) {
+                    pollFrame();
+                } else {
+                    readFrame(readTimeout);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ActivePiece piece : active) {
+                source.release(piece.index);
+            }
+            throw e;
+        } finally {
+            active.clear();
+            this.source = null;
+            this.sink = null;
+        }
+    }
+
+    /**
+     * Take a new piece from the source. A piece whose blocks are all on disk already is completed straight away.
+     *
+     * @return false if the source had nothing new for this peer
+     */
+    private boolean startPiece() throws IOException {
+        int index = source.next();
+        if (index < 0) {
+            return false;
+        }
+        if (findActive(index) != null) {
+            // Endgame offered a piece this connection is already fetching
+            source.release(index);
+            return false;
+        }
+        ActivePiece piece = new ActivePiece(index, source.getPieceSize(index), source.getAttempt(index));
+        piece.skipStored(source.getBlocksOnDisk(index));
+        if (piece.isComplete()) {
+            source.onPieceComplete(index);
+            return true;
+        }
+        active.add(piece);
+        if (source.isShared(index)) {
+            skipDelivered(piece);
+        }
+        return true;
+    }
+
+    /**
+     * In every shared piece, mark blocks that another connection already delivered as received, queueing a CANCEL
+     * for each one that is still outstanding on this peer. Pieces this completes are handed on. A piece whose copy
+     * failed its hash check elsewhere is started over first.
+     */
+    private void skipDelivered() throws IOException {
+        for (int i = active.size() - 1; i >= 0; i--) {
+            ActivePiece piece = active.get(i);
+            restartIfFailed(piece);
+            if (source.isShared(piece.index)) {
+                skipDelivered(piece);
+            }
+        }
+    }
+
+    private void skipDelivered(ActivePiece piece) throws IOException {
+        for (int block = 0; block < piece.received.length; block++) {
+            int begin = block * BLOCK_SIZE;
+            if (piece.received[block] || !source.isReceived(piece.index, begin)) {
+                continue;
+            }
+            if (piece.requested[block]) {
+                if (!encoder.hasRoom(17)) {
+                    encoder.writeTo(outputStream);
+                }
+                encoder.cancel(piece.index, begin, piece.blockLength(block));
+                throughput.onCancelled();
+                outstanding--;
+            }
+            piece.requested[block] = piece.received[block] = true;
+            piece.receivedCount++;
+        }
+        if (piece.isComplete()) {
+            active.remove(piece);
+            source.onPieceComplete(piece.index);
+        }
+    }
+
+    private void restartIfFailed(ActivePiece piece) {
+        int attempt = source.getAttempt(piece.index);
+        if (attempt != piece.attempt) {
+            piece.restart(attempt);
+        }
+    }
+
+    private ActivePiece findActive(int pieceIndex) {
+        for (ActivePiece piece : active) {
+            if (piece.index == pieceIndex) {
+                return piece;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queue the peers we connected to or lost since the last time, if it is time to tell the peer.
+     */
+    private void sendPeerExchange() throws IOException {
+        if (pex == null) {
+            return;
+        }
+        if (!encoder.hasRoom(PeerExchange.MAX_MESSAGE_LENGTH)) {
+            encoder.writeTo(outputStream);
+        }
+        byte[] message = pex.poll(System.nanoTime());
+        if (message != null) {
+            encoder.extended(message);
+        }
+    }
+
+    /**
+     * Wait a short while for the next frame, so that the shared progress of the piece is re-checked regularly. The
+     * connection's usual read timeout still applies to the time since the last frame.
+     */
+    private void pollFrame() throws IOException {
+        try {
+            readFrame(SHARED_POLL_MILLIS);
+        } catch (SocketTimeoutException e) {
+            if (readTimeout > 0 && System.currentTimeMillis() - lastFrameMillis > readTimeout) {
+                throw new SocketTimeoutException("No data from peer for " + readTimeout + " ms");
+            }
+        }
+    }
+
+    /**
+     * Send INTERESTED if needed and block until the peer unchokes us.
+     */
+    private void awaitUnchoke() throws IOException {
+        if (!interested) {
+            encoder.interested().writeTo(outputStream);
+            interested = true;
+        }
+        while (choked) {
+            readFrame(readTimeout);
+        }
+    }
+
+    /**
+     * Like {@link #awaitUnchoke}, but also return once the peer allows us any of its pieces while choked.
+     */
+    private void awaitRequestable() throws IOException {
+        if (!interested) {
+            encoder.interested().writeTo(outputStream);
+            interested = true;
+        }
+        while (choked && Bitfield.cardinality(getRequestablePieces()) == 0) {
+            readFrame(readTimeout);
+        }
+    }
+
+    /**
+     * Read the next frame from the peer into the reusable frame buffer and dispatch it. The buffer's position
+     * tracks how much of the frame has arrived, so after a read timeout the call can simply be repeated.
+     *
+     * @param timeout the socket read timeout to wait with, set on the socket only when it changes
+     */
+    private void readFrame(int timeout) throws IOException {
+        if (timeout != currentTimeout) {
+            socket.setSoTimeout(timeout);
+            currentTimeout = timeout;
+        }
+        fillFrame(4);
+        int length = frame.getInt(0);
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("Invalid message length: " + length);
+        }
+        if (4 + length > frame.capacity()) {
+            // Only a large bitfield outgrows the block-sized buffer
+            frame = ByteBuffer.allocate(4 + length).put(frame.flip());
+        }
+        fillFrame(4 + length);
+        frame.flip();
+        try {
+            decoder.decode(frame, this);
+        } finally {
+            frame.clear();
+        }
+        lastFrameMillis = System.currentTimeMillis();
+    }
+
+    private void fillFrame(int length) throws IOException {
+        while (frame.position() < length) {
+            int read = inputStream.read(frame.array(), frame.position(), length - frame.position());
+            if (read < 0) {
+                throw new EOFException("Peer closed the connection");
+            }
+            frame.position(frame.position() + read);
+            if (downloadLimit != null) {
+                try {
+                    downloadLimit.acquire(read);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limited");
+                }
+                lastFrameMillis = System.currentTimeMillis();  // Waiting on the limit is not the peer's fault
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message.MessageType type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case CHOKE -> {
+                choked = true;
+                throughput.onChoked(!fast);
+                // A choking peer discards every pending request, so re-request whatever is still missing. A Fast
+                // Extension peer rejects them one by one instead
+                if (!fast) {
+                    for (ActivePiece piece : active) {
+                        piece.resetRequests();
+                    }
+                    outstanding = 0;
+                }
+            }
+            case UNCHOKE -> {
+                choked = false;
+                throughput.onUnchoked();
+            }
+            case BITFIELD -> {
+                // Copy in place so that references handed out by getPieces() stay current
+                long[] announced = Bitfield.fromPayload(payload, pieceCount);
+                System.arraycopy(announced, 0, pieces, 0, pieces.length);
+            }
+            case HAVE_ALL -> {
+                // A HAVE for every piece the peer lacked, so that one arriving after registration is counted
+                for (int index = 0; index < pieceCount; index++) {
+                    if (!Bitfield.get(pieces, index)) {
+                        Bitfield.set(pieces, index);
+                        haveListener.accept(index);
+                    }
+                }
+            }
+            case REJECT_REQUEST -> onRejected(payload.getInt(payload.position()), payload.getInt(payload.position() + 4));
+            case ALLOWED_FAST -> {
+                int index = Bitfield.haveIndex(payload);
+                if (index >= 0 && index < pieceCount) {
+                    Bitfield.set(allowedFast, index);
+                }
+            }
+            case HAVE -> {
+                int index = Bitfield.haveIndex(payload);
+                if (index >= 0 && index < pieceCount && !Bitfield.get(pieces, index)) {
+                    Bitfield.set(pieces, index);
+                    haveListener.accept(index);
+                }
+            }
+            case EXTENDED -> {
+                if (pex != null) {
+                    pex.onExtended(payload);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * The peer will not serve one of our requests. A block rejected while choked is asked for again after the next
+     * unchoke; while unchoked the peer cannot or will not serve the piece at all, so it goes back to the source for
+     * another peer, its remaining requests cancelled.
+     */
+    private void onRejected(int pieceIndex, int begin) throws IOException {
+        ActivePiece piece = findActive(pieceIndex);
+        int blockIndex = begin / BLOCK_SIZE;
+        if (piece == null || begin % BLOCK_SIZE != 0 || blockIndex >= piece.requested.length
+                || !piece.requested[blockIndex] || piece.received[blockIndex]) {
+            return;
+        }
+        piece.onRejected(blockIndex);
+        throughput.onCancelled();
+        outstanding--;
+        if (choked) {
+            return;
+        }
+        cancelPending(piece);
+        active.remove(piece);
+        source.release(pieceIndex);
+    }
+
+    /**
+     * Cancel every request still outstanding for a piece that is being dropped.
+     */
+    private void cancelPending(ActivePiece piece) throws IOException {
+        for (int block = 0; block < piece.requested.length; block++) {
+            if (piece.requested[block] && !piece.received[block]) {
+                if (!encoder.hasRoom(17)) {
+                    encoder.writeTo(outputStream);
+                }
+                encoder.cancel(piece.index, block * BLOCK_SIZE, piece.blockLength(block));
+                throughput.onCancelled();
+                outstanding--;
+            }
+        }
+    }
+
+    /**
+     * Store a block we asked for, unless it comes too late: a piece no longer claimed, having been completed
+     * elsewhere, is dropped along with its other requests, and a block another connection delivered first only
+     * counts as received here, so a verified piece or another peer's copy is never written over.
+     */
+    @Override
+    public void onPiece(int index, int begin, ByteBuffer block) throws IOException {
+        ActivePiece piece = findActive(index);
+        if (piece != null) {
+            restartIfFailed(piece);
+        }
+        int blockIndex = begin / BLOCK_SIZE;
+        if (piece == null || begin % BLOCK_SIZE != 0 || blockIndex >= piece.received.length || piece.received[blockIndex]) {
+            return;  // Late or unsolicited block
+        }
+        if (begin + block.remaining() > piece.length) {
+            throw new IOException("Block at offset " + begin + " overruns piece " + index);
+        }
+        throughput.onBlock(piece.sentAt[blockIndex], piece.deliveredAtSend[blockIndex], block.remaining());
+        outstanding--;
+        if (!source.isClaimed(index)) {
+            piece.received[blockIndex] = true;
+            cancelPending(piece);
+            active.remove(piece);
+            return;
+        }
+        if (!source.isReceived(index, begin)) {
+            sink.accept(index, begin, block);
+        }
+        piece.received[blockIndex] = true;
+        piece.receivedCount++;
+        if (piece.isComplete()) {
+            active.remove(piece);
+            source.onPieceComplete(index);
+        }
+    }
+
+    /**
+     * Send a single message immediately.
+     */
+    public void sendMessage(Message message) throws IOException {
+        encoder.message(message).writeTo(outputStream);
+    }
+
+    public boolean hasPiece(int pieceIndex) {
+        return Bitfield.get(pieces, pieceIndex);
+    }
+
+    /**
+     * The pieces this peer has announced, as a packed bitset that is updated in place by HAVE messages.
+     */
+    public long[] getPieces() {
+        return pieces;
+    }
+
+    /**
+     * Register a callback for each piece the peer did not have before that a HAVE or HAVE_ALL announces.
+     */
+    public void setHaveListener(IntConsumer haveListener) {
+        this.haveListener = haveListener;
+    }
+
+    /**
+     * The peer's pieces we may request right now: all of them while unchoked, only its allowed fast ones while
+     * choked. Valid until the next call.
+     */
+    public long[] getRequestablePieces() {
+        if (!choked) {
+            return pieces;
+        }
+        for (int w = 0; w < pieces.length; w++) {
+            requestable[w] = pieces[w] & allowedFast[w];
+        }
+        return requestable;
+    }
+
+    /**
+     * Charge everything read from the peer to {@code limit}, pausing whenever it is in debt, or stop limiting if
+     * {@code null}.
+     */
+    public void setDownloadLimit(TokenBucket limit) {
+        this.downloadLimit = limit;
+    }
+
+    public boolean isChoked() {
+        return choked;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public PeerThroughput getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pex != null) {
+            pex.close();
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,499 @@
+package client;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.util.Timeout;
+import util.BencodeView;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Finds peers by announcing to every tracker tier of a torrent (BEP 12) over HTTP or UDP (BEP 15), and on the DHT
+ * if one is set.
+ * <p>
+ * Tiers are announced to concurrently, each on its own virtual thread, and peers are handed on as each
+ * response arrives, so one slow or dead tracker never holds up the others. The DHT is looked up on a thread of
+ * its own alongside them. Within a tier, trackers are tried in
+ * order and the first one to answer moves to the front. HTTP connections are pooled and reused across
+ * announces.
+ */
+public class PeerDiscovery implements Closeable {
+    private static final int DEFAULT_INTERVAL_SECONDS = 1800;
+    private static final long MIN_RETRY_MILLIS = 15_000;
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+    private static final long DHT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(5);
+    private static final Timeout RESPONSE_TIMEOUT = Timeout.ofSeconds(10);
+
+    /**
+     * Announce event, with its code in the UDP protocol.
+     */
+    public enum Event {
+        NONE(null, 0),
+        COMPLETED("completed", 1),
+        STARTED("started", 2),
+        STOPPED("stopped", 3);
+
+        private final String httpName;
+        private final int udpCode;
+
+        Event(String httpName, int udpCode) {
+            this.httpName = httpName;
+            this.udpCode = udpCode;
+        }
+
+        int getUdpCode() {
+            return udpCode;
+        }
+    }
+
+    /**
+     * The useful part of one tracker response.
+     */
+    record Announce(int[] peers, int intervalSeconds) {
+    }
+
+    private final String infoHash;
+    private final String peerId;
+    private final int port;
+    private final int key = ThreadLocalRandom.current().nextInt();
+    private final int compact = 1;
+    private final TransferStats stats;
+    private final List<Tier> tiers = new ArrayList<>();
+    private final Map<String, UdpTracker> udpTrackers = new ConcurrentHashMap<>();
+    private final PeerRegistry registry;
+    private final List<Thread> announcers = new ArrayList<>();
+    private final CloseableHttpClient httpClient;
+    private DhtNode dht;
+    private volatile boolean closed;
+
+    PeerDiscovery(Torrent torrent) {
+        this(torrent, new TransferStats(torrent.getLength()), new PeerRegistry(), PeerServer.DEFAULT_PORT);
+    }
+
+    /**
+     * @param registry where discovered peers are recorded, possibly shared with other peer sources
+     * @param port     the port a {@link PeerServer} accepts other peers on, announced to the trackers
+     */
+    PeerDiscovery(Torrent torrent, TransferStats stats, PeerRegistry registry, int port) {
+        this.port = port;
+        this.peerId = torrent.getPeerId();
+        this.infoHash = torrent.getInfoHash();
+        this.stats = stats;
+        this.registry = registry;
+        for (List<String> urls : torrent.getAnnounceTiers()) {
+            tiers.add(new Tier(urls));
+        }
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                        .setDefaultConnectionConfig(ConnectionConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).build())
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom().setResponseTimeout(RESPONSE_TIMEOUT).build())
+                .build();
+    }
+
+    /**
+     * The registry that discovered peers are recorded in; the peer handles this class hands out refer to it.
+     */
+    public PeerRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Also find peers through a DHT node, and announce to it, from {@link #start} on.
+     */
+    public void setDht(DhtNode dht) {
+        this.dht = dht;
+    }
+
+    /**
+     * Announce once to every tier and wait for all of them to answer or give up.
+     *
+     * @return handles of the peers from all tiers, without duplicates, in tier order
+     */
+    public int[] getPeers() {
+        List<Thread> threads = new ArrayList<>();
+        List<int[]> results = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (Tier tier : tiers) {
+            int slot = results.size();
+            results.add(null);
+            threads.add(Thread.ofVirtual().name("announce").start(() -> {
+                try {
+                    int[] peers = tier.announce(Event.STARTED).peers();
+                    tier.started = true;
+                    synchronized (results) {
+                        results.set(slot, peers);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    synchronized (results) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (results) {
+            if (failures.size() == tiers.size()) {
+                Exception cause = failures.isEmpty() ? null : failures.getFirst();
+                throw new RuntimeException("Error fetching peers: "
+                        + (cause == null ? "the torrent lists no trackers" : cause.getMessage()), cause);
+            }
+            boolean[] seen = new boolean[registry.size()];
+            int[] peers = new int[registry.size()];
+            int count = 0;
+            for (int[] result : results) {
+                for (int peer : result == null ? new int[0] : result) {
+                    if (!seen[peer]) {
+                        seen[peer] = true;
+                        peers[count++] = peer;
+                    }
+                }
+            }
+            return Arrays.copyOf(peers, count);
+        }
+    }
+
+    /**
+     * Start announcing to every tier in the background, re-announcing at the interval each tracker asks for and
+     * retrying failed tiers with backoff.
+     *
+     * @param onPeer       receives each reported peer that may be dialled now, as each response arrives: one that
+     *                     is not connected and not backing off after failures, see {@link PeerRegistry#tryDial}
+     * @param onFirstRound runs once every tier, and the DHT, has answered or failed its first announce
+     */
+    public void start(IntConsumer onPeer, Runnable onFirstRound) {
+        AtomicInteger firstRoundPending = new AtomicInteger(tiers.size() + (dht != null ? 1 : 0));
+        if (firstRoundPending.get() == 0) {
+            onFirstRound.run();
+        }
+        if (dht != null) {
+            announcers.add(Thread.ofVirtual().name("dht-lookup").start(() -> lookUpDht(onPeer, () -> {
+                if (firstRoundPending.decrementAndGet() == 0) {
+                    onFirstRound.run();
+                }
+            })));
+        }
+        for (Tier tier : tiers) {
+            announcers.add(Thread.ofVirtual().name("announce").start(() -> {
+                boolean firstRound = true;
+                long retryMillis = MIN_RETRY_MILLIS;
+                while (!closed) {
+                    long delayMillis;
+                    try {
+                        Announce announce = tier.announce(tier.started ? Event.NONE : Event.STARTED);
+                        tier.started = true;
+                        for (int peer : announce.peers()) {
+                            if (registry.tryDial(peer)) {
+                                onPeer.accept(peer);
+                            }
+                        }
+                        delayMillis = TimeUnit.SECONDS.toMillis(announce.intervalSeconds() > 0
+                                ? announce.intervalSeconds() : DEFAULT_INTERVAL_SECONDS);
+                        retryMillis = MIN_RETRY_MILLIS;
+                    } catch (IOException | RuntimeException e) {
+                        if (closed) {
+                            return;
+                        }
+                        System.err.println("Announce failed for tier " + tier.urls + ": " + e.getMessage());
+                        delayMillis = retryMillis;
+                        retryMillis = Math.min(retryMillis * 2, TimeUnit.SECONDS.toMillis(DEFAULT_INTERVAL_SECONDS));
+                    }
+                    if (firstRound) {
+                        firstRound = false;
+                        if (firstRoundPending.decrementAndGet() == 0) {
+                            onFirstRound.run();
+                        }
+                    }
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Look up the torrent on the DHT and announce to it every {@code DHT_INTERVAL_MILLIS}, or sooner with backoff
+     * while the lookups find no peers, as a swarm that is just starting may not have announced yet.
+     */
+    private void lookUpDht(IntConsumer onPeer, Runnable onFirstRound) {
+        byte[] hash = HexFormat.of().parseHex(infoHash);
+        boolean firstRound = true;
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (!closed) {
+            AtomicInteger found = new AtomicInteger();
+            dht.findPeers(hash, port, address -> {
+                found.incrementAndGet();
+                int peer = registry.add(address.getAddress(), address.getPort());
+                if (registry.tryDial(peer)) {
+                    onPeer.accept(peer);
+                }
+            });
+            if (firstRound) {
+                firstRound = false;
+                onFirstRound.run();
+            }
+            long delayMillis = found.get() > 0 ? DHT_INTERVAL_MILLIS : retryMillis;
+            retryMillis = found.get() > 0 ? MIN_RETRY_MILLIS : Math.min(retryMillis * 2, DHT_INTERVAL_MILLIS);
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tell the trackers that were told we started that the download is complete, so they count us as a seed.
+     * Best effort, on background threads.
+     */
+    public void onCompleted() {
+        for (Tier tier : tiers) {
+            if (tier.started) {
+                Thread.ofVirtual().name("announce").start(() -> {
+                    try {
+                        tier.announce(Event.COMPLETED);
+                    } catch (IOException | RuntimeException e) {
+                        // The next regular announce reports left=0 anyway
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stop re-announcing and tell the trackers that were told we started that we are leaving, waiting at most
+     * {@code STOP_TIMEOUT_MILLIS} for them.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        announcers.forEach(Thread::interrupt);
+        List<Thread> stopping = new ArrayList<>();
+        for (Tier tier : tiers) {
+            if (tier.started) {
+                stopping.add(Thread.ofVirtual().name("announce").start(() -> {
+                    try {
+                        tier.announce(Event.STOPPED);
+                    } catch (IOException | RuntimeException e) {
+                        // Best effort; the tracker drops us after its interval anyway
+                    }
+                }));
+            }
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        try {
+            for (Thread thread : stopping) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        udpTrackers.values().forEach(UdpTracker::close);
+        httpClient.close();
+    }
+
+    /**
+     * One tier of trackers, tried in order until one answers. Announces are serialized with a lock rather than
+     * {@code synchronized}, which would pin the virtual thread's carrier while waiting on a slow tracker.
+     */
+    private final class Tier {
+        private final List<String> urls;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile boolean started;
+
+        Tier(List<String> urls) {
+            this.urls = new ArrayList<>(urls);
+        }
+
+        Announce announce(Event event) throws IOException {
+            lock.lock();
+            try {
+                Exception failure = null;
+                for (int i = 0; i < urls.size(); i++) {
+                    String url = urls.get(i);
+                    try {
+                        Announce announce = announceTo(url, event);
+                        if (i > 0) {
+                            urls.remove(i);
+                            urls.addFirst(url);
+                        }
+                        return announce;
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                throw failure instanceof IOException io ? io : new IOException(failure == null ? "empty tier" : failure.getMessage(), failure);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Announce announceTo(String url, Event event) throws IOException {
+        URI uri = URI.create(url);
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme();
+        return switch (scheme) {
+            case "http", "https" -> announceHttp(url, event);
+            case "udp" -> udpTrackers.computeIfAbsent(url, u -> new UdpTracker(uri))
+                    .announce(HexFormat.of().parseHex(infoHash), peerId.getBytes(StandardCharsets.ISO_8859_1), port, key, stats, event,
+                            registry);
+            default -> throw new IOException("Unsupported tracker protocol: " + url);
+        };
+    }
+
+    private Announce announceHttp(String trackerUrl, Event event) throws IOException {
+        try {
+            // Build the request URL
+            URIBuilder requestUrlBuilder = new URIBuilder(trackerUrl).setParameters(
+                    new BasicNameValuePair("peer_id", peerId),
+                    new BasicNameValuePair("port", String.valueOf(port)),
+                    new BasicNameValuePair("uploaded", String.valueOf(stats.getUploaded())),
+                    new BasicNameValuePair("downloaded", String.valueOf(stats.getDownloaded())),
+                    new BasicNameValuePair("left", String.valueOf(stats.getLeft())),
+                    new BasicNameValuePair("compact", String.valueOf(compact)),
+                    new BasicNameValuePair("key", Integer.toHexString(key))
+            );
+            if (event.httpName != null) {
+                requestUrlBuilder.addParameter("event", event.httpName);
+            }
+            requestUrlBuilder.addParameter("info_hash", "");
+
+            String requestUrl = requestUrlBuilder.build() + urlEncodeInfoHash(infoHash);
+
+            HttpGet request = new HttpGet(requestUrl);
+
+            // Handle the response
+            HttpClientResponseHandler<BencodeView> responseHandler = response -> {
+                int statusCode = response.getCode();
+                if (statusCode != 200) {
+                    throw new HttpException("Tracker request failed: HTTP " + statusCode);
+                }
+                try (InputStream content = new BufferedInputStream(response.getEntity().getContent())) {
+                    return BencodeView.read(content);
+                }
+            };
+
+            BencodeView trackerResponse = httpClient.execute(request, responseHandler);
+            BencodeView interval = trackerResponse.getType() == BencodeView.Type.DICTIONARY
+                    ? trackerResponse.get("interval") : null;
+            return new Announce(parsePeers(trackerResponse),
+                    interval != null && interval.getType() == BencodeView.Type.INTEGER ? (int) interval.asLong() : 0);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid tracker URL: " + trackerUrl, e);
+        }
+    }
+
+    private String urlEncodeInfoHash(String hexInfoHash) {
+        // Step 1: Convert hex string to binary data
+        byte[] binaryInfoHash = HexFormat.of().parseHex(hexInfoHash);
+
+        // Step 2: URL-encode the binary data
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : binaryInfoHash) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_' || b == '.' || b == '~') {
+                // Alphanumeric or safe character, add as-is
+                encoded.append((char) b);
+            } else {
+                // Unsafe character, convert to %XX format
+                encoded.append(String.format("%%%02x", b)); // Use %02x for lowercase if needed
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Register the peers of a response, which may come as a compact string, a list of dictionaries from
+     * trackers that ignore {@code compact=1}, and a compact IPv6 {@code peers6} string.
+     */
+    private int[] parsePeers(BencodeView response) {
+        if (response.getType() != BencodeView.Type.DICTIONARY) {
+            throw new IllegalArgumentException("Invalid tracker response format: Expected a dictionary");
+        }
+        BencodeView failure = response.get("failure reason");
+        if (failure != null) {
+            throw new IllegalStateException("Tracker refused the announce: " + failure.asString());
+        }
+        BencodeView peers = response.get("peers");
+        BencodeView peers6 = response.get("peers6");
+        if (peers == null && peers6 == null) {
+            throw new IllegalArgumentException("Invalid tracker response format: Missing 'peers' key");
+        }
+
+        int[] handles = new int[0];
+        if (peers != null && peers.getType() == BencodeView.Type.LIST) {
+            handles = parsePeerDictionaries(peers);
+        } else if (peers != null) {
+            handles = registry.addCompact(peers.asBytes(), false);
+        }
+        if (peers6 != null && peers6.getType() == BencodeView.Type.STRING) {
+            int[] ipv6 = registry.addCompact(peers6.asBytes(), true);
+            int[] merged = Arrays.copyOf(handles, handles.length + ipv6.length);
+            System.arraycopy(ipv6, 0, merged, handles.length, ipv6.length);
+            handles = merged;
+        }
+        return handles;
+    }
+
+    private int[] parsePeerDictionaries(BencodeView peers) {
+        List<BencodeView> entries = peers.elements();
+        int[] handles = new int[entries.size()];
+        int count = 0;
+        for (BencodeView peer : entries) {
+            BencodeView ip = peer.getType() == BencodeView.Type.DICTIONARY ? peer.get("ip") : null;
+            BencodeView peerPort = ip == null ? null : peer.get("port");
+            if (peerPort == null || peerPort.getType() != BencodeView.Type.INTEGER) {
+                continue;
+            }
+            // Only literal addresses are accepted, so that a tracker cannot make us resolve host names
+            String host = ip.asString();
+            if (!host.matches("[0-9.]+") && !host.contains(":")) {
+                continue;
+            }
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                handles[count++] = registry.add(address, (int) peerPort.asLong());
+            } catch (UnknownHostException e) {
+                // Skip malformed literals
+            }
+        }
+        return Arrays.copyOf(handles, count);
+    }
+}
@@ -0,0 +1,266 @@
+package client;
+
+import util.BencodeCodec;
+import util.BencodeView;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Peer Exchange (BEP 11) for one torrent, carried over the extension protocol (BEP 10): connected peers tell each
+ * other about the peers they are connected to, so a large swarm is found without waiting for tracker announces.
+ * <p>
+ * Each connection gets a {@link Peer}, which sends the extension handshake and then, at most once every
+ * {@value #INTERVAL_SECONDS} seconds, the changes to our set of connected peers since its last message, as
+ * {@code added} and {@code dropped} lists in compact form. Peers we hear about are added to the
+ * {@link PeerRegistry} and dialled like tracker peers; the ones reported dropped are left to the registry's backoff,
+ * as another peer losing its connection says little about whether we can reach them.
+ */
+public class PeerExchange {
+    // Our ID for ut_pex messages, which the peer uses when it sends us one
+    public static final int LOCAL_PEX_ID = 1;
+    // Upper bound on an encoded ut_pex message with its frame header: 50 added and 50 dropped IPv6 peers at most
+    public static final int MAX_MESSAGE_LENGTH = 2048;
+    private static final int HANDSHAKE_ID = 0;
+    private static final long INTERVAL_SECONDS = 60;
+    private static final int MAX_PEERS_PER_MESSAGE = 50;
+    private static final int FLAG_REACHABLE = 0x10;
+    private static final String CLIENT_VERSION = "JavaTorrent 1.0";
+
+    private final PeerRegistry registry;
+    private final IntConsumer onPeer;
+    private final int listenPort;
+    // Listen addresses of the peers we are connected to, with their BEP 11 flags
+    private final Map<InetSocketAddress, Integer> connected = new HashMap<>();
+
+    /**
+     * @param onPeer     receives each peer heard about that may be dialled now, see {@link PeerRegistry#tryDial}
+     * @param listenPort the port other peers can connect to us on, told to every peer in the extension handshake
+     */
+    public PeerExchange(PeerRegistry registry, IntConsumer onPeer, int listenPort) {
+        this.registry = registry;
+        this.onPeer = onPeer;
+        this.listenPort = listenPort;
+    }
+
+    /**
+     * Start exchanging peers on a connection whose peer set the extension protocol bit in its handshake.
+     *
+     * @param remote   the peer's address
+     * @param outbound whether we dialled it, in which case {@code remote} is where it accepts connections; a peer
+     *                 that dialled us is only listed to others once it tells us its listen port
+     */
+    public Peer open(InetSocketAddress remote, boolean outbound) {
+        Peer peer = new Peer(remote);
+        if (outbound) {
+            peer.listenAddress = remote;
+            connect(remote, FLAG_REACHABLE);
+        }
+        return peer;
+    }
+
+    private synchronized void connect(InetSocketAddress address, int flags) {
+        connected.merge(address, flags, (old, added) -> old | added);
+    }
+
+    private synchronized void disconnect(InetSocketAddress address) {
+        connected.remove(address);
+    }
+
+    private synchronized Map<InetSocketAddress, Integer> snapshot() {
+        return new HashMap<>(connected);
+    }
+
+    /**
+     * The exchange with one connected peer; not thread-safe, it belongs to the connection's thread.
+     */
+    public final class Peer {
+        private final InetSocketAddress remote;
+        private InetSocketAddress listenAddress;
+        private final Set<InetSocketAddress> sent = new LinkedHashSet<>();
+        private int remotePexId;
+        private long nextSendNanos = System.nanoTime();
+        private long nextReceiveNanos = System.nanoTime();
+        private boolean closed;
+
+        private Peer(InetSocketAddress remote) {
+            this.remote = remote;
+        }
+
+        /**
+         * The extension handshake, the payload of the EXTENDED message with ID 0 we send first.
+         */
+        public byte[] handshake() {
+            Map<String, Object> extensions = new TreeMap<>();
+            extensions.put("ut_pex", (long) LOCAL_PEX_ID);
+            Map<String, Object> handshake = new TreeMap<>();
+            handshake.put("m", extensions);
+            handshake.put("p", (long) listenPort);
+            handshake.put("v", CLIENT_VERSION);
+            return encode(HANDSHAKE_ID, handshake);
+        }
+
+        /**
+         * Handle the payload of an EXTENDED message: the peer's extension handshake, or a ut_pex message.
+         * Malformed messages are ignored, as are ut_pex messages arriving at more than twice the rate we send ours.
+         */
+        public void onExtended(ByteBuffer payload) {
+            if (!payload.hasRemaining()) {
+                return;
+            }
+            int id = payload.get(payload.position()) & 0xFF;
+            BencodeView message;
+            try {
+                message = BencodeView.of(payload.slice(payload.position() + 1, payload.remaining() - 1));
+                if (message.getType() != BencodeView.Type.DICTIONARY) {
+                    return;
+                }
+                if (id == HANDSHAKE_ID) {
+                    onHandshake(message);
+                } else if (id == LOCAL_PEX_ID) {
+                    onPex(message);
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Not worth dropping the connection over
+            }
+        }
+
+        private void onHandshake(BencodeView handshake) {
+            BencodeView extensions = handshake.get("m");
+            BencodeView pex = extensions == null || extensions.getType() != BencodeView.Type.DICTIONARY
+                    ? null : extensions.get("ut_pex");
+            // An ID of 0 turns the extension off again
+            remotePexId = pex != null && pex.getType() == BencodeView.Type.INTEGER ? (int) pex.asLong() : 0;
+            BencodeView port = handshake.get("p");
+            if (listenAddress == null && port != null && port.getType() == BencodeView.Type.INTEGER
+                    && port.asLong() > 0 && port.asLong() <= 0xFFFF && !closed) {
+                listenAddress = new InetSocketAddress(remote.getAddress(), (int) port.asLong());
+                connect(listenAddress, 0);
+            }
+        }
+
+        private void onPex(BencodeView message) {
+            long now = System.nanoTime();
+            if (now - nextReceiveNanos < 0) {
+                return;
+            }
+            nextReceiveNanos = now + TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS) / 2;
+            addPeers(message.get("added"), false);
+            addPeers(message.get("added6"), true);
+        }
+
+        private void addPeers(BencodeView compact, boolean ipv6) {
+            if (compact == null || compact.getType() != BencodeView.Type.STRING) {
+                return;
+            }
+            ByteBuffer peers = compact.asBytes();
+            int entryLength = ipv6 ? 18 : 6;
+            peers.limit(peers.position() + Math.min(peers.remaining(), MAX_PEERS_PER_MESSAGE * entryLength));
+            for (int peer : registry.addCompact(peers, ipv6)) {
+                if (registry.tryDial(peer)) {
+                    onPeer.accept(peer);
+                }
+            }
+        }
+
+        /**
+         * The ID to send this peer's ut_pex messages with, or 0 if it does not support them.
+         */
+        public int getRemotePexId() {
+            return remotePexId;
+        }
+
+        /**
+         * The next ut_pex message for the peer, with the leading extended message ID, if one is due and there is
+         * anything new to tell it; otherwise {@code null}.
+         */
+        public byte[] poll(long nowNanos) {
+            if (remotePexId == 0 || nowNanos - nextSendNanos < 0) {
+                return null;
+            }
+            Map<InetSocketAddress, Integer> current = snapshot();
+            current.remove(listenAddress);
+            List<InetSocketAddress> added = new ArrayList<>();
+            for (InetSocketAddress address : current.keySet()) {
+                if (!sent.contains(address) && added.size() < MAX_PEERS_PER_MESSAGE) {
+                    added.add(address);
+                }
+            }
+            List<InetSocketAddress> dropped = new ArrayList<>();
+            for (InetSocketAddress address : sent) {
+                if (!current.containsKey(address) && dropped.size() < MAX_PEERS_PER_MESSAGE) {
+                    dropped.add(address);
+                }
+            }
+            if (added.isEmpty() && dropped.isEmpty()) {
+                return null;
+            }
+            nextSendNanos = nowNanos + TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS);
+            sent.addAll(added);
+            dropped.forEach(sent::remove);
+
+            Map<String, Object> message = new TreeMap<>();
+            putPeers(message, "added", added, current, Inet4Address.class);
+            putPeers(message, "added6", added, current, Inet6Address.class);
+            putPeers(message, "dropped", dropped, null, Inet4Address.class);
+            putPeers(message, "dropped6", dropped, null, Inet6Address.class);
+            return encode(remotePexId, message);
+        }
+
+        /**
+         * The connection closed: stop listing the peer to others.
+         */
+        public void close() {
+            closed = true;
+            if (listenAddress != null) {
+                disconnect(listenAddress);
+            }
+        }
+    }
+
+    /**
+     * Put the peers of one address family in compact form under {@code key}, and their flags under
+     * {@code key + ".f"} if {@code flags} is given.
+     */
+    private static void putPeers(Map<String, Object> message, String key, List<InetSocketAddress> peers,
+                                 Map<InetSocketAddress, Integer> flags, Class<? extends InetAddress> family) {
+        int entryLength = family == Inet4Address.class ? 6 : 18;
+        List<InetSocketAddress> matching = peers.stream().filter(peer -> family.isInstance(peer.getAddress())).toList();
+        ByteBuffer compact = ByteBuffer.allocate(matching.size() * entryLength);
+        byte[] peerFlags = new byte[matching.size()];
+        for (int i = 0; i < matching.size(); i++) {
+            InetSocketAddress peer = matching.get(i);
+            compact.put(peer.getAddress().getAddress()).putChar((char) peer.getPort());
+            if (flags != null) {
+                peerFlags[i] = (byte) (int) flags.getOrDefault(peer, 0);
+            }
+        }
+        message.put(key, compact.array());
+        if (flags != null) {
+            message.put(key + ".f", peerFlags);
+        }
+    }
+
+    private static byte[] encode(int extendedId, Map<String, Object> dictionary) {
+        try {
+            byte[] bencoded = BencodeCodec.encodeBencode(dictionary);
+            return ByteBuffer.allocate(1 + bencoded.length).put((byte) extendedId).put(bencoded).array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // Writing to memory does not fail
+        }
+    }
+}
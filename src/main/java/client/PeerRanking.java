@@ -0,0 +1,47 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ranks the live connections of a torrent by measured delivery rate, so the slowest can be snubbed.
+ * <p>
+ * A connection delivering less than {@link #SLOW_FRACTION} of the fastest one's rate is marked slow: it keeps a
+ * single request outstanding and is not handed endgame duplicates, leaving the work to faster peers. The fast
+ * ones get more work simply by keeping larger windows. The ranking is recomputed at most once a second.
+ */
+public class PeerRanking {
+    private static final double SLOW_FRACTION = 1.0 / 16;
+    private static final int MIN_SAMPLES = 8;
+    private static final long REFRESH_NANOS = 1_000_000_000L;
+
+    private final List<PeerThroughput> peers = new ArrayList<>();
+    private long lastRefreshNanos = System.nanoTime();
+
+    public synchronized void add(PeerThroughput peer) {
+        peers.add(peer);
+    }
+
+    public synchronized void remove(PeerThroughput peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Recompute which connections are slow, unless that was done within the last second.
+     */
+    public synchronized void refresh(long nowNanos) {
+        if (nowNanos - lastRefreshNanos < REFRESH_NANOS) {
+            return;
+        }
+        lastRefreshNanos = nowNanos;
+        double fastest = 0;
+        for (PeerThroughput peer : peers) {
+            fastest = Math.max(fastest, peer.getBytesPerSecond());
+        }
+        for (PeerThroughput peer : peers) {
+            // A peer is only judged once it has delivered enough blocks for its rate to mean something
+            peer.slow = peers.size() > 1 && peer.getSamples() >= MIN_SAMPLES
+                    && peer.getBytesPerSecond() < fastest * SLOW_FRACTION;
+        }
+    }
+}
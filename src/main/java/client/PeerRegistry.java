@@ -0,0 +1,189 @@
+package client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Every peer endpoint seen for a torrent, from any source, stored in primitive arrays and referred to by a dense
+ * {@code int} handle.
+ * <p>
+ * Addresses are kept as two {@code long}s of IPv6 address bits, with IPv4 peers stored as IPv4-mapped addresses
+ * ({@code ::ffff:a.b.c.d}), and are deduplicated through an open-addressing hash table. Per-peer dial state
+ * (connected, consecutive failures, next allowed attempt) lives alongside, so dead peers are not redialled on
+ * every announce. {@link InetSocketAddress} objects and strings are only created when a peer is actually
+ * dialled or printed.
+ */
+public class PeerRegistry {
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFFL << 32;
+    private static final long BASE_BACKOFF_MILLIS = 5_000;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 60_000;
+
+    private long[] high = new long[64];
+    private long[] low = new long[64];
+    private char[] ports = new char[64];
+    private long[] lastSeen = new long[64];
+    private long[] nextAttempt = new long[64];
+    private int[] failures = new int[64];
+    private boolean[] connected = new boolean[64];
+    private int size;
+
+    // Open-addressing table of handle + 1, with 0 marking an empty slot; kept at most half full
+    private int[] slots = new int[128];
+
+    /**
+     * Register a peer, or refresh when it was last seen if it is already known.
+     *
+     * @return the peer's handle
+     */
+    public synchronized int add(long addressHigh, long addressLow, int port) {
+        int mask = slots.length - 1;
+        int slot = hash(addressHigh, addressLow, port) & mask;
+        for (int handle; (handle = slots[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+            if (high[handle] == addressHigh && low[handle] == addressLow && ports[handle] == port) {
+                lastSeen[handle] = System.currentTimeMillis();
+                return handle;
+            }
+        }
+
+        if (size == high.length) {
+            grow();
+        }
+        int handle = size++;
+        high[handle] = addressHigh;
+        low[handle] = addressLow;
+        ports[handle] = (char) port;
+        lastSeen[handle] = System.currentTimeMillis();
+        slots[slot] = handle + 1;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return handle;
+    }
+
+    public int add(InetAddress address, int port) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            return add(0, IPV4_MAPPED_PREFIX | (ByteBuffer.wrap(bytes).getInt() & 0xFFFFFFFFL), port);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return add(buffer.getLong(), buffer.getLong(), port);
+    }
+
+    /**
+     * Register every peer of a compact peer list: 6 bytes per IPv4 peer, or 18 per IPv6 peer, each address
+     * followed by a big-endian port. The buffer is read between its position and limit without being consumed.
+     *
+     * @return the handles of the peers in the list, in order
+     */
+    public int[] addCompact(ByteBuffer peers, boolean ipv6) {
+        int entrySize = ipv6 ? 18 : 6;
+        int count = peers.remaining() / entrySize;
+        int[] handles = new int[count];
+        int offset = peers.position();
+        for (int i = 0; i < count; i++, offset += entrySize) {
+            if (ipv6) {
+                handles[i] = add(peers.getLong(offset), peers.getLong(offset + 8), peers.getChar(offset + 16));
+            } else {
+                handles[i] = add(0, IPV4_MAPPED_PREFIX | (peers.getInt(offset) & 0xFFFFFFFFL), peers.getChar(offset + 4));
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Claim a peer for a connection attempt, unless it is already connected or still backing off after failures.
+     */
+    public synchronized boolean tryDial(int peer) {
+        if (connected[peer] || System.currentTimeMillis() < nextAttempt[peer]) {
+            return false;
+        }
+        connected[peer] = true;
+        return true;
+    }
+
+    /**
+     * Record the end of a connection. A peer that failed waits twice as long as last time before it may be
+     * dialled again; one that worked may be dialled again straight away.
+     */
+    public synchronized void onDisconnected(int peer, boolean failed) {
+        connected[peer] = false;
+        if (failed) {
+            int shift = Math.min(failures[peer]++, 20);
+            nextAttempt[peer] = System.currentTimeMillis() + Math.min(BASE_BACKOFF_MILLIS << shift, MAX_BACKOFF_MILLIS);
+        } else {
+            failures[peer] = 0;
+            nextAttempt[peer] = 0;
+        }
+    }
+
+    public synchronized InetSocketAddress getAddress(int peer) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(addressBytes(peer)), ports[peer]);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid stored address", e);  // Only thrown for a bad length
+        }
+    }
+
+    /**
+     * The peer as {@code ip:port}, with IPv6 addresses in brackets.
+     */
+    public synchronized String format(int peer) {
+        InetSocketAddress address = getAddress(peer);
+        String host = address.getAddress().getHostAddress();
+        return (isIPv4(peer) ? host : "[" + host + "]") + ":" + address.getPort();
+    }
+
+    public synchronized long getLastSeen(int peer) {
+        return lastSeen[peer];
+    }
+
+    public synchronized int getFailures(int peer) {
+        return failures[peer];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private boolean isIPv4(int peer) {
+        return high[peer] == 0 && (low[peer] & 0xFFFFFFFF00000000L) == IPV4_MAPPED_PREFIX;
+    }
+
+    private byte[] addressBytes(int peer) {
+        if (isIPv4(peer)) {
+            return ByteBuffer.allocate(4).putInt((int) low[peer]).array();
+        }
+        return ByteBuffer.allocate(16).putLong(high[peer]).putLong(low[peer]).array();
+    }
+
+    private static int hash(long addressHigh, long addressLow, int port) {
+        long h = (addressHigh * 31 + addressLow) * 0x9E3779B97F4A7C15L + port;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void grow() {
+        int capacity = high.length * 2;
+        high = Arrays.copyOf(high, capacity);
+        low = Arrays.copyOf(low, capacity);
+        ports = Arrays.copyOf(ports, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        nextAttempt = Arrays.copyOf(nextAttempt, capacity);
+        failures = Arrays.copyOf(failures, capacity);
+        connected = Arrays.copyOf(connected, capacity);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int handle = 0; handle < size; handle++) {
+            int slot = hash(high[handle], low[handle], ports[handle]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = handle + 1;
+        }
+    }
+}
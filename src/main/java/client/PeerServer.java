@@ -0,0 +1,83 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Accepts incoming peer connections on the port announced to the trackers.
+ * <p>
+ * The first free port of the conventional range {@value #DEFAULT_PORT}-{@value #LAST_PORT} is used, so that
+ * several clients can run on one host, and an ephemeral one if the whole range is taken. Accepted sockets are
+ * handed on in non-blocking mode; the handshake is left to the consumer.
+ */
+public class PeerServer implements Closeable {
+    public static final int DEFAULT_PORT = 6881;
+    private static final int LAST_PORT = 6889;
+
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+
+    public PeerServer(Consumer<SocketChannel> onAccepted) throws IOException {
+        this.server = bind();
+        this.acceptor = Thread.ofPlatform().daemon().name("peer-server").start(() -> acceptLoop(onAccepted));
+    }
+
+    private static ServerSocketChannel bind() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            for (int port = DEFAULT_PORT; port <= LAST_PORT; port++) {
+                try {
+                    return channel.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    // Taken, try the next one
+                }
+            }
+            return channel.bind(new InetSocketAddress(0));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void acceptLoop(Consumer<SocketChannel> onAccepted) {
+        while (server.isOpen()) {
+            SocketChannel channel = null;
+            try {
+                channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                onAccepted.accept(channel);
+            } catch (IOException | RuntimeException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Dropping it anyway
+                    }
+                }
+                if (!server.isOpen()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package client;
+
+/**
+ * Measures the block round-trip time and delivery rate of one peer connection, and sizes its window of
+ * outstanding requests from them.
+ * <p>
+ * The connection stamps every request with {@link #now()} and {@link #getDelivered()}, the bytes the peer had
+ * delivered at that moment, and hands both back to {@link #onBlock} when the block arrives. The elapsed time is
+ * then a round-trip sample, and the bytes delivered in the meantime divided by that time is a delivery-rate
+ * sample. The window is twice the bandwidth-delay product, the highest recent rate sample times the lowest recent
+ * round trip, in blocks. While the window itself is what limits the peer, the measured rate grows with it and the
+ * window doubles every round trip; once the link is full the rate stops growing and the window settles at what
+ * keeps it full, without piling up requests that a slow peer would only queue.
+ * <p>
+ * It also keeps the connection's traffic and choke counters, and reports every block and its latency to the
+ * download's {@link Metrics}.
+ * <p>
+ * Updated only by the thread driving the connection; the rate is also read by {@link PeerRanking}, and the
+ * counters by {@link Metrics} snapshots.
+ */
+public class PeerThroughput {
+    static final long SNUB_NANOS = 5_000_000_000L;
+    private static final double GAIN = 2.0;
+    private static final double RATE_SMOOTHING = 0.125;
+    private static final long MIN_RTT_LIFETIME_NANOS = 10_000_000_000L;
+    private static final long MAX_RATE_LIFETIME_NANOS = 2_000_000_000L;
+
+    private final PeerRanking ranking;
+    private final Metrics metrics;
+    private final int minWindow;
+    private final int maxWindow;
+    private int window;
+
+    private volatile long delivered;
+    private volatile long uploaded;
+    private volatile int pending;
+    private long lastProgressNanos = now();
+
+    private long minRttNanos = Long.MAX_VALUE;
+    private long minRttStampNanos;
+    // Windowed maximum of the rate samples, kept as the maxima of the current and the previous period
+    private double maxRate;
+    private double previousMaxRate;
+    private long maxRateStampNanos;
+
+    private volatile long smoothedRttNanos;
+    private volatile double bytesPerSecond;
+    private volatile int samples;
+    private volatile long chokedNanos;
+    private volatile long chokedSinceNanos = now();  // Every connection starts out choked
+    volatile boolean slow;
+
+    /**
+     * @param ranking the ranking the connection is part of, refreshed as blocks arrive, or {@code null}
+     * @param metrics where blocks are reported, or {@code null}
+     */
+    public PeerThroughput(PeerRanking ranking, Metrics metrics, int minWindow, int maxWindow) {
+        if (minWindow < 1 || maxWindow < minWindow) {
+            throw new IllegalArgumentException("Invalid pipeline depth bounds: " + minWindow + ".." + maxWindow);
+        }
+        this.ranking = ranking;
+        this.metrics = metrics;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.window = Math.clamp(PeerConnection.DEFAULT_PIPELINE_DEPTH, minWindow, maxWindow);
+    }
+
+    /**
+     * A window that always stays at {@code depth}, e.g. for a one-off piece download.
+     */
+    public static PeerThroughput fixed(int depth) {
+        return new PeerThroughput(null, null, depth, depth);
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Bytes delivered by the peer so far, to stamp a request with.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public void onRequest() {
+        if (pending++ == 0) {
+            lastProgressNanos = now();  // The snub clock only runs while the peer owes us blocks
+        }
+    }
+
+    /**
+     * A requested block arrived.
+     *
+     * @param sentAtNanos     {@link #now()} when the block was requested
+     * @param deliveredAtSend {@link #getDelivered()} when the block was requested
+     */
+    public void onBlock(long sentAtNanos, long deliveredAtSend, int length) {
+        long now = now();
+        delivered += length;
+        pending = Math.max(0, pending - 1);
+        lastProgressNanos = now;
+
+        long rtt = Math.max(1, now - sentAtNanos);
+        if (rtt < minRttNanos || now - minRttStampNanos > MIN_RTT_LIFETIME_NANOS) {
+            minRttNanos = rtt;
+            minRttStampNanos = now;
+        }
+        long smoothed = smoothedRttNanos;
+        smoothedRttNanos = smoothed == 0 ? rtt : smoothed + (rtt - smoothed) / 8;
+
+        double sample = (delivered - deliveredAtSend) * 1e9 / rtt;
+        double rate = bytesPerSecond;
+        bytesPerSecond = samples == 0 ? sample : rate + RATE_SMOOTHING * (sample - rate);
+        samples++;
+        if (now - maxRateStampNanos > MAX_RATE_LIFETIME_NANOS) {
+            previousMaxRate = maxRate;
+            maxRate = 0;
+            maxRateStampNanos = now;
+        }
+        maxRate = Math.max(maxRate, sample);
+
+        double bdpBlocks = Math.max(maxRate, previousMaxRate) * minRttNanos / 1e9 / PeerConnection.BLOCK_SIZE;
+        window = Math.clamp((long) Math.ceil(GAIN * bdpBlocks), minWindow, maxWindow);
+        if (ranking != null) {
+            ranking.refresh(now);
+        }
+        if (metrics != null) {
+            metrics.onBlockReceived(length, rtt);
+        }
+    }
+
+    /**
+     * We sent the peer a block it requested.
+     */
+    public void onBlockSent(int length) {
+        uploaded += length;
+        if (metrics != null) {
+            metrics.onBlockSent(length);
+        }
+    }
+
+    /**
+     * A request was cancelled, or its block arrived from another peer.
+     */
+    public void onCancelled() {
+        pending = Math.max(0, pending - 1);
+    }
+
+    /**
+     * The peer choked us. Without the Fast Extension that discards every pending request; with it, each one the
+     * peer will not serve is rejected separately.
+     */
+    public void onChoked(boolean requestsDiscarded) {
+        if (requestsDiscarded) {
+            pending = 0;
+        }
+        if (chokedSinceNanos == 0) {
+            chokedSinceNanos = now();
+        }
+    }
+
+    public void onUnchoked() {
+        long since = chokedSinceNanos;
+        if (since != 0) {
+            long choked = now() - since;
+            chokedNanos += choked;
+            chokedSinceNanos = 0;
+            if (metrics != null) {
+                metrics.onUnchoked(choked);
+            }
+        }
+    }
+
+    /**
+     * How many requests to keep outstanding: one for a snubbed peer, otherwise the current estimate.
+     */
+    public int getWindow() {
+        return isSnubbed() ? 1 : window;
+    }
+
+    /**
+     * Whether the peer has owed us blocks without sending any for {@link #SNUB_NANOS}, or is far slower than
+     * the other peers of the torrent.
+     */
+    public boolean isSnubbed() {
+        return slow || pending > 0 && now() - lastProgressNanos > SNUB_NANOS;
+    }
+
+    /**
+     * Smoothed delivery rate in bytes per second, 0 until the first block arrives.
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public long getUploaded() {
+        return uploaded;
+    }
+
+    /**
+     * Requests sent that the peer has not answered yet.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Total time the peer kept us choked, including the current stretch if it still does.
+     */
+    public long getChokedNanos() {
+        long since = chokedSinceNanos;
+        return chokedNanos + (since == 0 ? 0 : now() - since);
+    }
+}
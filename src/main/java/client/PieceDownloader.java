@@ -0,0 +1,69 @@
+package client;
+
+import util.PieceHasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class PieceDownloader {
+    private final Torrent torrent;
+    private final int pieceIndex;
+    private final int pipelineDepth;
+
+    public PieceDownloader(Torrent torrent, int pieceIndex) {
+        this(torrent, pieceIndex, PeerConnection.DEFAULT_PIPELINE_DEPTH);
+    }
+
+    public PieceDownloader(Torrent torrent, int pieceIndex, int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least 1");
+        }
+        this.torrent = torrent;
+        this.pieceIndex = pieceIndex;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public byte[] downloadPiece() throws IOException {
+        // Discover peers, staying announced to the trackers until the piece is in
+        try (PeerDiscovery peerDiscovery = new PeerDiscovery(torrent)) {
+            int[] peers = peerDiscovery.getPeers();
+            PeerRegistry registry = peerDiscovery.getRegistry();
+            int pieceLength = torrent.getPieceSize(pieceIndex);
+
+            for (int peerHandle : peers) {
+                String peer = registry.format(peerHandle);
+                try (PeerConnection connection = PeerConnection.open(torrent, registry.getAddress(peerHandle),
+                        pipelineDepth)) {
+                    System.out.println("Handshake verified. Requesting piece " + pieceIndex + " from peer: " + peer);
+                    // Hash while the blocks come in, so the check is done when the last one lands
+                    byte[] piece = new byte[pieceLength];
+                    ByteBuffer view = ByteBuffer.wrap(piece);
+                    PieceHasher hasher = new PieceHasher(PeerConnection.BLOCK_SIZE);
+                    hasher.reset(pieceLength);
+                    connection.downloadPiece(pieceIndex, pieceLength, (index, begin, block) -> {
+                        block.get(piece, begin, block.remaining());
+                        if (hasher.onBlockReceived(begin) && hasher.canAdvance()) {
+                            hasher.advance(view);
+                        }
+                    });
+                    if (!hasher.isComplete() || !torrent.matchesPieceHash(pieceIndex, hasher.digest())) {
+                        throw new IOException("Piece " + pieceIndex + " failed the hash check");
+                    }
+                    return piece;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Failed to download piece from peer: " + peer + " - " + e.getMessage());
+                }
+            }
+            throw new IOException("Unable to download piece " + pieceIndex + " from any peer");
+        }
+    }
+
+    public void savePiece(String outputLocation, byte[] pieceData) throws IOException {
+        // Save the piece data to the specified output location
+        Path path = Paths.get(outputLocation);
+        Files.write(path, pieceData);
+    }
+}
@@ -0,0 +1,469 @@
+package client;
+
+import util.Bitfield;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rarest-first piece selection shared by all peer connections of a torrent.
+ * <p>
+ * State is kept in primitive arrays: an availability count per piece plus packed bitsets for completed and
+ * in-flight pieces, so HAVE updates are O(1) and picking a piece allocates nothing. The pieces still to fetch are
+ * also kept sorted by availability, in one array cut into a bucket per count: a HAVE moves its piece to the edge of
+ * the next bucket with a single swap, and a pick only walks the rarest buckets, starting at a random spot in each
+ * so that equally rare pieces are spread across peers, instead of scanning every piece.
+ * <p>
+ * Once every remaining piece is in flight the picker enters endgame: idle peers are handed pieces that other
+ * peers are still fetching, up to {@link #MAX_ENDGAME_DOWNLOADERS} at once, and the blocks delivered for each
+ * in-flight piece are tracked here so the other downloaders can cancel their copies of them.
+ * <p>
+ * For streaming, the download can be narrowed to a range of pieces, and a read-ahead window within it takes
+ * precedence over rarity: its pieces are handed out in order, and one that is still in flight past its deadline is
+ * handed to further peers as in endgame. Deadlines grow with the distance from the start of the window.
+ */
+public class PiecePicker {
+    public static final int MAX_ENDGAME_DOWNLOADERS = 3;
+
+    private final Torrent torrent;
+    private final int pieceCount;
+    private final int[] availability;
+    private final int[] downloaders;
+    private final long[] completed;
+    private final long[] reserved;
+    private final long[] verifying;
+    private final long[] wanted;
+    private final long[] reservedAt;
+    private final int[] attempts;
+    /** Wanted, incomplete pieces sorted by availability, followed by all the others. */
+    private final int[] order;
+    /** Where each piece is in {@link #order}. */
+    private final int[] position;
+    /**
+     * Where in {@link #order} the pieces with at least a given availability start; the last entry is where the
+     * pieces still to fetch end, and no such piece is as available as its index.
+     */
+    private int[] bucketStart;
+    private final Map<Integer, long[]> receivedBlocks = new HashMap<>();
+    private int remaining;
+    private int reservedCount;
+    private int windowStart;
+    private int windowEnd;
+    private long deadlineNanos;
+
+    public PiecePicker(Torrent torrent) {
+        this.torrent = torrent;
+        this.pieceCount = torrent.getPieceCount();
+        this.availability = new int[pieceCount];
+        this.downloaders = new int[pieceCount];
+        this.completed = Bitfield.create(pieceCount);
+        this.reserved = Bitfield.create(pieceCount);
+        this.verifying = Bitfield.create(pieceCount);
+        this.wanted = Bitfield.create(pieceCount);
+        this.reservedAt = new long[pieceCount];
+        this.attempts = new int[pieceCount];
+        this.order = new int[pieceCount];
+        this.position = new int[pieceCount];
+        this.bucketStart = new int[]{0, pieceCount};
+        this.remaining = pieceCount;
+        for (int index = 0; index < pieceCount; index++) {
+            Bitfield.set(wanted, index);
+            order[index] = index;
+            position[index] = index;
+        }
+    }
+
+    /**
+     * Download only pieces {@code [from, to)}; the rest are never picked and do not count as remaining.
+     */
+    public synchronized void setWanted(int from, int to) {
+        remaining = 0;
+        for (int index = 0; index < pieceCount; index++) {
+            if (index >= from && index < to) {
+                if (!Bitfield.get(completed, index)) {
+                    remaining++;
+                    if (!Bitfield.get(wanted, index)) {
+                        open(index);
+                    }
+                }
+                Bitfield.set(wanted, index);
+            } else {
+                if (isOpen(index)) {
+                    close(index);
+                }
+                Bitfield.clear(wanted, index);
+            }
+        }
+    }
+
+    /**
+     * Fetch pieces {@code [from, to)} before any others, in order. The piece at {@code from} may stay with a single
+     * peer for {@code deadlineNanos} before other peers join it, the next one for twice as long, and so on. An empty
+     * window turns this off.
+     */
+    public synchronized void setStreamWindow(int from, int to, long deadlineNanos) {
+        this.windowStart = from;
+        this.windowEnd = Math.min(to, pieceCount);
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public synchronized void addPeer(long[] peerPieces) {
+        adjustAvailability(peerPieces, 1);
+    }
+
+    public synchronized void removePeer(long[] peerPieces) {
+        adjustAvailability(peerPieces, -1);
+    }
+
+    public synchronized void peerHas(int pieceIndex) {
+        increment(pieceIndex);
+    }
+
+    private void adjustAvailability(long[] peerPieces, int delta) {
+        for (int w = 0; w < peerPieces.length; w++) {
+            long word = peerPieces[w];
+            while (word != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (delta > 0) {
+                    increment(index);
+                } else {
+                    decrement(index);
+                }
+            }
+        }
+    }
+
+    private boolean isOpen(int pieceIndex) {
+        return position[pieceIndex] < bucketStart[bucketStart.length - 1];
+    }
+
+    /**
+     * One more peer has the piece: it becomes the first piece of the next bucket up.
+     */
+    private void increment(int pieceIndex) {
+        int count = availability[pieceIndex]++;
+        if (!isOpen(pieceIndex)) {
+            return;
+        }
+        growBuckets(count + 1);
+        swap(pieceIndex, order[--bucketStart[count + 1]]);
+    }
+
+    /**
+     * Make room for a bucket of pieces with the given availability.
+     */
+    private void growBuckets(int count) {
+        if (count + 1 >= bucketStart.length) {
+            int end = bucketStart[bucketStart.length - 1];
+            int from = bucketStart.length;
+            bucketStart = Arrays.copyOf(bucketStart, Math.max(2 * from, count + 2));
+            Arrays.fill(bucketStart, from, bucketStart.length, end);
+        }
+    }
+
+    /**
+     * One peer fewer has the piece: it becomes the last piece of the next bucket down.
+     */
+    private void decrement(int pieceIndex) {
+        int count = availability[pieceIndex]--;
+        if (isOpen(pieceIndex)) {
+            swap(pieceIndex, order[bucketStart[count]++]);
+        }
+    }
+
+    /**
+     * Take a piece out of the buckets, bubbling it up through the ones above its own to just past their end.
+     */
+    private void close(int pieceIndex) {
+        for (int bucket = availability[pieceIndex] + 1; bucket < bucketStart.length; bucket++) {
+            swap(pieceIndex, order[--bucketStart[bucket]]);
+        }
+    }
+
+    /**
+     * Put a piece back into the buckets, the reverse of {@link #close}.
+     */
+    private void open(int pieceIndex) {
+        growBuckets(availability[pieceIndex]);
+        for (int bucket = bucketStart.length - 1; bucket > availability[pieceIndex]; bucket--) {
+            swap(pieceIndex, order[bucketStart[bucket]++]);
+        }
+    }
+
+    private void swap(int pieceIndex, int other) {
+        int at = position[pieceIndex];
+        int otherAt = position[other];
+        order[at] = other;
+        position[other] = at;
+        order[otherAt] = pieceIndex;
+        position[pieceIndex] = otherAt;
+    }
+
+    /**
+     * Reserve the rarest piece the peer has that is neither complete nor already in flight, chosen from a random
+     * spot within its bucket so that equally rare pieces are spread across peers. Pieces nobody has are skipped,
+     * as the peer's own pieces count towards availability. In endgame, falls back to a piece already in flight
+     * elsewhere.
+     *
+     * @return the reserved piece index, or -1 if the peer has nothing to offer right now
+     */
+    public int pick(long[] peerPieces) {
+        return pick(peerPieces, false);
+    }
+
+    /**
+     * As {@link #pick(long[])}, except that a snubbed peer is not handed endgame duplicates, since racing faster
+     * peers for the last blocks would only delay them.
+     */
+    public synchronized int pick(long[] peerPieces, boolean snubbed) {
+        if (peerPieces.length == 0) {
+            return -1;
+        }
+        if (windowStart < windowEnd) {
+            int index = pickInWindow(peerPieces, snubbed);
+            if (index >= 0) {
+                return index;
+            }
+        }
+        for (int bucket = 1; bucket < bucketStart.length - 1; bucket++) {
+            int from = bucketStart[bucket];
+            int size = bucketStart[bucket + 1] - from;
+            if (size == 0) {
+                continue;
+            }
+            int start = ThreadLocalRandom.current().nextInt(size);
+            for (int n = 0; n < size; n++) {
+                int index = order[from + (start + n) % size];
+                if (Bitfield.get(peerPieces, index) && !Bitfield.get(reserved, index)) {
+                    reserve(index);
+                    return index;
+                }
+            }
+        }
+        return reservedCount == remaining && !snubbed ? pickDuplicate(peerPieces) : -1;
+    }
+
+    private void reserve(int pieceIndex) {
+        Bitfield.set(reserved, pieceIndex);
+        reservedCount++;
+        downloaders[pieceIndex] = 1;
+        reservedAt[pieceIndex] = System.nanoTime();
+    }
+
+    /**
+     * The first piece of the stream window the peer can start on, or else the first one that is overdue with a
+     * single peer; a snubbed peer is not given overdue pieces, as it would hardly bring them in sooner.
+     */
+    private int pickInWindow(long[] peerPieces, boolean snubbed) {
+        long now = System.nanoTime();
+        int overdue = -1;
+        for (int index = windowStart; index < windowEnd; index++) {
+            if (!Bitfield.get(peerPieces, index) || !Bitfield.get(wanted, index) || Bitfield.get(completed, index)) {
+                continue;
+            }
+            if (!Bitfield.get(reserved, index)) {
+                reserve(index);
+                return index;
+            }
+            if (overdue < 0 && !snubbed && !Bitfield.get(verifying, index)
+                    && downloaders[index] < MAX_ENDGAME_DOWNLOADERS && getMissingBlocks(index) > 0
+                    && now - reservedAt[index] > deadlineNanos * (index - windowStart + 1) * downloaders[index]) {
+                overdue = index;
+            }
+        }
+        if (overdue >= 0) {
+            downloaders[overdue]++;
+        }
+        return overdue;
+    }
+
+    /**
+     * Endgame: join the in-flight piece with the fewest downloaders that still has blocks outstanding,
+     * preferring the one with the most blocks missing.
+     */
+    private int pickDuplicate(long[] peerPieces) {
+        int best = -1;
+        int bestDownloaders = MAX_ENDGAME_DOWNLOADERS;
+        int bestMissing = 0;
+        for (int w = 0; w < peerPieces.length; w++) {
+            long candidates = peerPieces[w] & reserved[w] & ~verifying[w];
+            while (candidates != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                int missing = getMissingBlocks(index);
+                if (missing > 0 && (downloaders[index] < bestDownloaders
+                        || downloaders[index] == bestDownloaders && missing > bestMissing)) {
+                    best = index;
+                    bestDownloaders = downloaders[index];
+                    bestMissing = missing;
+                }
+            }
+        }
+        if (best >= 0) {
+            downloaders[best]++;
+        }
+        return best;
+    }
+
+    private int getMissingBlocks(int pieceIndex) {
+        int blockCount = (torrent.getPieceSize(pieceIndex) + Torrent.BLOCK_SIZE - 1) / Torrent.BLOCK_SIZE;
+        long[] blocks = receivedBlocks.get(pieceIndex);
+        return blocks == null ? blockCount : blockCount - Bitfield.cardinality(blocks);
+    }
+
+    /**
+     * Record a block of an in-flight piece that has been written to storage.
+     */
+    public synchronized void onBlockReceived(int pieceIndex, int begin) {
+        if (Bitfield.get(reserved, pieceIndex)) {
+            long[] blocks = receivedBlocks.computeIfAbsent(pieceIndex, index -> Bitfield.create(
+                    (torrent.getPieceLength() + Torrent.BLOCK_SIZE - 1) / Torrent.BLOCK_SIZE));
+            Bitfield.set(blocks, begin / Torrent.BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * A piece counts as shared while several peers are fetching it, and also once it is complete, so that any
+     * downloader still working on it stops.
+     */
+    public synchronized boolean isShared(int pieceIndex) {
+        return downloaders[pieceIndex] > 1 || Bitfield.get(completed, pieceIndex);
+    }
+
+    /**
+     * Whether some downloader still holds the piece, i.e. it is in flight rather than complete or given up.
+     */
+    public synchronized boolean isClaimed(int pieceIndex) {
+        return Bitfield.get(reserved, pieceIndex);
+    }
+
+    /**
+     * How many times the piece has failed its hash check. A downloader that sees this change while it works on the
+     * piece must start over, since every block stored for it was thrown away.
+     */
+    public synchronized int getAttempt(int pieceIndex) {
+        return attempts[pieceIndex];
+    }
+
+    /**
+     * Whether a block of a piece has been delivered by any peer.
+     */
+    public synchronized boolean isReceived(int pieceIndex, int begin) {
+        if (Bitfield.get(completed, pieceIndex)) {
+            return true;
+        }
+        long[] blocks = receivedBlocks.get(pieceIndex);
+        return blocks != null && Bitfield.get(blocks, begin / Torrent.BLOCK_SIZE);
+    }
+
+    /**
+     * Called by each downloader once it holds every block of a piece. Only the first caller gets to verify it;
+     * the others give up their share of the piece.
+     *
+     * @return whether the caller should verify the piece
+     */
+    public synchronized boolean claimVerification(int pieceIndex) {
+        if (Bitfield.get(completed, pieceIndex) || Bitfield.get(verifying, pieceIndex)) {
+            leave(pieceIndex);
+            return false;
+        }
+        Bitfield.set(verifying, pieceIndex);
+        return true;
+    }
+
+    /**
+     * Whether the peer has any piece we still need, including ones currently in flight on other peers.
+     */
+    public synchronized boolean isInteresting(long[] peerPieces) {
+        for (int w = 0; w < peerPieces.length; w++) {
+            if ((peerPieces[w] & wanted[w] & ~completed[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the piece was not already complete
+     */
+    public synchronized boolean markCompleted(int pieceIndex) {
+        if (Bitfield.get(reserved, pieceIndex)) {
+            Bitfield.clear(reserved, pieceIndex);
+            reservedCount--;
+        }
+        Bitfield.clear(verifying, pieceIndex);
+        downloaders[pieceIndex] = 0;
+        receivedBlocks.remove(pieceIndex);
+        if (Bitfield.get(completed, pieceIndex)) {
+            return false;
+        }
+        if (isOpen(pieceIndex)) {
+            close(pieceIndex);
+        }
+        Bitfield.set(completed, pieceIndex);
+        if (Bitfield.get(wanted, pieceIndex)) {
+            remaining--;
+        }
+        return true;
+    }
+
+    /**
+     * Give up one downloader's share of an in-flight piece, e.g. after the peer serving it failed. The piece
+     * returns to the pool once nobody is fetching it.
+     */
+    public synchronized void release(int pieceIndex) {
+        leave(pieceIndex);
+    }
+
+    /**
+     * Return a piece that failed its hash check to the pool, forgetting every block delivered for it. Endgame
+     * downloaders still fetching it notice from {@link #getAttempt} and fetch those blocks again.
+     */
+    public synchronized void failVerification(int pieceIndex) {
+        attempts[pieceIndex]++;
+        Bitfield.clear(verifying, pieceIndex);
+        receivedBlocks.remove(pieceIndex);
+        leave(pieceIndex);
+    }
+
+    private void leave(int pieceIndex) {
+        if (downloaders[pieceIndex] > 0 && --downloaders[pieceIndex] == 0) {
+            Bitfield.clear(reserved, pieceIndex);
+            Bitfield.clear(verifying, pieceIndex);
+            receivedBlocks.remove(pieceIndex);
+            reservedCount--;
+        }
+    }
+
+    /**
+     * Wanted pieces not yet verified.
+     */
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+
+    public synchronized boolean hasPiece(int pieceIndex) {
+        return Bitfield.get(completed, pieceIndex);
+    }
+
+    /**
+     * A copy of the verified pieces, as a packed bitset.
+     */
+    public synchronized long[] getCompleted() {
+        return completed.clone();
+    }
+
+    /**
+     * Whether every wanted piece is verified.
+     */
+    public synchronized boolean isComplete() {
+        return remaining == 0;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+}
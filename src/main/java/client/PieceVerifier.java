@@ -0,0 +1,336 @@
+package client;
+
+import util.Bitfield;
+import util.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks pieces against the SHA-1 hashes in the torrent on a bounded worker pool, kept apart from the
+ * threads doing network I/O. Pieces the {@link BlockCache} already hashed as their blocks arrived only have their
+ * digest compared; the rest are hashed here, from the cache or read back from storage.
+ * <p>
+ * Digests are compared as raw 20-byte arrays. When the pool's queue is full, submitting blocks until there is
+ * room, which throttles downloading to the speed verification can keep up with; threads that must not block, such
+ * as the NIO event loops, use {@link #tryVerify} and hold the piece back themselves. Several torrents may share one
+ * pool from {@link #newPool}, so they take turns in its queue instead of each having threads of its own.
+ */
+public class PieceVerifier implements Closeable {
+    private static final int QUEUE_PER_THREAD = 4;
+    private static final long RECHECK_WINDOW = 64L << 20;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    });
+
+    // One read buffer per worker, grown to the largest piece length it has seen, whichever torrent it was for
+    private static final ThreadLocal<ByteBuffer> PIECE_BUFFERS = new ThreadLocal<>();
+
+    private final Torrent torrent;
+    private final Storage storage;
+    private final BlockCache cache;
+    private final ThreadPoolExecutor pool;
+    private final boolean ownsPool;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger hashFailures = new AtomicInteger();
+    private final LatencyHistogram verifyLatency = new LatencyHistogram();
+
+    public PieceVerifier(Torrent torrent, Storage storage) {
+        this(torrent, storage, null);
+    }
+
+    /**
+     * @param cache where complete pieces are hashed from before falling back to reading them from storage, or
+     *              {@code null}
+     */
+    public PieceVerifier(Torrent torrent, Storage storage, BlockCache cache) {
+        this(torrent, storage, cache, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PieceVerifier(Torrent torrent, Storage storage, BlockCache cache, int threads) {
+        this(torrent, storage, cache, newPool(threads), true);
+    }
+
+    /**
+     * Verify on a pool shared with other torrents, which is left running on {@link #close()}.
+     *
+     * @param pool a pool from {@link #newPool}
+     */
+    public PieceVerifier(Torrent torrent, Storage storage, BlockCache cache, ThreadPoolExecutor pool) {
+        this(torrent, storage, cache, pool, false);
+    }
+
+    private PieceVerifier(Torrent torrent, Storage storage, BlockCache cache, ThreadPoolExecutor pool, boolean ownsPool) {
+        this.torrent = torrent;
+        this.storage = storage;
+        this.cache = cache;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * A bounded pool of daemon threads whose submitters wait for room in its queue.
+     */
+    public static ThreadPoolExecutor newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), runnable -> {
+                    Thread thread = new Thread(runnable, "piece-verifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }, PieceVerifier::awaitQueueSpace);
+        // Every worker runs from the start, so tryVerify can offer to the queue directly
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    private static void awaitQueueSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Verifier is closed");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to queue a piece", e);
+        }
+    }
+
+    /**
+     * Check an in-memory piece against its expected hash.
+     */
+    public static boolean matches(Torrent torrent, int pieceIndex, byte[] piece) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        return torrent.matchesPieceHash(pieceIndex, digest.digest(piece));
+    }
+
+    /**
+     * Hash a piece on the worker pool, from the cache if it holds the whole piece or else read back from storage.
+     *
+     * @return a future completing with whether the piece matched its hash; I/O errors count as a mismatch
+     */
+    public CompletableFuture<Boolean> verify(int pieceIndex) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        inFlight.incrementAndGet();
+        try {
+            pool.execute(() -> verify(pieceIndex, result));
+        } catch (RejectedExecutionException e) {
+            finishTask();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * As {@link #verify(int)}, but without waiting for room in the pool's queue.
+     *
+     * @return the future, or {@code null} if the queue is full and the piece must be offered again later
+     */
+    public CompletableFuture<Boolean> tryVerify(int pieceIndex) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Verifier is closed");
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        inFlight.incrementAndGet();
+        if (!pool.getQueue().offer(() -> verify(pieceIndex, result))) {
+            finishTask();
+            return null;
+        }
+        return result;
+    }
+
+    private void verify(int pieceIndex, CompletableFuture<Boolean> result) {
+        long startedAt = System.nanoTime();
+        try {
+            boolean valid = verifyPiece(pieceIndex);
+            verifyLatency.record(System.nanoTime() - startedAt);
+            if (!valid) {
+                hashFailures.incrementAndGet();
+            }
+            result.complete(valid);
+        } catch (IOException | RuntimeException e) {
+            hashFailures.incrementAndGet();
+            result.complete(false);
+        } finally {
+            finishTask();
+        }
+    }
+
+    private void finishTask() {
+        if (inFlight.decrementAndGet() == 0) {
+            synchronized (inFlight) {
+                inFlight.notifyAll();
+            }
+        }
+    }
+
+    private boolean verifyPiece(int pieceIndex) throws IOException {
+        byte[] hashed = cache == null ? null : cache.getPieceDigest(pieceIndex);
+        if (hashed != null) {
+            return torrent.matchesPieceHash(pieceIndex, hashed);
+        }
+        ByteBuffer cached = cache == null ? null : cache.getCompletePiece(pieceIndex);
+        if (cached != null) {
+            MessageDigest digest = SHA1.get();
+            digest.reset();
+            digest.update(cached);
+            return torrent.matchesPieceHash(pieceIndex, digest.digest());
+        }
+        ByteBuffer buffer = pieceBuffer(torrent.getPieceLength()).limit(torrent.getPieceSize(pieceIndex));
+        storage.read((long) pieceIndex * torrent.getPieceLength(), buffer);
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        digest.update(buffer.flip());
+        return torrent.matchesPieceHash(pieceIndex, digest.digest());
+    }
+
+    private static ByteBuffer pieceBuffer(int capacity) {
+        ByteBuffer buffer = PIECE_BUFFERS.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            PIECE_BUFFERS.set(buffer);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Verify all existing data on every worker, hashing straight from memory-mapped windows of the files.
+     *
+     * @return a packed bitfield of the pieces that are present and valid
+     */
+    public long[] recheck() throws IOException {
+        int pieceCount = torrent.getPieceCount();
+        int pieceLength = torrent.getPieceLength();
+        int piecesPerWindow = (int) Math.max(1, RECHECK_WINDOW / pieceLength);
+        long[] valid = Bitfield.create(pieceCount);
+
+        List<Future<?>> windows = new ArrayList<>();
+        for (int first = 0; first < pieceCount; first += piecesPerWindow) {
+            int from = first;
+            int to = Math.min(pieceCount, first + piecesPerWindow);
+            windows.add(pool.submit(() -> recheckWindow(from, to, valid)));
+        }
+        try {
+            for (Future<?> window : windows) {
+                window.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rechecking", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Recheck failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return valid;
+    }
+
+    /**
+     * Hash pieces {@code [from, to)} from one mapped window. Pieces whose data is missing are left unset.
+     */
+    private void recheckWindow(int from, int to, long[] valid) {
+        long start = (long) from * torrent.getPieceLength();
+        long end = Math.min(torrent.getLength(), (long) to * torrent.getPieceLength());
+        ByteBuffer[] segments;
+        try {
+            segments = storage.map(start, end - start);
+        } catch (IOException e) {
+            // Part of the window is missing or short; fall back to checking each piece on its own
+            for (int pieceIndex = from; pieceIndex < to; pieceIndex++) {
+                try {
+                    if (verifyPiece(pieceIndex)) {
+                        markValid(valid, pieceIndex);
+                    }
+                } catch (IOException ignored) {
+                    // Missing data simply means the piece is not valid
+                }
+            }
+            return;
+        }
+
+        MessageDigest digest = SHA1.get();
+        int segment = 0;
+        for (int pieceIndex = from; pieceIndex < to; pieceIndex++) {
+            digest.reset();
+            int remaining = torrent.getPieceSize(pieceIndex);
+            while (remaining > 0) {
+                ByteBuffer current = segments[segment];
+                int chunk = Math.min(remaining, current.remaining());
+                int limit = current.limit();
+                current.limit(current.position() + chunk);
+                digest.update(current);
+                current.limit(limit);
+                remaining -= chunk;
+                if (!current.hasRemaining()) {
+                    segment++;
+                }
+            }
+            if (torrent.matchesPieceHash(pieceIndex, digest.digest())) {
+                markValid(valid, pieceIndex);
+            }
+        }
+    }
+
+    private static void markValid(long[] valid, int pieceIndex) {
+        synchronized (valid) {
+            Bitfield.set(valid, pieceIndex);
+        }
+    }
+
+    public int getHashFailures() {
+        return hashFailures.get();
+    }
+
+    /**
+     * Time taken to fetch and hash each downloaded piece, not counting time spent queued.
+     */
+    public LatencyHistogram getVerifyLatency() {
+        return verifyLatency;
+    }
+
+    /**
+     * Pieces of this torrent waiting for or being verified.
+     */
+    public int getQueueDepth() {
+        return inFlight.get();
+    }
+
+    /**
+     * Stop accepting work and wait for pieces already queued to finish. A shared pool keeps running for the other
+     * torrents.
+     */
+    @Override
+    public void close() {
+        try {
+            if (ownsPool) {
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                return;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            synchronized (inFlight) {
+                for (long wait; inFlight.get() > 0 && (wait = deadline - System.nanoTime()) > 0; ) {
+                    TimeUnit.NANOSECONDS.timedWait(inFlight, wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
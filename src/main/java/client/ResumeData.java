@@ -0,0 +1,230 @@
+package client;
+
+import util.Bitfield;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Fast-resume state for one torrent: which pieces are complete, which blocks of unfinished pieces are already
+ * on disk, and the size and modification time of every file when the state was written.
+ * <p>
+ * On restart, files whose size and mtime still match are trusted as-is; only pieces touching files that changed
+ * since the last save need to be rehashed. Modification times are kept at the file system's full precision. Where
+ * that is a millisecond or coarser, a write soon after a save may leave the mtime as it was, so the last piece of
+ * such a file, where a download or an append is most likely to have touched it, is rehashed anyway. The file is
+ * written atomically and carries a CRC32 trailer, so a torn or corrupted write is detected and ignored.
+ */
+public class ResumeData {
+    private static final int MAGIC = 0x42545253; // "BTRS"
+    private static final int VERSION = 2;
+    private static final long FINE_TIMESTAMP_NANOS = 1_000_000;  // Timestamps that are whole multiples are coarse
+
+    private final int pieceCount;
+    private final int blocksPerPiece;
+    private final long[] completed;
+    private final Map<Integer, long[]> partialPieces = new HashMap<>();
+    private long[] fileSizes = new long[0];
+    private long[] fileModifiedTimes = new long[0];
+
+    public ResumeData(Torrent torrent) {
+        this.pieceCount = torrent.getPieceCount();
+        this.blocksPerPiece = (torrent.getPieceLength() + PeerConnection.BLOCK_SIZE - 1) / PeerConnection.BLOCK_SIZE;
+        this.completed = Bitfield.create(pieceCount);
+    }
+
+    /**
+     * The resume file for a torrent, stored next to its data and named after its info hash.
+     */
+    public static Path pathFor(Torrent torrent, Path target) {
+        return target.toAbsolutePath().resolveSibling(torrent.getInfoHash() + ".resume");
+    }
+
+    /**
+     * Load saved state, returning {@code null} if there is none or it is unusable for this torrent.
+     */
+    public static ResumeData load(Path path, Torrent torrent) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable resume file " + path + ": " + e.getMessage());
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length < 8) {
+                throw new IllegalArgumentException("truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            if (buffer.getLong(bytes.length - 8) != crc.getValue()) {
+                throw new IllegalArgumentException("checksum mismatch");
+            }
+            buffer.limit(bytes.length - 8);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IllegalArgumentException("unsupported format");
+            }
+            byte[] infoHash = new byte[20];
+            buffer.get(infoHash);
+            if (!HexFormat.of().formatHex(infoHash).equals(torrent.getInfoHash())) {
+                throw new IllegalArgumentException("written for a different torrent");
+            }
+
+            ResumeData data = new ResumeData(torrent);
+            if (buffer.getInt() != data.pieceCount || buffer.getInt() != data.blocksPerPiece) {
+                throw new IllegalArgumentException("piece layout changed");
+            }
+            buffer.asLongBuffer().get(data.completed);
+            buffer.position(buffer.position() + data.completed.length * Long.BYTES);
+
+            int partialCount = buffer.getInt();
+            for (int i = 0; i < partialCount; i++) {
+                int pieceIndex = buffer.getInt();
+                long[] blocks = new long[(data.blocksPerPiece + 63) >>> 6];
+                for (int w = 0; w < blocks.length; w++) {
+                    blocks[w] = buffer.getLong();
+                }
+                if (pieceIndex >= 0 && pieceIndex < data.pieceCount) {
+                    data.partialPieces.put(pieceIndex, blocks);
+                }
+            }
+
+            int fileCount = buffer.getInt();
+            data.fileSizes = new long[fileCount];
+            data.fileModifiedTimes = new long[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                data.fileSizes[i] = buffer.getLong();
+                data.fileModifiedTimes[i] = buffer.getLong();
+            }
+            return data;
+        } catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            System.err.println("Ignoring invalid resume file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Whether a file still has the size and modification time recorded when this state was saved.
+     */
+    public boolean isFileUnchanged(Storage storage, int file) {
+        if (file >= fileSizes.length || storage.getFileCount() != fileSizes.length) {
+            return false;
+        }
+        try {
+            Path path = storage.getPath(file);
+            return Files.size(path) == fileSizes[file] && modifiedTime(path) == fileModifiedTimes[file];
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the modification time recorded for a file is too coarse to rule out a write right after the save,
+     * i.e. a whole number of milliseconds.
+     */
+    public boolean hasCoarseTimestamp(int file) {
+        return file >= fileModifiedTimes.length || fileModifiedTimes[file] % FINE_TIMESTAMP_NANOS == 0;
+    }
+
+    private static long modifiedTime(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Flush the data to disk, then atomically replace the resume file with the current state.
+     */
+    public void save(Path path, Torrent torrent, Storage storage) throws IOException {
+        storage.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(torrent.getInfoHashBytes());
+            out.writeInt(pieceCount);
+            out.writeInt(blocksPerPiece);
+            synchronized (this) {
+                for (long word : completed) {
+                    out.writeLong(word);
+                }
+                out.writeInt(partialPieces.size());
+                for (Map.Entry<Integer, long[]> partial : partialPieces.entrySet()) {
+                    out.writeInt(partial.getKey());
+                    for (long word : partial.getValue()) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            out.writeInt(storage.getFileCount());
+            for (int i = 0; i < storage.getFileCount(); i++) {
+                Path file = storage.getPath(i);
+                out.writeLong(Files.size(file));
+                out.writeLong(modifiedTime(file));
+            }
+        }
+
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue());
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(new ByteBuffer[]{ByteBuffer.wrap(content), trailer.flip()});
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized boolean isComplete(int pieceIndex) {
+        return Bitfield.get(completed, pieceIndex);
+    }
+
+    public synchronized void onBlockWritten(int pieceIndex, int begin) {
+        if (Bitfield.get(completed, pieceIndex)) {
+            return;  // Nothing partial about it
+        }
+        long[] blocks = partialPieces.computeIfAbsent(pieceIndex, index -> new long[(blocksPerPiece + 63) >>> 6]);
+        Bitfield.set(blocks, begin / PeerConnection.BLOCK_SIZE);
+    }
+
+    public synchronized void onPieceVerified(int pieceIndex) {
+        Bitfield.set(completed, pieceIndex);
+        partialPieces.remove(pieceIndex);
+    }
+
+    /**
+     * Forget everything about a piece, e.g. after it failed its hash check or its file changed.
+     */
+    public synchronized void discardPiece(int pieceIndex) {
+        Bitfield.clear(completed, pieceIndex);
+        partialPieces.remove(pieceIndex);
+    }
+
+    /**
+     * Blocks of an unfinished piece that are already on disk, as a packed bitset, or {@code null} if none.
+     */
+    public synchronized long[] getPartialBlocks(int pieceIndex) {
+        long[] blocks = partialPieces.get(pieceIndex);
+        return blocks == null ? null : blocks.clone();
+    }
+}
@@ -0,0 +1,333 @@
+package client;
+
+import util.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps the torrent's global byte range onto its files and writes blocks straight to their final position
+ * with positional {@link FileChannel} writes, so pieces never have to be assembled on the heap.
+ * <p>
+ * A single-file torrent is stored at the target path itself; a multi-file torrent treats the target path as
+ * the root directory for the paths listed in the info dictionary. An existing file larger than the torrent says is
+ * refused rather than cut down to size, as it is most likely some other data.
+ */
+public class Storage implements Closeable {
+
+    public enum Allocation {
+        /** Files grow as blocks are written. */
+        NONE,
+        /** Files are extended to their final size up front without writing data, leaving holes where supported. */
+        SPARSE,
+        /** Files are filled with zeros up front so later writes never need to allocate disk space. */
+        FULL
+    }
+
+    private static final int ZERO_FILL_CHUNK = 1 << 20;
+
+    private final int pieceLength;
+    private final long[] fileEnds;
+    private final Path[] paths;
+    private final FileChannel[] channels;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public Storage(Torrent torrent, Path target, Allocation allocation) throws IOException {
+        this(torrent, target, allocation, false);
+    }
+
+    /**
+     * Open the torrent's existing files for reading only, e.g. to recheck them. Missing files are tolerated;
+     * reading from them fails with {@link NoSuchFileException}.
+     */
+    public static Storage openExisting(Torrent torrent, Path target) throws IOException {
+        return new Storage(torrent, target, Allocation.NONE, true);
+    }
+
+    private Storage(Torrent torrent, Path target, Allocation allocation, boolean readOnly) throws IOException {
+        int fileCount = torrent.getFileCount();
+        this.pieceLength = torrent.getPieceLength();
+        this.fileEnds = new long[fileCount];
+        this.paths = new Path[fileCount];
+        this.channels = new FileChannel[fileCount];
+
+        try {
+            for (int i = 0; i < fileCount; i++) {
+                fileEnds[i] = torrent.getFileOffset(i) + torrent.getFileLength(i);
+                paths[i] = torrent.isMultiFile() ? resolve(target, torrent.getFilePath(i)) : target;
+                if (!readOnly) {
+                    channels[i] = open(paths[i], torrent.getFileLength(i), allocation);
+                } else if (Files.isRegularFile(paths[i])) {
+                    channels[i] = FileChannel.open(paths[i], StandardOpenOption.READ);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeAll(channels);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Resolve a path from the info dictionary below the root, rejecting components that could escape it.
+     */
+    private static Path resolve(Path root, List<String> components) throws IOException {
+        Path path = root;
+        for (String component : components) {
+            if (!isSafeName(component)) {
+                throw new IOException("Unsafe path component in torrent: " + component);
+            }
+            path = path.resolve(component);
+        }
+        return path;
+    }
+
+    /**
+     * Whether a name from the info dictionary stays inside the directory it is resolved against: not empty,
+     * {@code .} or {@code ..}, without separators and not absolute.
+     */
+    static boolean isSafeName(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/") || name.contains("\\")) {
+            return false;
+        }
+        try {
+            return !Path.of(name).isAbsolute();
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private static FileChannel open(Path path, long length, Allocation allocation) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (allocation == Allocation.SPARSE) {
+            options.add(StandardOpenOption.SPARSE);
+        }
+        FileChannel channel = FileChannel.open(path, options);
+        if (channel.size() > length) {
+            long size = channel.size();
+            channel.close();
+            throw new IOException("Refusing to use " + path + ": it holds " + size + " bytes, more than the " + length
+                    + " the torrent has for it, and would lose the rest");
+        }
+        if (length > 0 && channel.size() < length) {
+            if (allocation == Allocation.SPARSE) {
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            } else if (allocation == Allocation.FULL) {
+                ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_FILL_CHUNK);
+                for (long position = channel.size(); position < length; ) {
+                    zeros.clear().limit((int) Math.min(ZERO_FILL_CHUNK, length - position));
+                    position += channel.write(zeros, position);
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Write a block of the given piece at its final position, splitting it across file boundaries as needed.
+     * The buffer is consumed from its position to its limit.
+     */
+    public void writeBlock(int pieceIndex, int begin, ByteBuffer block) throws IOException {
+        long offset = (long) pieceIndex * pieceLength + begin;
+        int limit = block.limit();
+        long startedAt = System.nanoTime();
+        try {
+            for (int file = findFile(offset); block.hasRemaining(); file++) {
+                if (file >= channels.length) {
+                    throw new IOException("Block at offset " + offset + " extends past the end of the torrent");
+                }
+                long fileStart = file == 0 ? 0 : fileEnds[file - 1];
+                int chunk = (int) Math.min(block.remaining(), fileEnds[file] - offset);
+                if (chunk <= 0) {
+                    continue;  // Zero-length file
+                }
+                block.limit(block.position() + chunk);
+                long position = offset - fileStart;
+                while (block.hasRemaining()) {
+                    position += channel(file).write(block, position);
+                }
+                block.limit(limit);
+                offset += chunk;
+            }
+        } finally {
+            block.limit(limit);
+            writeLatency.record(System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Time taken by each {@link #writeBlock}, for {@link Metrics}.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Read bytes starting at a global offset into {@code destination} until it is full.
+     */
+    public void read(long offset, ByteBuffer destination) throws IOException {
+        int limit = destination.limit();
+        try {
+            for (int file = findFile(offset); destination.hasRemaining(); file++) {
+                if (file >= channels.length) {
+                    throw new IOException("Read at offset " + offset + " extends past the end of the torrent");
+                }
+                long fileStart = file == 0 ? 0 : fileEnds[file - 1];
+                int chunk = (int) Math.min(destination.remaining(), fileEnds[file] - offset);
+                if (chunk <= 0) {
+                    continue;
+                }
+                destination.limit(destination.position() + chunk);
+                long position = offset - fileStart;
+                while (destination.hasRemaining()) {
+                    int read = channel(file).read(destination, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of file: " + paths[file]);
+                    }
+                    position += read;
+                }
+                destination.limit(limit);
+                offset += chunk;
+            }
+        } finally {
+            destination.limit(limit);
+        }
+    }
+
+    /**
+     * Send up to {@code length} bytes starting at a global offset straight from the page cache to {@code target}
+     * with {@link FileChannel#transferTo}, without copying them through the heap. Stops at the end of the file
+     * holding {@code offset}, or when a non-blocking target is full.
+     *
+     * @return the number of bytes sent, possibly zero
+     */
+    public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+        int file = findFile(offset);
+        if (file >= channels.length || offset + length > fileEnds[fileEnds.length - 1]) {
+            throw new IOException("Transfer at offset " + offset + " extends past the end of the torrent");
+        }
+        long fileStart = file == 0 ? 0 : fileEnds[file - 1];
+        long chunk = Math.min(length, fileEnds[file] - offset);
+        return channel(file).transferTo(offset - fileStart, chunk, target);
+    }
+
+    /**
+     * Map a global byte range read-only, returning one buffer per file it touches, in order. Zero-length files
+     * contribute no buffer.
+     */
+    public ByteBuffer[] map(long offset, long length) throws IOException {
+        List<ByteBuffer> segments = new ArrayList<>();
+        long end = offset + length;
+        for (int file = findFile(offset); offset < end; file++) {
+            if (file >= channels.length) {
+                throw new IOException("Mapping at offset " + offset + " extends past the end of the torrent");
+            }
+            long fileStart = file == 0 ? 0 : fileEnds[file - 1];
+            long chunk = Math.min(end - offset, fileEnds[file] - offset);
+            if (chunk <= 0) {
+                continue;
+            }
+            FileChannel channel = channel(file);
+            if (channel.size() < offset - fileStart + chunk) {
+                throw new IOException("File is shorter than expected: " + paths[file]);
+            }
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, offset - fileStart, chunk));
+            offset += chunk;
+        }
+        return segments.toArray(ByteBuffer[]::new);
+    }
+
+    public int getFileCount() {
+        return paths.length;
+    }
+
+    public Path getPath(int file) {
+        return paths[file];
+    }
+
+    /**
+     * Global offset of the first byte of a file.
+     */
+    public long getFileStart(int file) {
+        return file == 0 ? 0 : fileEnds[file - 1];
+    }
+
+    /**
+     * Global offset just past the last byte of a file.
+     */
+    public long getFileEnd(int file) {
+        return fileEnds[file];
+    }
+
+    private FileChannel channel(int file) throws NoSuchFileException {
+        if (channels[file] == null) {
+            throw new NoSuchFileException(paths[file].toString());
+        }
+        return channels[file];
+    }
+
+    /**
+     * Index of the first file whose byte range contains {@code offset}, skipping zero-length files.
+     */
+    private int findFile(long offset) {
+        int low = 0;
+        int high = fileEnds.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fileEnds[mid] > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    public void flush() throws IOException {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(channels);
+    }
+
+    private static void closeAll(FileChannel[] channels) throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : channels) {
+            if (channel == null) {
+                continue;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
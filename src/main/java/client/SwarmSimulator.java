@@ -0,0 +1,558 @@
+package client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import util.BencodeCodec;
+import util.Message.MessageType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A swarm on loopback to run the client against without network access: a stand-in HTTP tracker and a number of
+ * seeders, all in this process, serving a torrent of random data generated from a fixed seed so that runs are
+ * reproducible.
+ * <p>
+ * Seeders can be made to behave like real ones on a slow network: a latency added to every block's round trip,
+ * an upload rate each seeder shares between its connections, choking and unchoking every connection on a fixed
+ * period, which drops the requests queued at the time as the protocol says, and corrupting a share of the blocks
+ * some of them send. The simulator notes when the client first announced, first completed a handshake and first
+ * got a block, so a run can be split into phases, along with counts of what the seeders did.
+ */
+public class SwarmSimulator implements Closeable {
+    private static final int MAX_REQUEST_LENGTH = 128 * 1024;
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    private static final String PEER_ID_PREFIX = "-SM0001-";
+
+    /**
+     * What happened since {@link #resetStats()}; times are {@link System#nanoTime()} values, or 0 if it did not
+     * happen.
+     */
+    public record Stats(long firstAnnounceNanos, long firstHandshakeNanos, long firstBlockNanos, long announces,
+                        long connections, long blocksSent, long bytesSent, long corruptBlocks, long chokes) {
+    }
+
+    private final long size;
+    private final int pieceLength;
+    private final int seederCount;
+    private final long seed;
+    private long latencyNanos;
+    private long seederRate;
+    private long chokeIntervalNanos;
+    private int corruptSeeders;
+    private double corruptProbability;
+
+    private byte[] content;
+    private byte[] infoHash;
+    private HttpServer tracker;
+    private final List<Seeder> seeders = new ArrayList<>();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile boolean closed;
+
+    private final AtomicLong firstAnnounce = new AtomicLong();
+    private final AtomicLong firstHandshake = new AtomicLong();
+    private final AtomicLong firstBlock = new AtomicLong();
+    private final LongAdder announces = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder blocksSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder corruptBlocks = new LongAdder();
+    private final LongAdder chokes = new LongAdder();
+
+    /**
+     * @param size        bytes of content to serve
+     * @param pieceLength the torrent's piece length
+     * @param seeders     how many seeders to run
+     * @param seed        seeds the content and every random choice of the seeders
+     */
+    public SwarmSimulator(long size, int pieceLength, int seeders, long seed) {
+        if (size <= 0 || size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Content size must be between 1 byte and 2 GiB: " + size);
+        }
+        if (pieceLength <= 0 || seeders < 1) {
+            throw new IllegalArgumentException("Need a positive piece length and at least one seeder");
+        }
+        this.size = size;
+        this.pieceLength = pieceLength;
+        this.seederCount = seeders;
+        this.seed = seed;
+    }
+
+    /**
+     * Delay every block by this long after it would otherwise be sent, as if it had that round trip.
+     */
+    public void setLatency(long millis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Limit what each seeder sends to this many bytes per second over all its connections, 0 for unlimited.
+     */
+    public void setSeederRate(long bytesPerSecond) {
+        this.seederRate = bytesPerSecond;
+    }
+
+    /**
+     * Choke every connection for one period and unchoke it for the next, 0 to never choke. Connections start at
+     * random points of the cycle.
+     */
+    public void setChokeInterval(long millis) {
+        this.chokeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Make the first {@code seeders} seeders flip a byte in each block they send with the given probability.
+     */
+    public void setCorruption(int seeders, double blockProbability) {
+        this.corruptSeeders = seeders;
+        this.corruptProbability = blockProbability;
+    }
+
+    /**
+     * Generate the content, start the tracker and the seeders, and return the torrent that announces to them.
+     */
+    public Torrent start() throws IOException {
+        content = new byte[(int) size];
+        new Random(seed).nextBytes(content);
+        int pieceCount = (int) ((size + pieceLength - 1) / pieceLength);
+        byte[] pieces = new byte[pieceCount * Torrent.HASH_LENGTH];
+        MessageDigest sha1 = sha1();
+        for (int i = 0; i < pieceCount; i++) {
+            sha1.update(content, i * pieceLength, (int) Math.min(pieceLength, size - (long) i * pieceLength));
+            System.arraycopy(sha1.digest(), 0, pieces, i * Torrent.HASH_LENGTH, Torrent.HASH_LENGTH);
+        }
+
+        for (int i = 0; i < seederCount; i++) {
+            ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Seeder seeder = new Seeder(i, server, i < corruptSeeders, new Random(seed + i + 1));
+            seeders.add(seeder);
+            threads.execute(seeder::acceptLoop);
+        }
+        tracker = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        tracker.createContext("/announce", this::announce);
+        tracker.start();
+
+        Map<String, Object> info = new TreeMap<>();
+        info.put("length", size);
+        info.put("name", "simulated-" + seed + ".bin");
+        info.put("piece length", (long) pieceLength);
+        info.put("pieces", pieces);
+        Map<String, Object> metainfo = new TreeMap<>();
+        metainfo.put("announce", "http://127.0.0.1:" + tracker.getAddress().getPort() + "/announce");
+        metainfo.put("created by", "SwarmSimulator");
+        metainfo.put("info", info);
+        try {
+            Torrent torrent = new Torrent(BencodeCodec.encodeBencode(metainfo));
+            infoHash = torrent.getInfoHashBytes();
+            return torrent;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Answer every announce with all the seeders, in compact form.
+     */
+    private void announce(HttpExchange exchange) throws IOException {
+        firstAnnounce.compareAndSet(0, System.nanoTime());
+        announces.increment();
+        ByteBuffer peers = ByteBuffer.allocate(seeders.size() * 6);
+        for (Seeder seeder : seeders) {
+            peers.put(InetAddress.getLoopbackAddress().getAddress()).putChar((char) seeder.server.getLocalPort());
+        }
+        Map<String, Object> response = new TreeMap<>();
+        response.put("interval", 1800L);
+        response.put("peers", peers.array());
+        byte[] body = BencodeCodec.encodeBencode(response);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Start counting afresh, e.g. before each run of the client.
+     */
+    public void resetStats() {
+        firstAnnounce.set(0);
+        firstHandshake.set(0);
+        firstBlock.set(0);
+        for (LongAdder counter : List.of(announces, connections, blocksSent, bytesSent, corruptBlocks, chokes)) {
+            counter.reset();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(firstAnnounce.get(), firstHandshake.get(), firstBlock.get(), announces.sum(),
+                connections.sum(), blocksSent.sum(), bytesSent.sum(), corruptBlocks.sum(), chokes.sum());
+    }
+
+    /**
+     * Whether a file holds exactly {@code length} bytes of the content the seeders serve, from {@code offset}.
+     */
+    public boolean matches(Path file, long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() != length || offset < 0 || offset + length > size) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            for (long position = 0; position < length; ) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                int from = (int) (offset + position);
+                if (read <= 0 || Arrays.mismatch(buffer.array(), 0, read, content, from, from + read) >= 0) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One simulated seeder: every piece, and a send schedule shared by its connections.
+     */
+    private final class Seeder {
+        final int index;
+        final ServerSocket server;
+        final boolean corrupt;
+        final Random random;
+        long freeAtNanos;
+
+        Seeder(int index, ServerSocket server, boolean corrupt, Random random) {
+            this.index = index;
+            this.server = server;
+            this.corrupt = corrupt;
+            this.random = random;
+        }
+
+        void acceptLoop() {
+            while (!closed) {
+                try {
+                    Socket socket = server.accept();
+                    sockets.add(socket);
+                    connections.increment();
+                    threads.execute(() -> new Connection(this, socket).run());
+                } catch (IOException e) {
+                    // Closed, or a failed accept that the next one may not repeat
+                }
+            }
+        }
+
+        /**
+         * When a block requested now arrives at the client: after the blocks queued before it have gone out at
+         * the seeder's rate, plus the latency.
+         */
+        synchronized long schedule(int length) {
+            long now = System.nanoTime();
+            long start = Math.max(now, freeAtNanos);
+            freeAtNanos = seederRate > 0 ? start + length * 1_000_000_000L / seederRate : start;
+            return freeAtNanos + latencyNanos;
+        }
+
+        synchronized boolean corruptNext() {
+            return corrupt && random.nextDouble() < corruptProbability;
+        }
+
+        synchronized long nextLong(long bound) {
+            return bound > 0 ? Math.floorMod(random.nextLong(), bound) : 0;
+        }
+    }
+
+    /**
+     * A block or control message waiting for its time to be sent.
+     */
+    private record Outgoing(long dueNanos, int messageId, int pieceIndex, int begin, int length) {
+    }
+
+    /**
+     * One connection to the client: this thread reads its messages, and a second one sends what they ask for, in
+     * order, each when it is due.
+     */
+    private final class Connection {
+        final Seeder seeder;
+        final Socket socket;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+        boolean interested;
+        boolean choked;
+        boolean done;
+
+        Connection(Seeder seeder, Socket socket) {
+            this.seeder = seeder;
+            this.socket = socket;
+        }
+
+        void run() {
+            try (socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                byte[] handshake = in.readNBytes(68);
+                if (handshake.length < 68 || !Arrays.equals(handshake, 28, 48, infoHash, 0, infoHash.length)) {
+                    return;
+                }
+                firstHandshake.compareAndSet(0, System.nanoTime());
+                writeHandshake(out);
+                threads.execute(() -> send(out));
+                receive(in);
+            } catch (IOException e) {
+                // The client hung up, or the simulator is closing
+            } finally {
+                lock.lock();
+                try {
+                    done = true;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                sockets.remove(socket);
+            }
+        }
+
+        private void writeHandshake(DataOutputStream out) throws IOException {
+            out.writeByte(19);
+            out.write("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[8]);
+            out.write(infoHash);
+            String peerId = PEER_ID_PREFIX + String.format("%012d", seeder.index);
+            out.write(peerId.getBytes(StandardCharsets.US_ASCII));
+            int pieceCount = (int) ((size + pieceLength - 1) / pieceLength);
+            byte[] bitfield = new byte[(pieceCount + 7) / 8];
+            for (int i = 0; i < pieceCount; i++) {
+                bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+            out.writeInt(1 + bitfield.length);
+            out.writeByte(MessageType.BITFIELD.getId());
+            out.write(bitfield);
+            out.flush();
+        }
+
+        private void receive(DataInputStream in) throws IOException {
+            while (true) {
+                int length = in.readInt();
+                if (length == 0) {
+                    continue;
+                }
+                if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                    throw new IOException("Bad message length " + length);
+                }
+                int id = in.readUnsignedByte();
+                if (id == MessageType.REQUEST.getId() && length == 13) {
+                    request(in.readInt(), in.readInt(), in.readInt());
+                } else if (id == MessageType.CANCEL.getId() && length == 13) {
+                    cancel(in.readInt(), in.readInt());
+                    in.readInt();
+                } else {
+                    in.skipNBytes(length - 1);
+                    if (id == MessageType.INTERESTED.getId() || id == MessageType.NOT_INTERESTED.getId()) {
+                        onInterested(id == MessageType.INTERESTED.getId());
+                    }
+                }
+            }
+        }
+
+        private void onInterested(boolean interested) {
+            lock.lock();
+            try {
+                if (interested && !this.interested && !choked) {
+                    enqueue(new Outgoing(System.nanoTime(), MessageType.UNCHOKE.getId(), 0, 0, 0));
+                }
+                this.interested = interested;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void request(int pieceIndex, int begin, int length) throws IOException {
+            long offset = (long) pieceIndex * pieceLength + begin;
+            if (pieceIndex < 0 || begin < 0 || length <= 0 || length > MAX_REQUEST_LENGTH || begin + length > pieceLength
+                    || offset + length > size) {
+                throw new IOException("Bad request " + pieceIndex + "/" + begin + "/" + length);
+            }
+            lock.lock();
+            try {
+                if (!choked) {  // Requests sent while choked are dropped
+                    enqueue(new Outgoing(seeder.schedule(length), MessageType.PIECE.getId(), pieceIndex, begin, length));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void cancel(int pieceIndex, int begin) {
+            lock.lock();
+            try {
+                queue.removeIf(outgoing -> outgoing.messageId == MessageType.PIECE.getId()
+                        && outgoing.pieceIndex == pieceIndex && outgoing.begin == begin);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void enqueue(Outgoing outgoing) {
+            queue.add(outgoing);
+            changed.signalAll();
+        }
+
+        /**
+         * Send queued messages as they fall due, and choke or unchoke the client on schedule.
+         */
+        private void send(DataOutputStream out) {
+            long toggleAt = chokeIntervalNanos > 0
+                    ? System.nanoTime() + seeder.nextLong(chokeIntervalNanos) : Long.MAX_VALUE;
+            try {
+                while (true) {
+                    Outgoing next;
+                    lock.lock();
+                    try {
+                        while (true) {
+                            if (done) {
+                                return;
+                            }
+                            long now = System.nanoTime();
+                            if (now - toggleAt >= 0) {
+                                choked = !choked;
+                                toggleAt += chokeIntervalNanos;
+                                if (choked) {
+                                    queue.clear();
+                                    chokes.increment();
+                                    next = new Outgoing(now, MessageType.CHOKE.getId(), 0, 0, 0);
+                                    break;
+                                } else if (interested) {
+                                    next = new Outgoing(now, MessageType.UNCHOKE.getId(), 0, 0, 0);
+                                    break;
+                                }
+                                continue;
+                            }
+                            Outgoing head = queue.peek();
+                            if (head != null && now - head.dueNanos >= 0) {
+                                next = queue.poll();
+                                break;
+                            }
+                            long wait = Math.min(head == null ? Long.MAX_VALUE : head.dueNanos - now, toggleAt - now);
+                            changed.awaitNanos(wait);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    write(out, next);
+                    boolean more;
+                    lock.lock();
+                    try {
+                        Outgoing head = queue.peek();
+                        more = head != null && System.nanoTime() - head.dueNanos >= 0;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (!more) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                closeQuietly();
+            } catch (InterruptedException e) {
+                closeQuietly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(DataOutputStream out, Outgoing outgoing) throws IOException {
+            if (outgoing.messageId != MessageType.PIECE.getId()) {
+                out.writeInt(1);
+                out.writeByte(outgoing.messageId);
+                return;
+            }
+            out.writeInt(9 + outgoing.length);
+            out.writeByte(outgoing.messageId);
+            out.writeInt(outgoing.pieceIndex);
+            out.writeInt(outgoing.begin);
+            int offset = (int) ((long) outgoing.pieceIndex * pieceLength + outgoing.begin);
+            if (seeder.corruptNext()) {
+                byte[] block = Arrays.copyOfRange(content, offset, offset + outgoing.length);
+                block[(int) seeder.nextLong(block.length)] ^= 1;
+                out.write(block);
+                corruptBlocks.increment();
+            } else {
+                out.write(content, offset, outgoing.length);
+            }
+            firstBlock.compareAndSet(0, System.nanoTime());
+            blocksSent.increment();
+            bytesSent.add(outgoing.length);
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Stop the tracker and the seeders and drop every connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (tracker != null) {
+            tracker.stop(0);
+        }
+        for (Seeder seeder : seeders) {
+            try {
+                seeder.server.close();
+            } catch (IOException ignored) {
+                // Nothing to release
+            }
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+        threads.shutdownNow();
+    }
+}
@@ -0,0 +1,288 @@
+package client;
+
+import util.BencodeView;
+import util.PeerIdGenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The metainfo of a torrent, read once and kept in typed, immutable fields.
+ * <p>
+ * The file is walked with a {@link BencodeView} rather than decoded into maps, so loading a torrent allocates
+ * little beyond what is kept: the piece hashes as one flat array of 20-byte digests, compared in place by index,
+ * and the files as parallel arrays of lengths, offsets and paths. Values derived from them, such as the piece
+ * count and the size of the last piece, are worked out up front, as they are needed for every block.
+ */
+public class Torrent {
+    public static final int HASH_LENGTH = 20;
+    /**
+     * The size pieces are requested in; only a piece's last block may be shorter.
+     */
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    private final String announce;
+    private final List<List<String>> announceTiers;
+    private final byte[] infoHash;
+    private final String infoHashHex;
+    private final String peerId = PeerIdGenerator.generatePeerId();
+    private final String name;
+    private final boolean multiFile;
+    private final boolean privateTorrent;
+    private final byte[] pieceHashes;
+    private final int pieceLength;
+    private final int pieceCount;
+    private final int lastPieceSize;
+    private final long length;
+    private final long[] fileLengths;
+    private final long[] fileOffsets;
+    private final String[][] filePaths;
+
+    /**
+     * A file of the torrent, with its path relative to the download root.
+     */
+    public record FileEntry(List<String> path, long length) {
+    }
+
+    public Torrent(byte[] bencodedValue) throws NoSuchAlgorithmException, IOException {
+        BencodeView torrent;
+        try {
+            torrent = BencodeView.of(bencodedValue);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid torrent file format: " + e.getMessage(), e);
+        }
+        if (torrent.getType() != BencodeView.Type.DICTIONARY) {
+            throw new IllegalArgumentException("Invalid torrent file format: Expected a dictionary");
+        }
+
+        BencodeView announceView = optional(torrent, "announce", BencodeView.Type.STRING);
+        announce = announceView == null ? "Unknown" : announceView.asString();
+        announceTiers = parseAnnounceTiers(torrent.get("announce-list"), announceView == null ? null : announce);
+
+        // Hash the info dictionary exactly as it appears in the file rather than a re-encoding of it
+        BencodeView info = torrent.get("info");
+        if (info == null || info.getType() != BencodeView.Type.DICTIONARY) {
+            throw new IllegalArgumentException("Invalid torrent file format: Missing 'info' dictionary");
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(info.raw());
+        infoHash = digest.digest();
+        infoHashHex = HexFormat.of().formatHex(infoHash);
+
+        BencodeView nameView = optional(info, "name", BencodeView.Type.STRING);
+        name = nameView == null ? "download" : nameView.asString();
+        BencodeView privateView = optional(info, "private", BencodeView.Type.INTEGER);
+        privateTorrent = privateView != null && privateView.asLong() == 1;
+
+        ByteBuffer pieces = required(info, "pieces", BencodeView.Type.STRING).asBytes();
+        if (pieces.remaining() % HASH_LENGTH != 0) {
+            throw new IllegalArgumentException("Invalid torrent file format: 'pieces' is not a list of SHA-1 hashes");
+        }
+        pieceHashes = new byte[pieces.remaining()];
+        pieces.get(pieceHashes);
+        pieceCount = pieceHashes.length / HASH_LENGTH;
+        long nominalLength = required(info, "piece length", BencodeView.Type.INTEGER).asLong();
+        if (nominalLength <= 0 || nominalLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid torrent file format: Bad 'piece length' " + nominalLength);
+        }
+        pieceLength = (int) nominalLength;
+
+        BencodeView files = optional(info, "files", BencodeView.Type.LIST);
+        multiFile = files != null;
+        if (multiFile) {
+            List<BencodeView> entries = files.elements();
+            fileLengths = new long[entries.size()];
+            filePaths = new String[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                BencodeView entry = entries.get(i);
+                BencodeView fileLength = entry.getType() == BencodeView.Type.DICTIONARY
+                        ? optional(entry, "length", BencodeView.Type.INTEGER) : null;
+                BencodeView path = fileLength == null ? null : optional(entry, "path", BencodeView.Type.LIST);
+                List<BencodeView> components = path == null ? List.of() : path.elements();
+                if (components.isEmpty() || fileLength.asLong() < 0) {
+                    throw new IllegalArgumentException("Invalid torrent file format: Malformed entry in 'files'");
+                }
+                fileLengths[i] = fileLength.asLong();
+                filePaths[i] = new String[components.size()];
+                for (int j = 0; j < components.size(); j++) {
+                    filePaths[i][j] = asString(components.get(j));
+                }
+            }
+        } else {
+            fileLengths = new long[]{required(info, "length", BencodeView.Type.INTEGER).asLong()};
+            filePaths = new String[][]{{name}};
+        }
+
+        fileOffsets = new long[fileLengths.length];
+        long offset = 0;
+        for (int i = 0; i < fileLengths.length; i++) {
+            fileOffsets[i] = offset;
+            offset += fileLengths[i];
+        }
+        length = offset;
+        if ((length + pieceLength - 1) / pieceLength != pieceCount) {
+            throw new IllegalArgumentException("Invalid torrent file format: " + pieceCount + " piece hashes for "
+                    + length + " bytes in pieces of " + pieceLength);
+        }
+        lastPieceSize = pieceCount == 0 ? 0 : (int) (length - (long) (pieceCount - 1) * pieceLength);
+    }
+
+    private static BencodeView required(BencodeView dictionary, String key, BencodeView.Type type) {
+        BencodeView value = optional(dictionary, key, type);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid torrent file format: Missing or malformed '" + key + "'");
+        }
+        return value;
+    }
+
+    /**
+     * A dictionary entry of the given type, or {@code null} if it is absent or of another type.
+     */
+    private static BencodeView optional(BencodeView dictionary, String key, BencodeView.Type type) {
+        BencodeView value = dictionary.get(key);
+        return value != null && value.getType() == type ? value : null;
+    }
+
+    private static String asString(BencodeView value) {
+        if (value.getType() != BencodeView.Type.STRING) {
+            throw new IllegalArgumentException("Invalid torrent file format: Expected a string at offset " + value.getOffset());
+        }
+        return value.asString();
+    }
+
+    /**
+     * Read the tracker tiers of {@code announce-list} (BEP 12), falling back to the single {@code announce} URL.
+     * Trackers within each tier are shuffled once, as the extension asks clients to do.
+     */
+    private static List<List<String>> parseAnnounceTiers(BencodeView announceList, String announce) {
+        List<List<String>> tiers = new ArrayList<>();
+        if (announceList != null && announceList.getType() == BencodeView.Type.LIST) {
+            for (BencodeView entry : announceList.elements()) {
+                List<BencodeView> urls = entry.getType() == BencodeView.Type.LIST ? entry.elements() : List.of();
+                if (!urls.isEmpty()) {
+                    List<String> tier = new ArrayList<>(urls.stream().map(Torrent::asString).toList());
+                    Collections.shuffle(tier);
+                    tiers.add(Collections.unmodifiableList(tier));
+                }
+            }
+        }
+        if (tiers.isEmpty() && announce != null) {
+            tiers.add(List.of(announce));
+        }
+        return Collections.unmodifiableList(tiers);
+    }
+
+    /**
+     * Compare a computed SHA-1 digest with the expected hash of a piece, without copying the expected hash.
+     */
+    public boolean matchesPieceHash(int pieceIndex, byte[] digest) {
+        int offset = pieceIndex * HASH_LENGTH;
+        return digest.length == HASH_LENGTH
+                && Arrays.equals(pieceHashes, offset, offset + HASH_LENGTH, digest, 0, HASH_LENGTH);
+    }
+
+    /**
+     * Total size of the torrent content, summed over all files.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isMultiFile() {
+        return multiFile;
+    }
+
+    public int getFileCount() {
+        return fileLengths.length;
+    }
+
+    public long getFileLength(int fileIndex) {
+        return fileLengths[fileIndex];
+    }
+
+    /**
+     * Where a file starts in the torrent's content, as if all files were laid end to end.
+     */
+    public long getFileOffset(int fileIndex) {
+        return fileOffsets[fileIndex];
+    }
+
+    public List<String> getFilePath(int fileIndex) {
+        return List.of(filePaths[fileIndex]);
+    }
+
+    public List<FileEntry> getFiles() {
+        List<FileEntry> files = new ArrayList<>(fileLengths.length);
+        for (int i = 0; i < fileLengths.length; i++) {
+            files.add(new FileEntry(getFilePath(i), fileLengths[i]));
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    public int getPieceLength() {
+        return pieceLength;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    /**
+     * Size of the given piece; only the last piece may be shorter than the nominal piece length.
+     */
+    public int getPieceSize(int pieceIndex) {
+        return pieceIndex == pieceCount - 1 ? lastPieceSize : pieceLength;
+    }
+
+    public String getAnnounce() {
+        return announce;
+    }
+
+    public List<List<String>> getAnnounceTiers() {
+        return announceTiers;
+    }
+
+    public String getInfoHash() {
+        return infoHashHex;
+    }
+
+    /**
+     * The raw 20-byte info hash, as sent in handshakes; a copy the caller may keep.
+     */
+    public byte[] getInfoHashBytes() {
+        return infoHash.clone();
+    }
+
+    /**
+     * Whether the torrent is private (BEP 27): its peers may only come from its trackers, not from the DHT.
+     */
+    public boolean isPrivate() {
+        return privateTorrent;
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder()
+                .append("Tracker URL: ").append(announce)
+                .append("\nLength: ").append(length)
+                .append("\nInfo Hash: ").append(infoHashHex)
+                .append("\nPiece Length: ").append(pieceLength)
+                .append("\nPieces Hashes:");
+        HexFormat hex = HexFormat.of();
+        for (int offset = 0; offset < pieceHashes.length; offset += HASH_LENGTH) {
+            hex.formatHex(text.append('\n'), pieceHashes, offset, offset + HASH_LENGTH);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,838 @@
+package client;
+
+import util.Bitfield;
+import util.TokenBucket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Downloads a whole torrent by connecting to every peer as the trackers report it, with all connections taking
+ * pieces from a shared rarest-first {@link PiecePicker}.
+ * <p>
+ * Connections either run on one virtual thread each using blocking sockets, or are multiplexed over a few
+ * selector threads by {@link NioTransport}. Peers that connect to us are always served by the NIO transport, which
+ * uploads the pieces we have to them as the {@link Choker} allows; in seeding mode that carries on after the
+ * download is complete, until {@link #stop()}. With a {@link TorrentStream}, only the pieces it covers are fetched,
+ * those just ahead of its playback offset first, and the download returns once it has written them all out.
+ * <p>
+ * Traffic can be held to {@link TokenBucket} rate limits and connections to a cap; peers discovered beyond the cap
+ * wait until a connection closes. Run by a {@link TorrentSession}, the downloader shares its transport threads,
+ * verifier pool and limits with the session's other torrents instead of creating its own.
+ */
+public class TorrentDownloader {
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final long RESUME_SAVE_INTERVAL_SECONDS = 30;
+    private static final int MAX_INBOUND_PEERS = 50;
+
+    public enum Transport {
+        THREADS,
+        NIO
+    }
+
+    private final Torrent torrent;
+    private final int minPipelineDepth;
+    private final int maxPipelineDepth;
+    private final Transport transport;
+    private final PiecePicker picker;
+    private final PeerRegistry registry = new PeerRegistry();
+    private final PeerRanking ranking = new PeerRanking();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicInteger activePeers = new AtomicInteger();
+    private final AtomicInteger peersFound = new AtomicInteger();
+    private final AtomicInteger inboundPeers = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ArrayDeque<Integer> waitingPeers = new ArrayDeque<>();
+    private IntConsumer dialer;  // Guarded by waitingPeers; set while peers can be dialled
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean firstAnnounceDone;
+    private boolean seeding;
+    private Metrics metrics = new Metrics();
+    private long cacheBudget = BlockCache.DEFAULT_BUDGET;
+    private boolean cacheOffHeap = true;
+    private TorrentStream stream;
+    private TokenBucket downloadLimit;
+    private TokenBucket uploadLimit;
+    private int maxPeers = Integer.MAX_VALUE;
+    private TorrentSession torrentSession;
+    private DhtNode dht;
+    private volatile PeerExchange peerExchange;  // Set while connections may exchange peers
+    private TransferStats stats;
+    private ResumeData resume;
+
+    public TorrentDownloader(Torrent torrent) {
+        this(torrent, PeerConnection.MIN_PIPELINE_DEPTH, PeerConnection.MAX_PIPELINE_DEPTH, Transport.THREADS);
+    }
+
+    /**
+     * @param minPipelineDepth the fewest block requests kept outstanding on a peer that is not snubbed
+     * @param maxPipelineDepth the most block requests kept outstanding on any peer, however fast
+     */
+    public TorrentDownloader(Torrent torrent, int minPipelineDepth, int maxPipelineDepth, Transport transport) {
+        if (minPipelineDepth < 1 || maxPipelineDepth < minPipelineDepth) {
+            throw new IllegalArgumentException("Invalid pipeline depth bounds: " + minPipelineDepth + ".." + maxPipelineDepth);
+        }
+        this.torrent = torrent;
+        this.minPipelineDepth = minPipelineDepth;
+        this.maxPipelineDepth = maxPipelineDepth;
+        this.transport = transport;
+        this.picker = new PiecePicker(torrent);
+    }
+
+    /**
+     * Keep serving other peers once the download is complete, until {@link #stop()} is called.
+     */
+    public void setSeeding(boolean seeding) {
+        this.seeding = seeding;
+    }
+
+    /**
+     * Report into {@code metrics}, e.g. one that is being logged or served, instead of a private instance.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Size of the {@link BlockCache} that buffers received pieces until they are verified and keeps recent ones
+     * for uploads; a budget smaller than a piece writes every block straight to disk.
+     *
+     * @param offHeap whether to allocate the cache outside the Java heap
+     */
+    public void setCache(long budget, boolean offHeap) {
+        this.cacheBudget = budget;
+        this.cacheOffHeap = offHeap;
+    }
+
+    /**
+     * Download only the range of {@code stream} and write it out in order as pieces arrive.
+     */
+    public void setStream(TorrentStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Charge all traffic of this torrent to these buckets, which hold it to their rates; either may be
+     * {@code null} for no limit.
+     */
+    public void setRateLimits(TokenBucket download, TokenBucket upload) {
+        this.downloadLimit = download;
+        this.uploadLimit = upload;
+    }
+
+    /**
+     * The most connections to keep open at once, counting both directions.
+     */
+    public void setMaxPeers(int maxPeers) {
+        if (maxPeers < 1) {
+            throw new IllegalArgumentException("Invalid peer limit: " + maxPeers);
+        }
+        this.maxPeers = maxPeers;
+    }
+
+    /**
+     * Also look for peers on the DHT through {@code node}, which may be shared with other torrents, unless the
+     * torrent is private.
+     */
+    public void setDht(DhtNode node) {
+        this.dht = node;
+    }
+
+    /**
+     * Run on the shared resources of {@code session}, see {@link TorrentSession#add}.
+     */
+    void setSession(TorrentSession session) {
+        this.torrentSession = session;
+    }
+
+    /**
+     * End the download or seeding; {@link #download} returns once the trackers were told we left.
+     */
+    public void stop() {
+        stopped.countDown();
+        finished.countDown();
+    }
+
+    public void download(String outputLocation) throws IOException {
+        Path target = Paths.get(outputLocation);
+        Path resumePath = ResumeData.pathFor(torrent, target);
+        ResumeData saved = ResumeData.load(resumePath, torrent);
+
+        // Inspect existing files before opening them for writing, which may extend them
+        boolean[] changedFiles;
+        boolean[] coarseFiles;
+        boolean hasExistingData = false;
+        try (Storage existing = Storage.openExisting(torrent, target)) {
+            changedFiles = new boolean[existing.getFileCount()];
+            coarseFiles = new boolean[existing.getFileCount()];
+            for (int file = 0; file < existing.getFileCount(); file++) {
+                hasExistingData |= Files.exists(existing.getPath(file));
+                changedFiles[file] = saved == null || !saved.isFileUnchanged(existing, file);
+                coarseFiles[file] = saved != null && saved.hasCoarseTimestamp(file);
+            }
+        }
+
+        try (Storage output = new Storage(torrent, target, Storage.Allocation.SPARSE);
+             BlockCache blockCache = new BlockCache(torrent, output, cacheBudget, cacheOffHeap,
+                     (pieceIndex, begin) -> resume.onBlockWritten(pieceIndex, begin), picker::hasPiece)) {
+            // Closing the verifier settles the pieces still being hashed, so it goes before the state is saved
+            try (PieceVerifier verifier = torrentSession == null ? new PieceVerifier(torrent, output, blockCache)
+                    : new PieceVerifier(torrent, output, blockCache, torrentSession.getVerifierPool())) {
+                stats = new TransferStats(torrent.getLength());
+                metrics.histogram("diskWrite", output.getWriteLatency());
+                metrics.histogram("pieceVerify", verifier.getVerifyLatency());
+                metrics.gauge("verifyQueue", verifier::getQueueDepth);
+                metrics.gauge("piecesRemaining", picker::getRemaining);
+                metrics.gauge("outboundPeers", activePeers::get);
+                metrics.gauge("inboundPeers", inboundPeers::get);
+                metrics.gauge("cachedPieces", blockCache::getCachedPieces);
+                metrics.gauge("cacheReadHits", blockCache::getReadHits);
+                metrics.gauge("cacheReadMisses", blockCache::getReadMisses);
+                metrics.gauge("cacheEvictions", blockCache::getEvictions);
+                metrics.gauge("cacheWrittenThrough", blockCache::getWrittenThrough);
+                metrics.gauge("cacheHashedOnArrival", blockCache::getHashedOnArrival);
+                metrics.gauge("diskWrites", blockCache::getWrites);
+                if (stream != null) {
+                    picker.setWanted(stream.getFirstPiece(), stream.getEndPiece());
+                    metrics.gauge("streamPosition", stream::getPosition);
+                    metrics.gauge("streamStalls", stream::getStalls);
+                    metrics.gauge("streamStalledMillis", () -> stream.getStalledNanos() / 1_000_000);
+                }
+                resume = restore(saved, changedFiles, coarseFiles, hasExistingData, output, verifier);
+                if (stream != null) {
+                    stream.start(picker, output, this::stop);
+                }
+                boolean completeAtStart = picker.isComplete();
+                if (completeAtStart && !seeding) {
+                    awaitStream();
+                    return;
+                }
+
+                ScheduledExecutorService saver = torrentSession != null ? torrentSession.getScheduler()
+                        : Executors.newSingleThreadScheduledExecutor(runnable -> {
+                            Thread thread = new Thread(runnable, "resume-saver");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                ScheduledFuture<?> saving = saver.scheduleWithFixedDelay(() -> saveResume(resumePath, output),
+                        RESUME_SAVE_INTERVAL_SECONDS, RESUME_SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                try (NioTransport ownTransport = torrentSession != null ? null
+                        : new NioTransport(transport == Transport.NIO ? NioTransport.defaultThreadCount() : 1,
+                        NioTransport.DEFAULT_IDLE_TIMEOUT_MILLIS);
+                     Choker choker = torrentSession != null ? new Choker(picker, torrentSession.getScheduler()) : new Choker(picker);
+                     ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    choker.start();
+                    NioTransport nioTransport = torrentSession != null ? torrentSession.getTransport() : ownTransport;
+                    NioPeerSession.Listener listener = sessionListener(verifier, blockCache, choker);
+                    TorrentSession.Inbound inbound = (channel, received) ->
+                            accept(channel, received, nioTransport, blockCache, listener);
+                    try (PeerServer ownServer = torrentSession != null ? null
+                            : new PeerServer(channel -> inbound.accept(channel, null));
+                         PeerDiscovery discovery = new PeerDiscovery(torrent, stats, registry, getPort(ownServer))) {
+                        if (!torrent.isPrivate()) {
+                            peerExchange = new PeerExchange(registry, this::onPeerDiscovered, getPort(ownServer));
+                            if (dht != null) {
+                                discovery.setDht(dht);
+                            }
+                        }
+                        if (torrentSession != null) {
+                            torrentSession.listen(torrent, inbound);
+                        }
+                        try {
+                            synchronized (waitingPeers) {
+                                dialer = transport == Transport.NIO
+                                        ? peer -> dialNonBlocking(peer, nioTransport, blockCache, listener)
+                                        : peer -> executor.submit(() -> dialBlocking(peer, blockCache, verifier));
+                            }
+                            discovery.start(this::onPeerDiscovered, this::onFirstAnnounce);
+                            awaitFinished();
+                            if (picker.isComplete()) {
+                                awaitStream();
+                            }
+
+                            if (picker.isComplete() && !completeAtStart && hasEveryPiece()) {
+                                discovery.onCompleted();
+                            }
+                            if (picker.isComplete() && seeding) {
+                                System.out.println("Seeding on port " + getPort(ownServer));
+                                awaitStopped();
+                            }
+                        } finally {
+                            if (torrentSession != null) {
+                                torrentSession.unlisten(torrent);
+                            }
+                            closeSessions(nioTransport);
+                        }
+                    }
+                } finally {
+                    synchronized (waitingPeers) {
+                        dialer = null;
+                        waitingPeers.clear();
+                    }
+                    peerExchange = null;
+                    saving.cancel(false);
+                    if (torrentSession == null) {
+                        saver.shutdownNow();
+                    }
+                }
+            } finally {
+                if (resume != null) {
+                    flushCache(blockCache);
+                    saveResume(resumePath, output);
+                }
+            }
+        }
+
+        if (stream != null && stream.getFailure() != null) {
+            throw stream.getFailure();
+        }
+        if (!picker.isComplete() && peersFound.get() == 0) {
+            throw new IOException("Trackers returned no peers");
+        }
+        if (!picker.isComplete()) {
+            throw new IOException("Download incomplete: " + picker.getRemaining() + " pieces could not be fetched from any peer");
+        }
+    }
+
+    /**
+     * Close this torrent's connections on a transport shared with other torrents; an own transport closes them
+     * all when it is closed itself.
+     */
+    private void closeSessions(NioTransport nioTransport) {
+        if (torrentSession != null) {
+            synchronized (waitingPeers) {
+                dialer = null;
+            }
+            nioTransport.closeSessions(session -> session.getTorrent() == torrent);
+        }
+    }
+
+    /**
+     * Rebuild the set of completed pieces from saved resume state. Pieces are trusted without hashing when every
+     * file they touch is unchanged since the state was saved; the rest are rehashed, as is the last piece of each
+     * file whose saved timestamp is too coarse to be sure of. Without any saved state, existing data is rechecked
+     * in full.
+     */
+    private ResumeData restore(ResumeData saved, boolean[] changedFiles, boolean[] coarseFiles, boolean hasExistingData,
+                               Storage output, PieceVerifier verifier) throws IOException {
+        int pieceCount = torrent.getPieceCount();
+        if (saved == null) {
+            ResumeData fresh = new ResumeData(torrent);
+            if (hasExistingData) {
+                long[] valid = verifier.recheck();
+                for (int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
+                    if (Bitfield.get(valid, pieceIndex)) {
+                        fresh.onPieceVerified(pieceIndex);
+                        completePiece(pieceIndex);
+                    }
+                }
+            }
+            return fresh;
+        }
+
+        long[] inDoubt = Bitfield.create(pieceCount);
+        for (int file = 0; file < changedFiles.length; file++) {
+            long start = output.getFileStart(file);
+            long end = output.getFileEnd(file);
+            if (changedFiles[file] && end > start) {
+                for (long piece = start / torrent.getPieceLength(); piece <= (end - 1) / torrent.getPieceLength(); piece++) {
+                    Bitfield.set(inDoubt, (int) piece);
+                }
+            } else if (coarseFiles[file] && end > start) {
+                Bitfield.set(inDoubt, (int) ((end - 1) / torrent.getPieceLength()));
+            }
+        }
+
+        List<CompletableFuture<Void>> rechecks = new ArrayList<>();
+        for (int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
+            int index = pieceIndex;
+            if (Bitfield.get(inDoubt, index)) {
+                saved.discardPiece(index);
+                rechecks.add(verifier.verify(index).thenAccept(valid -> {
+                    if (valid) {
+                        saved.onPieceVerified(index);
+                        completePiece(index);
+                    }
+                }));
+            } else if (saved.isComplete(index)) {
+                completePiece(index);
+            }
+        }
+        CompletableFuture.allOf(rechecks.toArray(CompletableFuture[]::new)).join();
+        return saved;
+    }
+
+    private void completePiece(int pieceIndex) {
+        if (picker.markCompleted(pieceIndex)) {
+            stats.pieceCompleted(torrent.getPieceSize(pieceIndex));
+        }
+        if (stream != null) {
+            stream.onPieceCompleted(pieceIndex);
+        }
+    }
+
+    /**
+     * Whether the whole torrent is here, not only the pieces wanted for a stream.
+     */
+    private boolean hasEveryPiece() {
+        return Bitfield.cardinality(picker.getCompleted()) == torrent.getPieceCount();
+    }
+
+    private void awaitStream() throws IOException {
+        if (stream != null) {
+            stream.await();
+        }
+    }
+
+    /**
+     * Connect to a discovered peer from its own virtual thread, using a blocking socket.
+     */
+    private void dialBlocking(int peer, BlockCache cache, PieceVerifier verifier) {
+        boolean failed = true;
+        try {
+            failed = !runPeer(registry.getAddress(peer), registry.format(peer), cache, verifier);
+        } finally {
+            registry.onDisconnected(peer, failed);
+            onPeerFinished();
+        }
+    }
+
+    private void onPeerDiscovered(int peer) {
+        if (picker.isComplete()) {
+            registry.onDisconnected(peer, false);  // We only wait for peers to come to us now
+            return;
+        }
+        peersFound.incrementAndGet();
+        synchronized (waitingPeers) {
+            waitingPeers.add(peer);
+        }
+        dialWaiting();
+    }
+
+    /**
+     * Dial discovered peers for as long as there are connections to spare. Called again whenever one closes,
+     * here or, in a session, in any torrent.
+     */
+    void dialWaiting() {
+        while (true) {
+            int peer;
+            IntConsumer dial;
+            synchronized (waitingPeers) {
+                if (waitingPeers.isEmpty() || dialer == null || !reserveConnection()) {
+                    return;
+                }
+                peer = waitingPeers.poll();
+                dial = dialer;
+                activePeers.incrementAndGet();
+            }
+            if (picker.isComplete()) {
+                registry.onDisconnected(peer, false);
+                activePeers.decrementAndGet();
+                releaseConnection();
+                checkFinished();
+                continue;
+            }
+            dial.accept(peer);
+        }
+    }
+
+    /**
+     * Take one of this torrent's connections and, in a session, one of the session's.
+     */
+    private boolean reserveConnection() {
+        if (connections.incrementAndGet() > maxPeers) {
+            connections.decrementAndGet();
+            return false;
+        }
+        if (torrentSession != null && !torrentSession.tryAcquireConnection()) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseConnection() {
+        connections.decrementAndGet();
+        if (torrentSession != null) {
+            torrentSession.releaseConnection();  // Lets whichever torrent is next in turn dial
+        } else {
+            dialWaiting();
+        }
+    }
+
+    private void onPeerFinished() {
+        activePeers.decrementAndGet();
+        releaseConnection();
+        checkFinished();
+    }
+
+    private void onFirstAnnounce() {
+        firstAnnounceDone = true;
+        checkFinished();
+    }
+
+    /**
+     * The download ends when every piece is complete, or when every tracker has answered once and no peer is
+     * left to download from or waiting for a connection.
+     */
+    private void checkFinished() {
+        if (picker.isComplete() || firstAnnounceDone && activePeers.get() == 0 && !hasWaitingPeers()) {
+            finished.countDown();
+        }
+    }
+
+    private boolean hasWaitingPeers() {
+        synchronized (waitingPeers) {
+            return !waitingPeers.isEmpty();
+        }
+    }
+
+    private void awaitFinished() throws IOException {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        }
+    }
+
+    private void awaitStopped() throws IOException {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while seeding", e);
+        }
+    }
+
+    /**
+     * Write out the blocks of unfinished pieces so the resume state saved next can record them.
+     */
+    private void flushCache(BlockCache cache) {
+        try {
+            cache.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write cached blocks: " + e.getMessage());
+        }
+    }
+
+    private void saveResume(Path resumePath, Storage output) {
+        try {
+            resume.save(resumePath, torrent, output);
+        } catch (IOException e) {
+            System.err.println("Failed to save resume state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Worker loop for a single peer. It keeps taking pieces until the torrent is complete or the peer fails,
+     * in which case the pieces it was working on are released for other peers.
+     *
+     * @return false if the peer failed
+     */
+    private boolean runPeer(InetSocketAddress address, String peer, BlockCache cache, PieceVerifier verifier) {
+        PeerThroughput throughput = new PeerThroughput(ranking, metrics, minPipelineDepth, maxPipelineDepth);
+        ranking.add(throughput);
+        try (PeerConnection connection = PeerConnection.open(torrent, address, throughput, peerExchange)) {
+            connection.setDownloadLimit(downloadLimit);
+            metrics.addPeer(peer, throughput);
+            picker.addPeer(connection.getPieces());
+            connection.setHaveListener(picker::peerHas);
+            PeerConnection.PieceSource source = new PeerConnection.PieceSource() {
+                @Override
+                public int next() {
+                    return picker.pick(connection.getRequestablePieces(), throughput.isSnubbed());
+                }
+
+                @Override
+                public int getPieceSize(int pieceIndex) {
+                    return torrent.getPieceSize(pieceIndex);
+                }
+
+                @Override
+                public long[] getBlocksOnDisk(int pieceIndex) {
+                    return resume.getPartialBlocks(pieceIndex);
+                }
+
+                @Override
+                public boolean isShared(int pieceIndex) {
+                    return picker.isShared(pieceIndex);
+                }
+
+                @Override
+                public boolean isReceived(int pieceIndex, int begin) {
+                    return picker.isReceived(pieceIndex, begin);
+                }
+
+                @Override
+                public boolean isClaimed(int pieceIndex) {
+                    return picker.isClaimed(pieceIndex);
+                }
+
+                @Override
+                public int getAttempt(int pieceIndex) {
+                    return picker.getAttempt(pieceIndex);
+                }
+
+                @Override
+                public void onPieceComplete(int pieceIndex) {
+                    if (picker.claimVerification(pieceIndex)) {
+                        verifier.verify(pieceIndex).thenAccept(valid -> onVerified(pieceIndex, valid, peer, cache));
+                    }
+                }
+
+                @Override
+                public void release(int pieceIndex) {
+                    picker.release(pieceIndex);
+                }
+            };
+            try {
+                while (!picker.isComplete()) {
+                    connection.download(source, (index, begin, block) -> {
+                        stats.addDownloaded(block.remaining());
+                        cache.writeBlock(index, begin, block);
+                        picker.onBlockReceived(index, begin);
+                    });
+                    if (picker.isComplete()) {
+                        break;
+                    }
+                    if (!picker.isInteresting(connection.getPieces())) {
+                        return true;  // The peer has nothing left that we need
+                    }
+                    // Everything this peer has is in flight elsewhere and endgame is not open to it yet
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                }
+            } finally {
+                picker.removePeer(connection.getPieces());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Dropping peer: " + peer + " - " + e.getMessage());
+            metrics.onPeerFailed();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            ranking.remove(throughput);
+            metrics.removePeer(throughput);
+        }
+    }
+
+    /**
+     * A piece an NIO session completed that waits for room in the verifier's queue.
+     */
+    private record PendingVerification(int pieceIndex, String peer) {
+    }
+
+    /**
+     * Complete a verified piece once it is on disk, or hand a corrupt one back to the picker so another peer can
+     * supply it.
+     */
+    private void onVerified(int pieceIndex, boolean valid, String peer, BlockCache cache) {
+        if (valid) {
+            try {
+                cache.onVerified(pieceIndex);
+            } catch (IOException e) {
+                System.err.println("Failed to write piece " + pieceIndex + ", retrying: " + e.getMessage());
+                resume.discardPiece(pieceIndex);
+                picker.failVerification(pieceIndex);
+                return;
+            }
+            resume.onPieceVerified(pieceIndex);
+            completePiece(pieceIndex);
+            metrics.onPieceCompleted();
+            TorrentEvents.PieceComplete event = new TorrentEvents.PieceComplete();
+            if (event.shouldCommit()) {
+                event.piece = pieceIndex;
+                event.size = torrent.getPieceSize(pieceIndex);
+                event.peer = peer;
+                event.commit();
+            }
+            checkFinished();
+        } else {
+            metrics.onHashFailure();
+            TorrentEvents.HashFail event = new TorrentEvents.HashFail();
+            if (event.shouldCommit()) {
+                event.piece = pieceIndex;
+                event.peer = peer;
+                event.commit();
+            }
+            System.err.println("Piece " + pieceIndex + " from peer " + peer + " failed the hash check, retrying");
+            cache.discard(pieceIndex);
+            resume.discardPiece(pieceIndex);
+            picker.failVerification(pieceIndex);
+        }
+    }
+
+    /**
+     * Callbacks shared by every NIO session, whether we dialled the peer or it connected to us.
+     */
+    private NioPeerSession.Listener sessionListener(PieceVerifier verifier, BlockCache cache, Choker choker) {
+        // Pieces claimed while the verifier's queue was full, handed on in order as it frees up; the event loops
+        // must never wait for it
+        ArrayDeque<PendingVerification> backlog = new ArrayDeque<>();
+        return new NioPeerSession.Listener() {
+            @Override
+            public boolean onPieceComplete(NioPeerSession session, int pieceIndex) {
+                if (!picker.claimVerification(pieceIndex)) {
+                    return true;  // Another session in endgame got there first
+                }
+                synchronized (backlog) {
+                    backlog.add(new PendingVerification(pieceIndex, session.getPeer()));
+                    return drainVerification();
+                }
+            }
+
+            /**
+             * Also called whenever a piece is verified, as that frees a place in the queue, so the backlog empties
+             * even if every session is gone.
+             */
+            @Override
+            public boolean drainVerification() {
+                synchronized (backlog) {
+                    while (!backlog.isEmpty()) {
+                        PendingVerification pending = backlog.peek();
+                        CompletableFuture<Boolean> result = verifier.tryVerify(pending.pieceIndex());
+                        if (result == null) {
+                            return false;
+                        }
+                        backlog.poll();
+                        result.thenAccept(valid -> {
+                            onVerified(pending.pieceIndex(), valid, pending.peer(), cache);
+                            drainVerification();
+                        });
+                    }
+                    return true;
+                }
+            }
+
+            @Override
+            public long[] getBlocksOnDisk(int pieceIndex) {
+                return resume.getPartialBlocks(pieceIndex);
+            }
+
+            @Override
+            public void onBlockReceived(int pieceIndex, int begin, int length) {
+                stats.addDownloaded(length);
+            }
+
+            @Override
+            public void onActive(NioPeerSession session) {
+                metrics.addPeer(session.getPeer(), session.getThroughput());
+                choker.add(session);
+            }
+
+            @Override
+            public void onPeerInterested(NioPeerSession session, boolean interested) {
+                choker.onInterestChanged(session);
+            }
+
+            @Override
+            public void onBlockSent(int pieceIndex, int begin, int length) {
+                stats.addUploaded(length);
+            }
+
+            @Override
+            public void onClosed(NioPeerSession session, Exception cause) {
+                if (cause != null) {
+                    System.err.println("Dropping peer: " + session.getPeer() + " - " + cause.getMessage());
+                    metrics.onPeerFailed();
+                }
+                choker.remove(session);
+                ranking.remove(session.getThroughput());
+                metrics.removePeer(session.getThroughput());
+                if (session.getHandle() < 0) {
+                    inboundPeers.decrementAndGet();
+                    releaseConnection();
+                    return;
+                }
+                registry.onDisconnected(session.getHandle(), cause != null);
+                onPeerFinished();
+            }
+        };
+    }
+
+    /**
+     * Start a non-blocking connect to a discovered peer on the NIO event loops.
+     */
+    private void dialNonBlocking(int peer, NioTransport nioTransport, BlockCache cache, NioPeerSession.Listener listener) {
+        NioPeerSession session;
+        try {
+            PeerThroughput throughput = new PeerThroughput(ranking, metrics, minPipelineDepth, maxPipelineDepth);
+            session = new NioPeerSession(peer, registry.format(peer), torrent, picker, cache, throughput, listener);
+            session.setRateLimits(downloadLimit, uploadLimit);
+            session.setPeerExchange(peerExchange);
+            ranking.add(throughput);
+        } catch (IOException | RuntimeException e) {
+            registry.onDisconnected(peer, true);
+            onPeerFinished();
+            return;
+        }
+        try {
+            nioTransport.connect(registry.getAddress(peer), session);
+        } catch (IOException | RuntimeException e) {
+            session.close(e);
+        }
+    }
+
+    /**
+     * The port peers can reach us on: that of our own server, or of the session's.
+     */
+    private int getPort(PeerServer ownServer) {
+        return ownServer != null ? ownServer.getPort() : torrentSession.getPort();
+    }
+
+    /**
+     * Take on a peer that connected to our {@link PeerServer}, or to the session's, unless there are too many
+     * already.
+     *
+     * @param received the start of the peer's handshake if the session's server already read it, else {@code null}
+     */
+    private void accept(SocketChannel channel, ByteBuffer received, NioTransport nioTransport, BlockCache cache,
+                        NioPeerSession.Listener listener) {
+        if (inboundPeers.incrementAndGet() > MAX_INBOUND_PEERS) {
+            inboundPeers.decrementAndGet();
+            throw new IllegalStateException("Too many incoming peers");  // The server closes the socket
+        }
+        if (!reserveConnection()) {
+            inboundPeers.decrementAndGet();
+            throw new IllegalStateException("Too many connections");
+        }
+        try {
+            InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+            PeerThroughput throughput = new PeerThroughput(ranking, metrics, minPipelineDepth, maxPipelineDepth);
+            NioPeerSession session = new NioPeerSession(-1, address.getHostString() + ":" + address.getPort(),
+                    torrent, picker, cache, throughput, listener);
+            session.setRateLimits(downloadLimit, uploadLimit);
+            session.setPeerExchange(peerExchange);
+            if (received != null) {
+                session.setReceived(received);
+            }
+            ranking.add(throughput);
+            nioTransport.accept(channel, session);
+        } catch (IOException e) {
+            inboundPeers.decrementAndGet();
+            releaseConnection();
+            throw new UncheckedIOException(e);
+        }
+    }
+}
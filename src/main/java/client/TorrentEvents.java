@@ -0,0 +1,73 @@
+package client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Custom Flight Recorder events, recorded with the JVM's own events when the client runs with
+ * {@code -XX:StartFlightRecording}. They cost next to nothing while no recording is active.
+ */
+final class TorrentEvents {
+    private TorrentEvents() {
+    }
+
+    @Name("bittorrent.Handshake")
+    @Label("Peer Handshake")
+    @Category("BitTorrent")
+    @Description("Connecting to a peer, or accepting it, up to the end of the BitTorrent handshake")
+    static final class Handshake extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Incoming")
+        boolean inbound;
+
+        @Label("Succeeded")
+        boolean success;
+
+        /**
+         * End the event begun when connecting, and commit it if a recording wants it.
+         */
+        void finish(String peer, boolean inbound, boolean success) {
+            end();
+            if (shouldCommit()) {
+                this.peer = peer;
+                this.inbound = inbound;
+                this.success = success;
+                commit();
+            }
+        }
+    }
+
+    @Name("bittorrent.PieceComplete")
+    @Label("Piece Complete")
+    @Category("BitTorrent")
+    @Description("A downloaded piece passed its hash check")
+    static final class PieceComplete extends Event {
+        @Label("Piece")
+        int piece;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        @Label("Peer")
+        String peer;
+    }
+
+    @Name("bittorrent.HashFail")
+    @Label("Hash Failure")
+    @Category("BitTorrent")
+    @Description("A downloaded piece failed its hash check and will be fetched again")
+    static final class HashFail extends Event {
+        @Label("Piece")
+        int piece;
+
+        @Label("Peer")
+        String peer;
+    }
+}
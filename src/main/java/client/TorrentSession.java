@@ -0,0 +1,388 @@
+package client;
+
+import util.TokenBucket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many torrents in one process, on one set of NIO transport threads, one verifier pool and one scheduler
+ * instead of a set per torrent.
+ * <p>
+ * Download and upload rates are limited per torrent and for the session as a whole with nested
+ * {@link TokenBucket}s, and connections are capped both ways too. The global rate is shared out fairly: every
+ * second each torrent's bucket is given its max-min fair share of the global limit, so torrents that use less
+ * than an equal share keep what they use, with some headroom to grow, and the rest is split evenly between the
+ * ones that want more. Connections freed by one torrent are offered to the torrents with peers waiting in turn.
+ * <p>
+ * All torrents share one {@link PeerServer}: an incoming connection is handed to a torrent once the start of its
+ * handshake names that torrent's info hash.
+ */
+public class TorrentSession implements Closeable {
+    private static final long REBALANCE_MILLIS = 1000;
+    private static final long MIN_SHARE = 16 << 10;  // Bytes per second any torrent may grow into
+    private static final int HANDSHAKE_PREFIX = 48;  // Up to and including the info hash
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Takes on incoming connections for one torrent.
+     */
+    interface Inbound {
+        /**
+         * @param received the start of the peer's handshake, already read off the connection
+         */
+        void accept(SocketChannel channel, ByteBuffer received);
+    }
+
+    /**
+     * A torrent running in the session.
+     */
+    public final class Entry {
+        private final TorrentDownloader downloader;
+        private final String outputLocation;
+        private final Limit download;
+        private final Limit upload;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        private Entry(TorrentDownloader downloader, String outputLocation, long downloadRate, long uploadRate) {
+            this.downloader = downloader;
+            this.outputLocation = outputLocation;
+            this.download = new Limit(downloadRate, downloadLimit);
+            this.upload = new Limit(uploadRate, uploadLimit);
+        }
+
+        public TorrentDownloader getDownloader() {
+            return downloader;
+        }
+
+        public String getOutputLocation() {
+            return outputLocation;
+        }
+
+        /**
+         * Wait until the torrent is downloaded, or has stopped seeding.
+         *
+         * @throws IOException if the download failed
+         */
+        public void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        public long getBytesDownloaded() {
+            return download.bucket.getConsumed();
+        }
+
+        public long getBytesUploaded() {
+            return upload.bucket.getConsumed();
+        }
+    }
+
+    /**
+     * One direction of a torrent's traffic: the rate it was given when added, and the bucket whose rate the
+     * rebalancing moves within it.
+     */
+    private static final class Limit {
+        final long configured;
+        final TokenBucket bucket;
+        long lastConsumed;
+        long demand;
+
+        Limit(long configured, TokenBucket parent) {
+            this.configured = configured;
+            this.bucket = new TokenBucket(configured, parent);
+        }
+    }
+
+    private final NioTransport transport;
+    private final ThreadPoolExecutor verifierPool;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService runners = Executors.newVirtualThreadPerTaskExecutor();
+    private final TokenBucket downloadLimit = new TokenBucket(0, null);
+    private final TokenBucket uploadLimit = new TokenBucket(0, null);
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final Map<String, Inbound> inbound = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger nextToDial = new AtomicInteger();
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private long rebalancedAt = System.nanoTime();
+    private PeerServer server;
+
+    public TorrentSession() throws IOException {
+        this(NioTransport.defaultThreadCount(), Runtime.getRuntime().availableProcessors());
+    }
+
+    public TorrentSession(int transportThreads, int verifierThreads) throws IOException {
+        this.transport = new NioTransport(transportThreads, NioTransport.DEFAULT_IDLE_TIMEOUT_MILLIS);
+        this.verifierPool = PieceVerifier.newPool(verifierThreads);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start listening for peers and sharing out the rates; must be called before torrents are added.
+     */
+    public synchronized void start() throws IOException {
+        if (server == null) {
+            server = new PeerServer(channel -> runners.submit(() -> route(channel)));
+            scheduler.scheduleWithFixedDelay(this::rebalance, REBALANCE_MILLIS, REBALANCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Limit the session's total rates in bytes per second, 0 for unlimited.
+     */
+    public void setRateLimits(long downloadRate, long uploadRate) {
+        downloadLimit.setRate(downloadRate);
+        uploadLimit.setRate(uploadRate);
+        rebalance();
+    }
+
+    /**
+     * The most connections to keep open across all torrents.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid connection limit: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Start downloading a torrent, configured except for its rate limits, on the session's threads.
+     *
+     * @param downloadRate the torrent's own limit in bytes per second within the session's, 0 for none
+     * @param uploadRate   likewise for uploads
+     */
+    public Entry add(TorrentDownloader downloader, String outputLocation, long downloadRate, long uploadRate) {
+        Entry entry = new Entry(downloader, outputLocation, downloadRate, uploadRate);
+        downloader.setSession(this);
+        downloader.setRateLimits(entry.download.bucket, entry.upload.bucket);
+        entries.add(entry);
+        rebalance();
+        runners.submit(() -> {
+            try {
+                downloader.download(outputLocation);
+            } catch (IOException e) {
+                entry.failure = e;
+            } catch (RuntimeException e) {
+                entry.failure = new IOException(e.getMessage(), e);
+            } finally {
+                entries.remove(entry);
+                entry.done.countDown();
+                rebalance();
+            }
+        });
+        return entry;
+    }
+
+    public List<Entry> getEntries() {
+        return List.copyOf(entries);
+    }
+
+    /**
+     * The port all torrents of the session listen on.
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("Session not started");
+        }
+        return server.getPort();
+    }
+
+    /**
+     * Hand incoming connections for a torrent to {@code handler} until {@link #unlisten} is called.
+     */
+    void listen(Torrent torrent, Inbound handler) {
+        if (inbound.putIfAbsent(torrent.getInfoHash(), handler) != null) {
+            throw new IllegalStateException("Torrent already in the session: " + torrent.getInfoHash());
+        }
+    }
+
+    void unlisten(Torrent torrent) {
+        inbound.remove(torrent.getInfoHash());
+    }
+
+    /**
+     * Read an accepted connection's handshake up to the info hash and pass it on to that torrent, or drop it if
+     * the session has no such torrent. The torrent's session checks the handshake in full.
+     */
+    private void route(SocketChannel channel) {
+        try {
+            ByteBuffer received = ByteBuffer.allocate(HANDSHAKE_PREFIX);
+            channel.configureBlocking(true);
+            channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            InputStream input = channel.socket().getInputStream();
+            while (received.hasRemaining()) {
+                int read = input.read(received.array(), received.position(), received.remaining());
+                if (read < 0) {
+                    throw new EOFException("Peer closed the connection during the handshake");
+                }
+                received.position(received.position() + read);
+            }
+            channel.configureBlocking(false);
+            Inbound handler = inbound.get(HexFormat.of().formatHex(received.array(), 28, HANDSHAKE_PREFIX));
+            if (handler == null) {
+                throw new IOException("Peer asked for a torrent not in the session");
+            }
+            handler.accept(channel, received.flip());
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Dropping it anyway
+            }
+        }
+    }
+
+    NioTransport getTransport() {
+        return transport;
+    }
+
+    ThreadPoolExecutor getVerifierPool() {
+        return verifierPool;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    boolean tryAcquireConnection() {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A connection closed: offer it to the torrents with peers waiting, starting after the last one offered one,
+     * so that no torrent keeps taking every connection that comes free.
+     */
+    void releaseConnection() {
+        connections.decrementAndGet();
+        List<Entry> current = getEntries();
+        int first = Math.floorMod(nextToDial.getAndIncrement(), Math.max(1, current.size()));
+        for (int i = 0; i < current.size() && connections.get() < maxConnections; i++) {
+            current.get((first + i) % current.size()).downloader.dialWaiting();
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Share out the global rates between the torrents, see the class description.
+     */
+    synchronized void rebalance() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - rebalancedAt) / 1e9);
+        rebalancedAt = now;
+        List<Entry> current = getEntries();
+        List<Limit> downloads = new ArrayList<>();
+        List<Limit> uploads = new ArrayList<>();
+        for (Entry entry : current) {
+            downloads.add(entry.download);
+            uploads.add(entry.upload);
+        }
+        share(downloadLimit.getRate(), downloads, seconds);
+        share(uploadLimit.getRate(), uploads, seconds);
+    }
+
+    private static void share(long total, List<Limit> limits, double seconds) {
+        for (Limit limit : limits) {
+            long consumed = limit.bucket.getConsumed();
+            long used = (long) ((consumed - limit.lastConsumed) / seconds);
+            limit.lastConsumed = consumed;
+            long ceiling = ceiling(limit, total);
+            long allowed = limit.bucket.getRate();
+            // A torrent that used most of what it was allowed may want more; otherwise it gets what it used
+            boolean hungry = allowed == 0 || used >= allowed * 9 / 10;
+            limit.demand = hungry ? ceiling : Math.min(ceiling, used + used / 4 + MIN_SHARE);
+        }
+        if (total == 0) {
+            for (Limit limit : limits) {
+                limit.bucket.setRate(limit.configured);
+            }
+            return;
+        }
+
+        // Water-filling: the smallest demands are met first, each from an equal split of what is left
+        List<Limit> byDemand = new ArrayList<>(limits);
+        byDemand.sort(Comparator.comparingLong(limit -> limit.demand));
+        long remaining = total;
+        long[] shares = new long[byDemand.size()];
+        for (int i = 0; i < byDemand.size(); i++) {
+            shares[i] = Math.min(byDemand.get(i).demand, remaining / (byDemand.size() - i));
+            remaining -= shares[i];
+        }
+        // Whatever no one asked for is spread evenly, so a torrent starting to want more can get it at once
+        for (int i = 0; i < byDemand.size(); i++) {
+            Limit limit = byDemand.get(i);
+            limit.bucket.setRate(Math.max(1, Math.min(ceiling(limit, total), shares[i] + remaining / byDemand.size())));
+        }
+    }
+
+    /**
+     * The most a torrent may be given: its own limit, within the global one if there is one.
+     */
+    private static long ceiling(Limit limit, long total) {
+        if (limit.configured == 0) {
+            return total;
+        }
+        return total == 0 ? limit.configured : Math.min(limit.configured, total);
+    }
+
+    /**
+     * Stop every torrent, wait for them to tell their trackers, and release the shared threads.
+     */
+    @Override
+    public void close() {
+        for (Entry entry : getEntries()) {
+            entry.downloader.stop();
+        }
+        synchronized (this) {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                    // Not accepting any more either way
+                }
+            }
+        }
+        runners.close();
+        scheduler.shutdownNow();
+        verifierPool.shutdown();
+        transport.close();
+    }
+}
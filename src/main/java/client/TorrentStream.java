@@ -0,0 +1,237 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Plays a byte range of a torrent, usually one of its files, out to a channel in order while it downloads.
+ * <p>
+ * A writer thread follows the playback offset: as soon as the piece holding it is verified, the bytes up to the end
+ * of that piece are read back from storage and written out. The pieces just ahead of the offset form the picker's
+ * read-ahead window, which moves with every piece written, so peers are kept busy on what is needed next rather
+ * than on what is rarest. Time spent waiting for a piece after the first byte went out is counted as stalling.
+ */
+public class TorrentStream implements Closeable {
+    public static final long DEFAULT_READ_AHEAD = 8L << 20;
+    private static final int MIN_WINDOW_PIECES = 2;
+    private static final long FIRST_PIECE_DEADLINE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Torrent torrent;
+    private final long start;
+    private final long end;
+    private final WritableByteChannel output;
+    private final int windowPieces;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pieceCompleted = lock.newCondition();
+    private final long createdAt = System.nanoTime();
+    private volatile long position;
+    private volatile long firstByteNanos = -1;
+    private volatile long stalledNanos;
+    private volatile int stalls;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private Thread writer;
+
+    /**
+     * @param readAhead bytes ahead of the playback offset to fetch before anything else, rounded up to pieces
+     */
+    public TorrentStream(Torrent torrent, long offset, long length, WritableByteChannel output, long readAhead) {
+        if (offset < 0 || length < 0 || offset + length > torrent.getLength()) {
+            throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside the torrent");
+        }
+        this.torrent = torrent;
+        this.start = offset;
+        this.position = offset;
+        this.end = offset + length;
+        this.output = output;
+        this.windowPieces = (int) Math.max(MIN_WINDOW_PIECES, (readAhead + torrent.getPieceLength() - 1) / torrent.getPieceLength());
+    }
+
+    /**
+     * Stream one file of the torrent, named by its path inside the torrent with {@code /} separators, or the whole
+     * torrent if {@code file} is {@code null}.
+     */
+    public static TorrentStream ofFile(Torrent torrent, String file, WritableByteChannel output) {
+        if (file == null) {
+            return new TorrentStream(torrent, 0, torrent.getLength(), output, DEFAULT_READ_AHEAD);
+        }
+        for (int i = 0; i < torrent.getFileCount(); i++) {
+            if (String.join("/", torrent.getFilePath(i)).equals(file)) {
+                return new TorrentStream(torrent, torrent.getFileOffset(i), torrent.getFileLength(i), output,
+                        DEFAULT_READ_AHEAD);
+            }
+        }
+        List<String> names = torrent.getFiles().stream().map(entry -> String.join("/", entry.path())).toList();
+        throw new IllegalArgumentException("No file " + file + " in the torrent, it has " + names);
+    }
+
+    /**
+     * The first piece overlapping the range.
+     */
+    public int getFirstPiece() {
+        return (int) (position / torrent.getPieceLength());
+    }
+
+    /**
+     * One past the last piece overlapping the range.
+     */
+    public int getEndPiece() {
+        return end == position ? getFirstPiece() : (int) ((end - 1) / torrent.getPieceLength()) + 1;
+    }
+
+    /**
+     * Start writing from a new thread, reading pieces from {@code storage} as {@code picker} completes them.
+     *
+     * @param onFailure run if the output fails, e.g. because the reader went away
+     */
+    public void start(PiecePicker picker, Storage storage, Runnable onFailure) {
+        moveWindow(picker);
+        writer = Thread.ofPlatform().name("stream-writer").daemon().start(() -> {
+            try {
+                write(picker, storage);
+            } catch (IOException e) {
+                failure = e;
+                onFailure.run();
+            } catch (InterruptedException e) {
+                // Closed before the end
+            } finally {
+                picker.setStreamWindow(0, 0, 0);
+            }
+        });
+    }
+
+    private void write(PiecePicker picker, Storage storage) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(torrent.getPieceLength());
+        while (position < end) {
+            int piece = (int) (position / torrent.getPieceLength());
+            awaitPiece(picker, piece);
+            long pieceEnd = Math.min(end, (long) (piece + 1) * torrent.getPieceLength());
+            buffer.clear().limit((int) (pieceEnd - position));
+            storage.read(position, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+            if (firstByteNanos < 0) {
+                firstByteNanos = System.nanoTime() - createdAt;
+            }
+            position = pieceEnd;
+            moveWindow(picker);
+        }
+    }
+
+    private void awaitPiece(PiecePicker picker, int piece) throws InterruptedException {
+        lock.lock();
+        try {
+            if (picker.hasPiece(piece)) {
+                return;
+            }
+            long waitingSince = System.nanoTime();
+            while (!picker.hasPiece(piece)) {
+                if (closed) {
+                    throw new InterruptedException("Stream closed");
+                }
+                pieceCompleted.await();
+            }
+            if (firstByteNanos >= 0) {
+                stalledNanos += System.nanoTime() - waitingSince;
+                stalls++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void moveWindow(PiecePicker picker) {
+        int first = getFirstPiece();
+        picker.setStreamWindow(first, Math.min(getEndPiece(), first + windowPieces), FIRST_PIECE_DEADLINE_NANOS);
+    }
+
+    /**
+     * A piece was verified; wakes the writer if it is waiting for it.
+     */
+    public void onPieceCompleted(int pieceIndex) {
+        lock.lock();
+        try {
+            pieceCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until everything has been written out.
+     *
+     * @throws IOException if writing failed
+     */
+    public void await() throws IOException {
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while streaming", e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Why writing stopped early, or {@code null}.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Global offset of the next byte to write.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getBytesWritten() {
+        return position - start;
+    }
+
+    /**
+     * Time from creating the stream to writing its first bytes, or -1 before then.
+     */
+    public long getTimeToFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * Time spent waiting for data after the first bytes were written.
+     */
+    public long getStalledNanos() {
+        return stalledNanos;
+    }
+
+    public int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Stop the writer if it is still running and close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        onPieceCompleted(-1);
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        output.close();
+    }
+}
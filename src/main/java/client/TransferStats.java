@@ -0,0 +1,45 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running transfer totals for one torrent, as reported to trackers. Counters are updated concurrently by
+ * every peer connection.
+ */
+public class TransferStats {
+    private final LongAdder downloaded = new LongAdder();
+    private final LongAdder uploaded = new LongAdder();
+    private final AtomicLong left;
+
+    public TransferStats(long left) {
+        this.left = new AtomicLong(left);
+    }
+
+    public void addDownloaded(long bytes) {
+        downloaded.add(bytes);
+    }
+
+    public void addUploaded(long bytes) {
+        uploaded.add(bytes);
+    }
+
+    /**
+     * Record a piece that no longer needs downloading, whether fetched or found valid on disk.
+     */
+    public void pieceCompleted(int pieceSize) {
+        left.addAndGet(-pieceSize);
+    }
+
+    public long getDownloaded() {
+        return downloaded.sum();
+    }
+
+    public long getUploaded() {
+        return uploaded.sum();
+    }
+
+    public long getLeft() {
+        return left.get();
+    }
+}
@@ -0,0 +1,182 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client for one UDP tracker (BEP 15). A connect exchange yields a connection ID that stays valid for a minute,
+ * after which announces are single datagrams, retransmitted with a doubling timeout when unanswered.
+ * <p>
+ * All announces go out over one socket, opened on first use and kept until {@link #close()}, so re-announcing
+ * costs no socket setup and the tracker keeps seeing the same source port. A late reply to an earlier request
+ * that arrives on it is told apart by its transaction ID. The tracker's host name is resolved again whenever the
+ * socket is opened or the connection ID has expired, so a failed lookup is retried and a tracker that moves to a
+ * new address is followed.
+ */
+public class UdpTracker implements Closeable {
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_ERROR = 3;
+    private static final long CONNECTION_ID_LIFETIME_MILLIS = 60_000;
+    private static final int BASE_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_PACKET_SIZE = 2048;
+    private static final int ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private InetSocketAddress address;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long connectionId;
+    private long connectionIdExpiry;
+    private volatile DatagramSocket socket;
+    private volatile boolean closed;
+
+    UdpTracker(URI uri) {
+        if (uri.getHost() == null || uri.getPort() < 0) {
+            throw new IllegalArgumentException("UDP tracker URL needs a host and port: " + uri);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort();
+    }
+
+    /**
+     * Announce, connecting first if the connection ID has expired, and add the returned peers to the registry.
+     * A STOPPED announce is sent only once, since nothing waits on its answer.
+     */
+    PeerDiscovery.Announce announce(byte[] infoHash, byte[] peerId, int port, int key, TransferStats stats,
+                                    PeerDiscovery.Event event, PeerRegistry registry) throws IOException {
+        lock.lock();
+        try {
+            DatagramSocket socket = openSocket();
+            int attempts = event == PeerDiscovery.Event.STOPPED ? 1 : ATTEMPTS;
+            if (System.currentTimeMillis() >= connectionIdExpiry) {
+                connect(socket, attempts);
+            }
+
+            int transactionId = ThreadLocalRandom.current().nextInt();
+            ByteBuffer request = ByteBuffer.allocate(98)
+                    .putLong(connectionId)
+                    .putInt(ACTION_ANNOUNCE)
+                    .putInt(transactionId)
+                    .put(infoHash)
+                    .put(peerId)
+                    .putLong(stats.getDownloaded())
+                    .putLong(stats.getLeft())
+                    .putLong(stats.getUploaded())
+                    .putInt(event.getUdpCode())
+                    .putInt(0)    // Let the tracker use the packet's source address
+                    .putInt(key)
+                    .putInt(-1)   // Default number of peers
+                    .putShort((short) port);
+            ByteBuffer response = exchange(socket, request.array(), ACTION_ANNOUNCE, transactionId, 20, attempts);
+            int interval = response.getInt(8);
+            // Peers come in the address family the tracker was reached over
+            boolean ipv6 = address.getAddress() instanceof Inet6Address;
+            return new PeerDiscovery.Announce(registry.addCompact(response.position(20), ipv6), interval);
+        } catch (SocketTimeoutException e) {
+            connectionIdExpiry = 0;  // The ID may have been dropped along with the request
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The socket shared by all announces, reopened if it was closed, e.g. by interrupting a thread waiting on it,
+     * and connected to the tracker's current address. Called with the lock held.
+     */
+    private DatagramSocket openSocket() throws IOException {
+        if (closed) {
+            throw new IOException("UDP tracker client " + host + ":" + port + " is closed");
+        }
+        DatagramSocket current = socket;
+        boolean reopen = current == null || current.isClosed();
+        if (reopen || System.currentTimeMillis() >= connectionIdExpiry) {
+            InetSocketAddress resolved = new InetSocketAddress(host, port);
+            if (resolved.isUnresolved()) {
+                throw new UnknownHostException("Cannot resolve UDP tracker " + host);
+            }
+            if (reopen) {
+                current = new DatagramSocket();
+                socket = current;
+            }
+            if (reopen || !resolved.equals(address)) {
+                current.disconnect();
+                current.connect(resolved);
+                address = resolved;
+                connectionIdExpiry = 0;  // A connection ID is only good for the address it was issued to
+            }
+        }
+        return current;
+    }
+
+    private void connect(DatagramSocket socket, int attempts) throws IOException {
+        int transactionId = ThreadLocalRandom.current().nextInt();
+        ByteBuffer request = ByteBuffer.allocate(16)
+                .putLong(PROTOCOL_ID)
+                .putInt(ACTION_CONNECT)
+                .putInt(transactionId);
+        ByteBuffer response = exchange(socket, request.array(), ACTION_CONNECT, transactionId, 16, attempts);
+        connectionId = response.getLong(8);
+        connectionIdExpiry = System.currentTimeMillis() + CONNECTION_ID_LIFETIME_MILLIS;
+    }
+
+    /**
+     * Send a request until a matching response arrives, waiting {@code BASE_TIMEOUT_MILLIS * 2^n} before the
+     * n-th retransmission. Datagrams with a different transaction ID are stale replies and are skipped.
+     */
+    private ByteBuffer exchange(DatagramSocket socket, byte[] request, int action, int transactionId,
+                                int minLength, int attempts) throws IOException {
+        byte[] response = new byte[MAX_PACKET_SIZE];
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            socket.setSoTimeout(BASE_TIMEOUT_MILLIS << attempt);
+            socket.send(new DatagramPacket(request, request.length));
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(response, response.length);
+                    socket.receive(packet);
+                    ByteBuffer buffer = ByteBuffer.wrap(response, 0, packet.getLength());
+                    if (packet.getLength() < 8 || buffer.getInt(4) != transactionId) {
+                        continue;
+                    }
+                    if (buffer.getInt(0) == ACTION_ERROR) {
+                        throw new IOException("Tracker refused the announce: "
+                                + new String(response, 8, packet.getLength() - 8, StandardCharsets.UTF_8));
+                    }
+                    if (buffer.getInt(0) != action || packet.getLength() < minLength) {
+                        throw new IOException("Malformed response from UDP tracker " + host + ":" + port);
+                    }
+                    return buffer;
+                }
+            } catch (SocketTimeoutException e) {
+                // Retransmit with a longer timeout
+            }
+        }
+        throw new SocketTimeoutException("No response from UDP tracker " + host + ":" + port + " after " + attempts
+                + " attempts");
+    }
+
+    /**
+     * Close the socket, failing an announce that is waiting on it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        DatagramSocket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
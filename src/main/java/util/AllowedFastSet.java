@@ -0,0 +1,59 @@
+package util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The canonical allowed fast set of the Fast Extension (BEP 6): pieces a peer may download from us while choked,
+ * derived from its IPv4 address and the info hash so that reconnecting from the same network yields the same
+ * pieces and gains it nothing.
+ */
+public final class AllowedFastSet {
+    public static final int DEFAULT_SIZE = 10;
+
+    private AllowedFastSet() {
+    }
+
+    /**
+     * @return up to {@code size} distinct piece indices, none for an IPv6 address
+     */
+    public static int[] compute(InetAddress address, byte[] infoHash, int pieceCount, int size) {
+        if (!(address instanceof Inet4Address)) {
+            return new int[0];
+        }
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        byte[] ip = address.getAddress();
+        ip[3] = 0;  // Only the /24 network counts
+        byte[] x = ByteBuffer.allocate(ip.length + infoHash.length).put(ip).put(infoHash).array();
+
+        int[] allowed = new int[Math.min(size, pieceCount)];
+        int count = 0;
+        while (count < allowed.length) {
+            x = sha1.digest(x);
+            for (int i = 0; i < 5 && count < allowed.length; i++) {
+                int index = (int) (Integer.toUnsignedLong(ByteBuffer.wrap(x, i * 4, 4).getInt()) % pieceCount);
+                if (!contains(allowed, count, index)) {
+                    allowed[count++] = index;
+                }
+            }
+        }
+        return allowed;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
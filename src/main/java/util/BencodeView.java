@@ -0,0 +1,321 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A lazy, zero-copy view of one bencoded value inside a larger buffer.
+ * <p>
+ * Unlike {@link BencodeCodec#decodeBencode}, nothing is materialised up front: a view is just an offset and a
+ * length into the original bytes, and strings are exposed as buffer slices. Because the exact encoded span of
+ * every value is kept, a torrent's info hash can be computed over the original {@code info} bytes instead of
+ * a re-encoding.
+ */
+public final class BencodeView {
+    /**
+     * The most {@link #read(InputStream)} takes from a stream, far more than any tracker response needs.
+     */
+    public static final int MAX_STREAMED_LENGTH = 16 << 20;
+
+    public enum Type {
+        INTEGER,
+        STRING,
+        LIST,
+        DICTIONARY
+    }
+
+    private final ByteBuffer data;
+    private final int offset;
+    private final int end;
+
+    private BencodeView(ByteBuffer data, int offset, int end) {
+        this.data = data;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    public static BencodeView of(byte[] bytes) {
+        return of(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * View the value starting at the buffer's position. The whole value is validated once, without allocating,
+     * so later accessors never read out of bounds.
+     */
+    public static BencodeView of(ByteBuffer buffer) {
+        int start = buffer.position();
+        return new BencodeView(buffer, start, skip(buffer, start, buffer.limit()));
+    }
+
+    /**
+     * Read exactly one bencoded value of at most {@value #MAX_STREAMED_LENGTH} bytes from a stream, stopping at its
+     * last byte rather than at end of stream. Structure outside strings is read a byte at a time, so pass a
+     * buffered stream.
+     */
+    public static BencodeView read(InputStream in) throws IOException {
+        return read(in, MAX_STREAMED_LENGTH);
+    }
+
+    /**
+     * As {@link #read(InputStream)}, for a value of at most {@code maxLength} bytes. Memory grows with the bytes
+     * that actually arrive, not with the lengths the stream declares, and a value that would exceed the limit is
+     * refused as soon as its size is known.
+     */
+    public static BencodeView read(InputStream in, int maxLength) throws IOException {
+        StreamBuffer buffer = new StreamBuffer(maxLength);
+        int depth = 0;
+        do {
+            int b = buffer.append(in);
+            if (b == 'i') {
+                while (buffer.append(in) != 'e') {
+                    // Integer digits are validated when the finished buffer is viewed
+                }
+            } else if (b == 'l' || b == 'd') {
+                depth++;
+            } else if (b == 'e') {
+                if (depth == 0) {
+                    throw new IOException("Unexpected end marker in bencoded stream");
+                }
+                depth--;
+            } else if (b >= '0' && b <= '9') {
+                long length = b - '0';
+                for (int c; (c = buffer.append(in)) != ':'; ) {
+                    if (c < '0' || c > '9' || length > Integer.MAX_VALUE / 10) {
+                        throw new IOException("Invalid string length in bencoded stream");
+                    }
+                    length = length * 10 + (c - '0');
+                }
+                buffer.appendBytes(in, (int) length);
+            } else {
+                throw new IOException("Unsupported format in bencoded stream: " + (char) b);
+            }
+        } while (depth > 0);
+        try {
+            return of(ByteBuffer.wrap(buffer.bytes, 0, buffer.size));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public Type getType() {
+        return switch (data.get(offset)) {
+            case 'i' -> Type.INTEGER;
+            case 'l' -> Type.LIST;
+            case 'd' -> Type.DICTIONARY;
+            default -> Type.STRING;
+        };
+    }
+
+    public long asLong() {
+        expect(Type.INTEGER);
+        return parseLong(data, offset + 1, end - 1);
+    }
+
+    /**
+     * The string's bytes as a slice of the underlying buffer.
+     */
+    public ByteBuffer asBytes() {
+        expect(Type.STRING);
+        int colon = indexOf(data, (byte) ':', offset, end);
+        return data.slice(colon + 1, end - colon - 1);
+    }
+
+    public String asString() {
+        ByteBuffer bytes = asBytes();
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * Look up a dictionary entry by key.
+     *
+     * @return the value, or {@code null} if the key is absent
+     */
+    public BencodeView get(String key) {
+        expect(Type.DICTIONARY);
+        byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+        int position = offset + 1;
+        while (data.get(position) != 'e') {
+            int colon = indexOf(data, (byte) ':', position, end);
+            int keyLength = (int) parseLong(data, position, colon);
+            int keyStart = colon + 1;
+            int valueStart = keyStart + keyLength;
+            int valueEnd = skip(data, valueStart, end);
+            if (keyLength == wanted.length && matches(keyStart, wanted)) {
+                return new BencodeView(data, valueStart, valueEnd);
+            }
+            position = valueEnd;
+        }
+        return null;
+    }
+
+    private boolean matches(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (data.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The elements of a list, each as its own view.
+     */
+    public List<BencodeView> elements() {
+        expect(Type.LIST);
+        List<BencodeView> elements = new ArrayList<>();
+        int position = offset + 1;
+        while (data.get(position) != 'e') {
+            int valueEnd = skip(data, position, end);
+            elements.add(new BencodeView(data, position, valueEnd));
+            position = valueEnd;
+        }
+        return elements;
+    }
+
+    /**
+     * The exact encoded bytes of this value, as a slice of the underlying buffer.
+     */
+    public ByteBuffer raw() {
+        return data.slice(offset, end - offset);
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return end - offset;
+    }
+
+    private void expect(Type type) {
+        if (getType() != type) {
+            throw new IllegalStateException("Expected a bencoded " + type + " at offset " + offset + " but found " + getType());
+        }
+    }
+
+    /**
+     * Find the end of the value starting at {@code position}, checking structure and bounds as it goes.
+     */
+    private static int skip(ByteBuffer data, int position, int limit) {
+        int depth = 0;
+        do {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Truncated bencoded value at index " + position);
+            }
+            byte current = data.get(position);
+            if (current == 'i') {
+                int endIndex = indexOf(data, (byte) 'e', position + 1, limit);
+                parseLong(data, position + 1, endIndex);
+                position = endIndex + 1;
+            } else if (current == 'l' || current == 'd') {
+                depth++;
+                position++;
+            } else if (current == 'e') {
+                if (depth == 0) {
+                    throw new IllegalArgumentException("Unexpected end marker at index " + position);
+                }
+                depth--;
+                position++;
+            } else if (current >= '0' && current <= '9') {
+                int colon = indexOf(data, (byte) ':', position, limit);
+                long length = parseLong(data, position, colon);
+                if (length > limit - colon - 1) {
+                    throw new IllegalArgumentException("String length exceeds input at index " + position);
+                }
+                position = colon + 1 + (int) length;
+            } else {
+                throw new IllegalArgumentException("Unsupported format at index " + position);
+            }
+        } while (depth > 0);
+        return position;
+    }
+
+    private static long parseLong(ByteBuffer data, int from, int to) {
+        boolean negative = from < to && data.get(from) == '-';
+        int position = negative ? from + 1 : from;
+        if (position == to) {
+            throw new IllegalArgumentException("Empty integer at index " + from);
+        }
+        long value = 0;
+        for (; position < to; position++) {
+            byte digit = data.get(position);
+            if (digit < '0' || digit > '9') {
+                throw new IllegalArgumentException("Invalid digit at index " + position);
+            }
+            value = Math.addExact(Math.multiplyExact(value, 10), digit - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(ByteBuffer data, byte target, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (data.get(i) == target) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Missing '" + (char) target + "' after index " + from);
+    }
+
+    /**
+     * Growable byte array that collects the raw bytes of a streamed value.
+     */
+    private static final class StreamBuffer {
+        private static final int CHUNK = 64 << 10;
+
+        private final int maxLength;
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        StreamBuffer(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        int append(InputStream in) throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Bencoded stream ended early");
+            }
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+            return b;
+        }
+
+        /**
+         * Append a string's bytes a chunk at a time, so a declared length the stream does not live up to costs
+         * no more memory than the bytes it did send.
+         */
+        void appendBytes(InputStream in, int length) throws IOException {
+            if (length > maxLength - size) {
+                throw new IOException("Bencoded string of " + length + " bytes exceeds the limit of " + maxLength);
+            }
+            for (int remaining = length; remaining > 0; ) {
+                int chunk = Math.min(remaining, CHUNK);
+                ensureCapacity(chunk);
+                int read = in.readNBytes(bytes, size, chunk);
+                if (read < chunk) {
+                    throw new EOFException("Bencoded stream ended inside a string");
+                }
+                size += chunk;
+                remaining -= chunk;
+            }
+        }
+
+        private void ensureCapacity(int extra) throws IOException {
+            if (extra > maxLength - size) {
+                throw new IOException("Bencoded value exceeds the limit of " + maxLength + " bytes");
+            }
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(maxLength, Math.max(2L * bytes.length, size + extra)));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static helpers for piece bitfields packed into {@code long[]} words, with piece {@code i} stored at bit
+ * {@code i & 63} of word {@code i >>> 6}.
+ */
+public final class Bitfield {
+
+    private Bitfield() {
+    }
+
+    public static long[] create(int pieceCount) {
+        return new long[(pieceCount + 63) >>> 6];
+    }
+
+    public static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    public static void clear(long[] bits, int index) {
+        bits[index >>> 6] &= ~(1L << index);
+    }
+
+    public static int cardinality(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Unpack a BITFIELD payload, where the high bit of the first byte is piece 0. Spare trailing bits are dropped.
+     */
+    public static long[] fromPayload(byte[] payload, int pieceCount) {
+        return fromPayload(ByteBuffer.wrap(payload), pieceCount);
+    }
+
+    /**
+     * Unpack a BITFIELD payload between the buffer's position and limit without consuming it.
+     */
+    public static long[] fromPayload(ByteBuffer payload, int pieceCount) {
+        long[] bits = create(pieceCount);
+        int start = payload.position();
+        int byteCount = Math.min(payload.remaining(), (pieceCount + 7) >>> 3);
+        for (int i = 0; i < byteCount; i++) {
+            long reversed = Integer.reverse(payload.get(start + i) & 0xFF) >>> 24;
+            bits[i >>> 3] |= reversed << ((i & 7) << 3);
+        }
+        int spare = pieceCount & 63;
+        if (spare != 0) {
+            bits[bits.length - 1] &= (1L << spare) - 1;
+        }
+        return bits;
+    }
+
+    /**
+     * Pack bits back into BITFIELD wire order.
+     */
+    public static byte[] toPayload(long[] bits, int pieceCount) {
+        byte[] payload = new byte[(pieceCount + 7) >>> 3];
+        for (int i = 0; i < payload.length; i++) {
+            int octet = (int) (bits[i >>> 3] >>> ((i & 7) << 3)) & 0xFF;
+            payload[i] = (byte) (Integer.reverse(octet) >>> 24);
+        }
+        return payload;
+    }
+
+    /**
+     * Read a HAVE payload's piece index.
+     */
+    public static int haveIndex(byte[] payload) {
+        return haveIndex(ByteBuffer.wrap(payload));
+    }
+
+    public static int haveIndex(ByteBuffer payload) {
+        return payload.getInt(payload.position());
+    }
+}
@@ -0,0 +1,95 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder for length-prefixed peer wire messages.
+ * <p>
+ * Frames are decoded in place: instead of copying payloads into new arrays, the handler receives the source
+ * buffer itself with its position and limit narrowed to the payload. PIECE blocks can therefore be written
+ * straight to storage from the receive buffer.
+ */
+public final class FrameDecoder {
+
+    /**
+     * Receives decoded frames. The buffer passed in is only valid for the duration of the call and its position
+     * and limit are restored afterwards.
+     */
+    public interface Handler {
+        void onMessage(Message.MessageType type, ByteBuffer payload) throws IOException;
+
+        void onPiece(int pieceIndex, int begin, ByteBuffer block) throws IOException;
+    }
+
+    private final int maxFrameLength;
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Decode every complete frame between the buffer's position and limit. On return the position is at the
+     * start of the first incomplete frame.
+     *
+     * @return the total number of bytes the next incomplete frame needs, including its length prefix
+     */
+    public int decode(ByteBuffer buffer, Handler handler) throws IOException {
+        int limit = buffer.limit();
+        while (limit - buffer.position() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length < 0 || length > maxFrameLength) {
+                throw new IOException("Invalid message length: " + length);
+            }
+            if (limit - start < 4 + length) {
+                return 4 + length;
+            }
+            int next = start + 4 + length;
+            try {
+                if (length > 0) {
+                    dispatch(buffer, start + 4, next, handler);
+                }
+            } finally {
+                buffer.limit(limit).position(next);
+            }
+        }
+        return 4;
+    }
+
+    private static void dispatch(ByteBuffer buffer, int idOffset, int end, Handler handler) throws IOException {
+        Message.MessageType type = Message.MessageType.lookup(buffer.get(idOffset) & 0xFF);
+        if (type == null) {
+            return;  // Unsupported extension message
+        }
+        int expected = payloadLength(type);
+        if (expected >= 0 && end - idOffset - 1 != expected) {
+            throw new IOException("Protocol error: " + type + " message with a payload of " + (end - idOffset - 1)
+                    + " bytes instead of " + expected);
+        }
+        if (type == Message.MessageType.PIECE) {
+            if (end - idOffset < 9) {
+                throw new IOException("Truncated PIECE message");
+            }
+            int pieceIndex = buffer.getInt(idOffset + 1);
+            int begin = buffer.getInt(idOffset + 5);
+            buffer.limit(end).position(idOffset + 9);
+            handler.onPiece(pieceIndex, begin, buffer);
+        } else {
+            buffer.limit(end).position(idOffset + 1);
+            handler.onMessage(type, buffer);
+        }
+    }
+
+    /**
+     * The payload length a message type must have, or -1 if it varies.
+     */
+    private static int payloadLength(Message.MessageType type) {
+        return switch (type) {
+            case CHOKE, UNCHOKE, INTERESTED, NOT_INTERESTED, HAVE_ALL, HAVE_NONE -> 0;
+            case HAVE, SUGGEST_PIECE, ALLOWED_FAST -> 4;
+            case REQUEST, CANCEL, REJECT_REQUEST -> 12;
+            default -> -1;
+        };
+    }
+}
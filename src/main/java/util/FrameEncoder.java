@@ -0,0 +1,169 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Encodes peer wire messages directly into a reusable buffer, so a batch of small messages such as REQUEST
+ * and HAVE goes out in a single write without allocating a {@link Message} or byte array per message.
+ * <p>
+ * The buffer stays in write mode: its position is the number of pending bytes.
+ */
+public final class FrameEncoder {
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    public FrameEncoder(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public boolean hasRoom(int bytes) {
+        return buffer.remaining() >= bytes;
+    }
+
+    public int pending() {
+        return buffer.position();
+    }
+
+    public FrameEncoder keepAlive() {
+        buffer.putInt(0);
+        return this;
+    }
+
+    public FrameEncoder choke() {
+        return header(1, Message.MessageType.CHOKE);
+    }
+
+    public FrameEncoder unchoke() {
+        return header(1, Message.MessageType.UNCHOKE);
+    }
+
+    public FrameEncoder interested() {
+        return header(1, Message.MessageType.INTERESTED);
+    }
+
+    public FrameEncoder notInterested() {
+        return header(1, Message.MessageType.NOT_INTERESTED);
+    }
+
+    public FrameEncoder have(int pieceIndex) {
+        header(5, Message.MessageType.HAVE);
+        buffer.putInt(pieceIndex);
+        return this;
+    }
+
+    public FrameEncoder bitfield(byte[] payload) {
+        header(1 + payload.length, Message.MessageType.BITFIELD);
+        buffer.put(payload);
+        return this;
+    }
+
+    public FrameEncoder request(int pieceIndex, int begin, int length) {
+        header(13, Message.MessageType.REQUEST);
+        buffer.putInt(pieceIndex).putInt(begin).putInt(length);
+        return this;
+    }
+
+    public FrameEncoder cancel(int pieceIndex, int begin, int length) {
+        header(13, Message.MessageType.CANCEL);
+        buffer.putInt(pieceIndex).putInt(begin).putInt(length);
+        return this;
+    }
+
+    public FrameEncoder haveAll() {
+        return header(1, Message.MessageType.HAVE_ALL);
+    }
+
+    public FrameEncoder haveNone() {
+        return header(1, Message.MessageType.HAVE_NONE);
+    }
+
+    public FrameEncoder reject(int pieceIndex, int begin, int length) {
+        header(13, Message.MessageType.REJECT_REQUEST);
+        buffer.putInt(pieceIndex).putInt(begin).putInt(length);
+        return this;
+    }
+
+    public FrameEncoder allowedFast(int pieceIndex) {
+        header(5, Message.MessageType.ALLOWED_FAST);
+        buffer.putInt(pieceIndex);
+        return this;
+    }
+
+    /**
+     * An extension protocol message; the payload starts with the extended message ID.
+     */
+    public FrameEncoder extended(byte[] payload) {
+        header(1 + payload.length, Message.MessageType.EXTENDED);
+        buffer.put(payload);
+        return this;
+    }
+
+    /**
+     * Write only the 13-byte header of a PIECE message; the block itself is sent separately, e.g. via
+     * {@link #flush(GatheringByteChannel, ByteBuffer)}, without being copied into this buffer.
+     */
+    public FrameEncoder pieceHeader(int pieceIndex, int begin, int blockLength) {
+        header(9 + blockLength, Message.MessageType.PIECE);
+        buffer.putInt(pieceIndex).putInt(begin);
+        return this;
+    }
+
+    public FrameEncoder message(Message message) {
+        message.writeTo(buffer);
+        return this;
+    }
+
+    private FrameEncoder header(int length, Message.MessageType type) {
+        buffer.putInt(length).put((byte) type.getId());
+        return this;
+    }
+
+    /**
+     * Write as much of the pending data as the channel accepts.
+     *
+     * @return bytes still pending afterwards
+     */
+    public int flush(GatheringByteChannel channel) throws IOException {
+        buffer.flip();
+        try {
+            channel.write(buffer);
+        } finally {
+            buffer.compact();
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Write the pending data followed by {@code body} in one gathering write. Any part of the pending data
+     * the channel did not accept stays buffered; the unwritten part of {@code body} is left in {@code body}.
+     */
+    public void flush(GatheringByteChannel channel, ByteBuffer body) throws IOException {
+        buffer.flip();
+        gather[0] = buffer;
+        gather[1] = body;
+        try {
+            channel.write(gather);
+        } finally {
+            gather[1] = null;
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Write all pending data to a blocking stream in one call.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } else {
+            byte[] bytes = new byte[buffer.position()];
+            buffer.flip().get(bytes);
+            out.write(bytes);
+        }
+        out.flush();
+        buffer.clear();
+    }
+}
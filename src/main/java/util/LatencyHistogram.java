@@ -0,0 +1,72 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in power-of-two buckets of microseconds, from 1 us to about 35 minutes.
+ * Recording is a couple of atomic adds, cheap enough for every block; percentiles are reported as the upper
+ * bound of their bucket, capped at the maximum, so they are accurate to within a factor of two.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * Count, mean, 50th/90th/99th percentile and maximum, in microseconds.
+     */
+    public Map<String, Object> snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("meanMicros", count == 0 ? 0 : totalNanos.get() / 1000 / count);
+        long max = maxNanos.get() / 1000;
+        snapshot.put("p50Micros", Math.min(max, percentile(copy, count, 0.50)));
+        snapshot.put("p90Micros", Math.min(max, percentile(copy, count, 0.90)));
+        snapshot.put("p99Micros", Math.min(max, percentile(copy, count, 0.99)));
+        snapshot.put("maxMicros", max);
+        return snapshot;
+    }
+
+    private static long percentile(long[] counts, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return (2L << i) - 1;
+            }
+        }
+        return 0;
+    }
+}
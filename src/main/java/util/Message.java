@@ -24,8 +24,26 @@ public class Message {
         REQUEST(6),
         PIECE(7),
         CANCEL(8),
+        // Fast Extension (BEP 6), only sent to peers that set its reserved bit
+        SUGGEST_PIECE(13),
+        HAVE_ALL(14),
+        HAVE_NONE(15),
+        REJECT_REQUEST(16),
+        ALLOWED_FAST(17),
+        // Extension protocol (BEP 10), only sent to peers that set its reserved bit
+        EXTENDED(20),
         KEEP_ALIVE(-1); // Keep-alive messages have no ID or payload
 
+        private static final MessageType[] BY_ID = new MessageType[256];
+
+        static {
+            for (MessageType type : values()) {
+                if (type.id >= 0) {
+                    BY_ID[type.id] = type;
+                }
+            }
+        }
+
         private final int id;
 
         MessageType(int id) {
@@ -37,12 +55,23 @@ public class Message {
         }
 
         public static MessageType fromId(int id) {
-            for (MessageType type : values()) {
-                if (type.id == id) {
-                    return type;
-                }
+            MessageType type = lookup(id);
+            if (type == null) {
+                throw new IllegalArgumentException("Unknown message ID: " + id);
+            }
+            return type;
+        }
+
+        /**
+         * Table lookup of a wire ID, returning {@code null} for IDs this client does not understand. The
+         * {@link #KEEP_ALIVE} pseudo-ID {@code -1} maps to itself, so wire IDs read as bytes should be passed unsigned.
+         */
+        public static MessageType lookup(int id) {
+            if (id == KEEP_ALIVE.id) {
+                return KEEP_ALIVE;
             }
-            throw new IllegalArgumentException("Unknown message ID: " + id);
+            int unsigned = id < 0 && id >= Byte.MIN_VALUE ? id & 0xFF : id; // IDs read as a signed byte
+            return unsigned >= 0 && unsigned < BY_ID.length ? BY_ID[unsigned] : null;
         }
     }
 
@@ -56,13 +85,23 @@ public class Message {
      * Serialize the message into a byte array for transmission.
      */
     public byte[] toBytes() {
-        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + (payload == null ? 0 : payload.length));
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Serialize the message into an existing buffer, e.g. one owned by a {@link FrameEncoder}.
+     */
+    public void writeTo(ByteBuffer buffer) {
         buffer.putInt(length); // Length prefix
+        if (type == MessageType.KEEP_ALIVE) {
+            return; // Keep-alive is just a zero length prefix
+        }
         buffer.put((byte) type.getId()); // Message ID
         if (payload != null) {
             buffer.put(payload); // Payload
         }
-        return buffer.array();
     }
 
     /**
@@ -71,7 +110,7 @@ public class Message {
     public static Message fromBytes(byte[] data) {
         ByteBuffer buffer = ByteBuffer.wrap(data);
         int length = buffer.getInt(); // Length prefix
-        byte id = buffer.get();       // Message ID
+        int id = buffer.get() & 0xFF; // Message ID
         MessageType type = MessageType.fromId(id);
 
         byte[] payload = null;
@@ -124,6 +163,11 @@ public class Message {
         return new Message(1 + bitfield.length, MessageType.BITFIELD, bitfield);
     }
 
+    public static Message createBitfield(long[] pieces, int pieceCount) {
+        byte[] bitfield = Bitfield.toPayload(pieces, pieceCount);
+        return new Message(1 + bitfield.length, MessageType.BITFIELD, bitfield);
+    }
+
     public static Message createRequest(int pieceIndex, int begin, int length) {
         ByteBuffer buffer = ByteBuffer.allocate(12);
         buffer.putInt(pieceIndex);
@@ -148,6 +192,28 @@ public class Message {
         return new Message(13, MessageType.CANCEL, buffer.array());
     }
 
+    public static Message createHaveAll() {
+        return new Message(1, MessageType.HAVE_ALL, null);
+    }
+
+    public static Message createHaveNone() {
+        return new Message(1, MessageType.HAVE_NONE, null);
+    }
+
+    public static Message createRejectRequest(int pieceIndex, int begin, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(begin);
+        buffer.putInt(length);
+        return new Message(13, MessageType.REJECT_REQUEST, buffer.array());
+    }
+
+    public static Message createAllowedFast(int pieceIndex) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(pieceIndex);
+        return new Message(5, MessageType.ALLOWED_FAST, buffer.array());
+    }
+
     // Getters for length, type, and payload
     public int getLength() {
         return length;
@@ -0,0 +1,119 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-1 of one piece, computed while its blocks arrive rather than in a second pass over the whole piece at the
+ * end: every block is fed into the digest as soon as all the blocks before it are there, so the digest is ready
+ * almost as soon as the last byte lands. Blocks that arrive ahead of a gap stay in the caller's piece buffer and
+ * are hashed once the gap fills.
+ * <p>
+ * Not thread-safe; callers sharing one between threads make sure only one of them hashes at a time.
+ */
+public final class PieceHasher {
+    private final MessageDigest digest;
+    private final int blockSize;
+    private long[] received = new long[0];
+    private int pieceSize;
+    private int blockCount;
+    private int hashedBlocks;
+
+    /**
+     * @param blockSize the size of every block but a piece's last
+     */
+    public PieceHasher(int blockSize) {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Start on a new piece.
+     */
+    public void reset(int pieceSize) {
+        this.pieceSize = pieceSize;
+        this.blockCount = (pieceSize + blockSize - 1) / blockSize;
+        if (received.length < (blockCount + 63) >>> 6) {
+            received = Bitfield.create(blockCount);
+        } else {
+            Arrays.fill(received, 0);
+        }
+        hashedBlocks = 0;
+        digest.reset();
+    }
+
+    /**
+     * A block was put into the piece buffer.
+     *
+     * @return false if it was already there
+     */
+    public boolean onBlockReceived(int begin) {
+        int block = begin / blockSize;
+        if (block >= blockCount || Bitfield.get(received, block)) {
+            return false;
+        }
+        Bitfield.set(received, block);
+        return true;
+    }
+
+    /**
+     * Whether the block right after the hashed prefix is there, so there is something to hash.
+     */
+    public boolean canAdvance() {
+        return hashedBlocks < blockCount && Bitfield.get(received, hashedBlocks);
+    }
+
+    /**
+     * The end of the run of received blocks that starts where the hashed prefix ends, in bytes.
+     */
+    public int getHashableEnd() {
+        int block = hashedBlocks;
+        while (block < blockCount && Bitfield.get(received, block)) {
+            block++;
+        }
+        return Math.min(pieceSize, block * blockSize);
+    }
+
+    public int getHashedLength() {
+        return Math.min(pieceSize, hashedBlocks * blockSize);
+    }
+
+    /**
+     * Hash the piece from the end of the hashed prefix up to {@code end}, which must be block-aligned or the end
+     * of the piece and at most {@link #getHashableEnd()}. The buffer's position and limit are left alone.
+     */
+    public void hash(ByteBuffer piece, int end) {
+        int start = getHashedLength();
+        if (end > start) {
+            digest.update(piece.slice(start, end - start));
+            hashedBlocks = (end + blockSize - 1) / blockSize;
+        }
+    }
+
+    /**
+     * Hash everything that can be hashed now.
+     */
+    public void advance(ByteBuffer piece) {
+        hash(piece, getHashableEnd());
+    }
+
+    public boolean isComplete() {
+        return hashedBlocks == blockCount;
+    }
+
+    /**
+     * The piece's digest, once every block has been hashed.
+     */
+    public byte[] digest() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Only " + getHashedLength() + " of " + pieceSize + " bytes are hashed");
+        }
+        return digest.digest();
+    }
+}
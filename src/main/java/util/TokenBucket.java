@@ -0,0 +1,122 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter for bytes, optionally nested inside a parent bucket, e.g. one per torrent inside a
+ * global one, so that traffic has to fit both limits.
+ * <p>
+ * Tokens accrue at the bucket's rate up to half a second's worth. Transfers go ahead while the bucket and all its
+ * parents hold tokens and are charged afterwards for what they actually moved, which may leave a bucket in debt;
+ * callers do not have to know in advance how much a socket will take. A rate of 0 means unlimited.
+ */
+public final class TokenBucket {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final TokenBucket parent;
+    private long rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long consumed;
+
+    /**
+     * @param bytesPerSecond the rate, or 0 for unlimited
+     * @param parent         a bucket that is charged for everything this one is, or {@code null}
+     */
+    public TokenBucket(long bytesPerSecond, TokenBucket parent) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Negative rate: " + bytesPerSecond);
+        }
+        this.rate = bytesPerSecond;
+        this.parent = parent;
+        this.tokens = burst(bytesPerSecond);
+    }
+
+    private static double burst(long rate) {
+        return (double) rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Change the rate; tokens saved up beyond the new burst size are dropped.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Negative rate: " + bytesPerSecond);
+        }
+        refill(System.nanoTime());
+        rate = bytesPerSecond;
+        tokens = Math.min(tokens, burst(bytesPerSecond));
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Whether a transfer may go ahead now, as far as this bucket and its parents are concerned.
+     */
+    public boolean hasTokens() {
+        synchronized (this) {
+            refill(System.nanoTime());
+            if (rate > 0 && tokens <= 0) {
+                return false;
+            }
+        }
+        return parent == null || parent.hasTokens();
+    }
+
+    /**
+     * Charge this bucket and its parents for bytes that were transferred.
+     */
+    public void consume(long bytes) {
+        synchronized (this) {
+            refill(System.nanoTime());
+            consumed += bytes;
+            if (rate > 0) {
+                tokens -= bytes;
+            }
+        }
+        if (parent != null) {
+            parent.consume(bytes);
+        }
+    }
+
+    /**
+     * Charge for bytes that were transferred and block until this bucket and its parents are out of debt again,
+     * for callers that can simply wait, like a thread per connection.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        consume(bytes);
+        for (long wait; (wait = nanosUntilTokens()) > 0; ) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * How long until {@link #hasTokens()} holds, assuming nothing else is charged meanwhile.
+     */
+    public long nanosUntilTokens() {
+        long wait = 0;
+        synchronized (this) {
+            refill(System.nanoTime());
+            if (rate > 0 && tokens <= 0) {
+                wait = (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+        }
+        return parent == null ? wait : Math.max(wait, parent.nanosUntilTokens());
+    }
+
+    /**
+     * Bytes charged to this bucket since it was created.
+     */
+    public synchronized long getConsumed() {
+        return consumed;
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst(rate), tokens + (double) (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        refilledAt = now;
+    }
+}
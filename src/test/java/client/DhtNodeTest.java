@@ -0,0 +1,148 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import util.BencodeCodec;
+import util.BencodeView;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Several DHT nodes talking to each other over the loopback interface.
+ */
+class DhtNodeTest {
+    private static final long SETTLE_MILLIS = 3000;
+
+    private final List<DhtNode> nodes = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (DhtNode node : nodes) {
+            node.close();
+        }
+    }
+
+    @Test
+    void nodesFindEachOtherAndAnnouncedPeers() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            start();
+        }
+        String router = "127.0.0.1:" + nodes.getFirst().getPort();
+        for (int round = 0; round < 2; round++) {
+            for (DhtNode node : nodes.subList(1, nodes.size())) {
+                node.bootstrap(List.of(router));
+            }
+        }
+        for (DhtNode node : nodes) {
+            assertTrue(node.getRoutingTable().size() > 0, "empty routing table");
+        }
+
+        byte[] infoHash = new byte[DhtRoutingTable.ID_LENGTH];
+        Arrays.fill(infoHash, (byte) 0x5A);
+        assertTrue(nodes.get(3).findPeers(infoHash, 7000, peer -> {
+        }) > 0, "announced to no node");
+
+        Set<InetSocketAddress> found = ConcurrentHashMap.newKeySet();
+        nodes.get(6).findPeers(infoHash, 0, found::add);
+        assertTrue(found.stream().anyMatch(peer -> peer.getPort() == 7000), "found " + found);
+    }
+
+    @Test
+    void queryingNodeIsOnlyAddedOnceItAnswers() throws Exception {
+        DhtNode node = start();
+        byte[] silentId = new byte[DhtRoutingTable.ID_LENGTH];
+        byte[] answeringId = new byte[DhtRoutingTable.ID_LENGTH];
+        Arrays.fill(silentId, (byte) 1);
+        Arrays.fill(answeringId, (byte) 2);
+
+        try (DatagramSocket silent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket answering = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            silent.setSoTimeout((int) SETTLE_MILLIS);
+            answering.setSoTimeout((int) SETTLE_MILLIS);
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), node.getPort());
+
+            ping(silent, target, silentId);
+            BencodeView check = receiveQuery(silent);
+            assertEquals("ping", check.get("q").asString(), "node should verify the querying node");
+            assertEquals(0, node.getRoutingTable().size());
+
+            ping(answering, target, answeringId);
+            BencodeView query = receiveQuery(answering);
+            Map<String, Object> response = new TreeMap<>();
+            response.put("id", answeringId);
+            Map<String, Object> reply = new TreeMap<>();
+            reply.put("t", bytes(query.get("t")));
+            reply.put("y", "r");
+            reply.put("r", response);
+            send(answering, target, reply);
+
+            long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+            while (node.getRoutingTable().size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, node.getRoutingTable().size());
+        }
+    }
+
+    private DhtNode start() throws IOException {
+        DhtNode node = new DhtNode(0, null);
+        nodes.add(node);
+        return node;
+    }
+
+    private static void ping(DatagramSocket socket, InetSocketAddress target, byte[] id) throws IOException {
+        Map<String, Object> arguments = new TreeMap<>();
+        arguments.put("id", id);
+        Map<String, Object> query = new TreeMap<>();
+        query.put("t", new byte[]{0, 1});
+        query.put("y", "q");
+        query.put("q", "ping");
+        query.put("a", arguments);
+        send(socket, target, query);
+    }
+
+    private static void send(DatagramSocket socket, InetSocketAddress target, Map<String, Object> message)
+            throws IOException {
+        byte[] encoded = BencodeCodec.encodeBencode(message);
+        socket.send(new DatagramPacket(encoded, encoded.length, target));
+    }
+
+    /**
+     * Of the answer to our query and the node's own query, which may come in either order, return the latter.
+     */
+    private static BencodeView receiveQuery(DatagramSocket socket) throws IOException {
+        BencodeView first = receive(socket);
+        BencodeView second = receive(socket);
+        BencodeView query = first.get("y").asString().equals("q") ? first : second;
+        BencodeView answer = query == first ? second : first;
+        assertEquals("r", answer.get("y").asString());
+        return query;
+    }
+
+    private static BencodeView receive(DatagramSocket socket) throws IOException {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        return BencodeView.of(Arrays.copyOf(buffer, packet.getLength()));
+    }
+
+    private static byte[] bytes(BencodeView value) {
+        byte[] copy = new byte[value.asBytes().remaining()];
+        value.asBytes().get(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,85 @@
+package client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Downloads from a {@link SwarmSimulator} on loopback, over either transport and with a seeder corrupting blocks,
+ * and checks the client ends up with exactly the content the seeders serve.
+ */
+@Timeout(value = 2, unit = TimeUnit.MINUTES)
+class SwarmSimulatorTest {
+    private static final long SIZE = 4L << 20;
+    private static final int PIECE_LENGTH = 64 << 10;
+    private static final int SEEDERS = 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void downloadsOverThreads() throws Exception {
+        download(TorrentDownloader.Transport.THREADS, false);
+    }
+
+    @Test
+    void downloadsOverNio() throws Exception {
+        download(TorrentDownloader.Transport.NIO, false);
+    }
+
+    @Test
+    void recoversFromCorruptBlocksOverThreads() throws Exception {
+        download(TorrentDownloader.Transport.THREADS, true);
+    }
+
+    @Test
+    void recoversFromCorruptBlocksOverNio() throws Exception {
+        download(TorrentDownloader.Transport.NIO, true);
+    }
+
+    @Test
+    void commandLineReportsMatchingContent() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+        try {
+            Main.main(new String[]{"simulate", "--nio", "--size-mb", "2", "--piece-kib", "64", "--corrupt", "1", "0.2"});
+        } finally {
+            System.setOut(stdout);
+        }
+        String printed = output.toString(StandardCharsets.UTF_8);
+        assertTrue(printed.contains("Run 1: ") && printed.contains("content matches"), printed);
+    }
+
+    private void download(TorrentDownloader.Transport transport, boolean corrupt) throws Exception {
+        try (SwarmSimulator swarm = new SwarmSimulator(SIZE, PIECE_LENGTH, SEEDERS, 7)) {
+            if (corrupt) {
+                // Half the blocks of one seeder, so that some piece is all but certain to fail its hash check
+                swarm.setCorruption(1, 0.5);
+            }
+            Torrent torrent = swarm.start();
+            Path file = directory.resolve(torrent.getName());
+            Metrics metrics = new Metrics();
+            TorrentDownloader downloader = new TorrentDownloader(torrent, PeerConnection.MIN_PIPELINE_DEPTH,
+                    PeerConnection.MAX_PIPELINE_DEPTH, transport);
+            downloader.setMetrics(metrics);
+
+            downloader.download(file.toString());
+
+            assertTrue(swarm.matches(file, 0, torrent.getLength()), "content differs");
+            if (corrupt) {
+                SwarmSimulator.Stats stats = swarm.getStats();
+                assertTrue(stats.corruptBlocks() > 0, "no block was corrupted");
+                assertTrue(((Number) metrics.snapshot().get("hashFailures")).longValue() > 0, "no hash failure");
+            }
+        }
+    }
+}
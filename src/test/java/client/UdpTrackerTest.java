@@ -0,0 +1,164 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Announces against a stand-in UDP tracker on the loopback interface that answers like a real one.
+ */
+class UdpTrackerTest {
+    private static final byte[] INFO_HASH = new byte[20];
+    private static final byte[] PEER_ID = "-TS0001-000000000000".getBytes(StandardCharsets.ISO_8859_1);
+
+    private StandInTracker tracker;
+    private UdpTracker client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tracker = new StandInTracker();
+        client = new UdpTracker(URI.create("udp://127.0.0.1:" + tracker.getPort() + "/announce"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        tracker.close();
+    }
+
+    @Test
+    void announceReturnsPeersAndInterval() throws IOException {
+        PeerRegistry registry = new PeerRegistry();
+
+        PeerDiscovery.Announce announce = announce(PeerDiscovery.Event.STARTED, registry);
+
+        assertEquals(1800, announce.intervalSeconds());
+        assertEquals(2, announce.peers().length);
+        assertEquals("127.0.0.1:6881", registry.format(announce.peers()[0]));
+        assertEquals("127.0.0.2:6882", registry.format(announce.peers()[1]));
+        assertEquals(List.of(PeerDiscovery.Event.STARTED.getUdpCode()), tracker.events);
+    }
+
+    @Test
+    void reannouncesOverOneSocketAndConnectionId() throws IOException {
+        PeerRegistry registry = new PeerRegistry();
+
+        announce(PeerDiscovery.Event.STARTED, registry);
+        announce(PeerDiscovery.Event.NONE, registry);
+        announce(PeerDiscovery.Event.STOPPED, registry);
+
+        assertEquals(1, tracker.connects.get());
+        assertEquals(3, tracker.events.size());
+        assertEquals(1, tracker.sourcePorts.stream().distinct().count(), "source ports " + tracker.sourcePorts);
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    void trackerErrorIsReported() {
+        tracker.error = "torrent not registered";
+
+        IOException e = assertThrows(IOException.class, () -> announce(PeerDiscovery.Event.STARTED, new PeerRegistry()));
+
+        assertTrue(e.getMessage().contains("torrent not registered"), e.getMessage());
+    }
+
+    @Test
+    void closedClientRefusesToAnnounce() throws IOException {
+        announce(PeerDiscovery.Event.STARTED, new PeerRegistry());
+        client.close();
+
+        assertThrows(IOException.class, () -> announce(PeerDiscovery.Event.NONE, new PeerRegistry()));
+    }
+
+    private PeerDiscovery.Announce announce(PeerDiscovery.Event event, PeerRegistry registry) throws IOException {
+        return client.announce(INFO_HASH, PEER_ID, 6881, 42, new TransferStats(1000), event, registry);
+    }
+
+    /**
+     * Answers connect and announce requests (BEP 15) with two fixed peers, or with an error if one is set, and
+     * records what it was sent.
+     */
+    private static final class StandInTracker implements AutoCloseable {
+        private static final long PROTOCOL_ID = 0x41727101980L;
+        private static final long CONNECTION_ID = 0x1234_5678_9abcL;
+
+        private final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        private final Thread thread = Thread.ofPlatform().daemon().name("stand-in-tracker").start(this::serve);
+        final AtomicInteger connects = new AtomicInteger();
+        final List<Integer> events = new CopyOnWriteArrayList<>();
+        final List<Integer> sourcePorts = new CopyOnWriteArrayList<>();
+        volatile String error;
+
+        StandInTracker() throws SocketException {
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        private void serve() {
+            byte[] buffer = new byte[2048];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    ByteBuffer request = ByteBuffer.wrap(buffer, 0, packet.getLength());
+                    ByteBuffer response = respond(request);
+                    if (response != null) {
+                        socket.send(new DatagramPacket(response.array(), response.position(), packet.getSocketAddress()));
+                        sourcePorts.add(packet.getPort());
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private ByteBuffer respond(ByteBuffer request) {
+            int action = request.getInt(8);
+            int transactionId = request.getInt(12);
+            if (error != null) {
+                byte[] message = error.getBytes(StandardCharsets.UTF_8);
+                return ByteBuffer.allocate(8 + message.length).putInt(3).putInt(transactionId).put(message);
+            }
+            if (action == 0 && request.remaining() >= 16 && request.getLong(0) == PROTOCOL_ID) {
+                connects.incrementAndGet();
+                return ByteBuffer.allocate(16).putInt(0).putInt(transactionId).putLong(CONNECTION_ID);
+            }
+            if (action == 1 && request.remaining() >= 98 && request.getLong(0) == CONNECTION_ID) {
+                events.add(request.getInt(80));
+                return ByteBuffer.allocate(32).putInt(1).putInt(transactionId)
+                        .putInt(1800).putInt(0).putInt(2)
+                        .put(new byte[]{127, 0, 0, 1}).putShort((short) 6881)
+                        .put(new byte[]{127, 0, 0, 2}).putShort((short) 6882);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}